@@ -0,0 +1,231 @@
+package com.applaudsoft.stripe_api;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Card checks done before any network call. Brands come from lookup tables indexed by the first
+ * one to four digits, built once from the same IIN prefixes as the Dart {@code StripeCard}; the
+ * checks walk the number in place, without normalizing or allocating.
+ * Errors use Stripe's card error codes, so callers see the same codes as for a rejected request.
+ */
+class CardValidator {
+    static final String INVALID_NUMBER = "invalid_number";
+    static final String INVALID_EXPIRY_MONTH = "invalid_expiry_month";
+    static final String INVALID_EXPIRY_YEAR = "invalid_expiry_year";
+    static final String INVALID_CVC = "invalid_cvc";
+
+    static final int BRAND_UNKNOWN = 0;
+    static final int BRAND_AMERICAN_EXPRESS = 1;
+    static final int BRAND_DISCOVER = 2;
+    static final int BRAND_JCB = 3;
+    static final int BRAND_DINERS_CLUB = 4;
+    static final int BRAND_VISA = 5;
+    static final int BRAND_MASTERCARD = 6;
+    static final int BRAND_UNIONPAY = 7;
+    // reported as MasterCard, like Stripe and StripeCard do, but Maestro numbers run from 12 to 19 digits
+    static final int BRAND_MAESTRO = 8;
+
+    // same names as StripeCard in Dart, indexed by brand
+    private static final String[] BRAND_NAMES = {
+            "Unknown", "American Express", "Discover", "JCB", "Diners Club", "Visa", "MasterCard", "UnionPay",
+            "MasterCard"};
+    // accepted lengths, indexed by brand; deliberately no stricter than Stripe
+    private static final int[] MIN_LENGTH = {12, 15, 16, 16, 14, 13, 16, 16, 12};
+    private static final int[] MAX_LENGTH = {19, 15, 19, 19, 19, 19, 16, 19, 19};
+
+    // in priority order, the first matching brand wins
+    private static final String[][] PREFIXES = {
+            {"34", "37"},
+            {"60", "64", "65"},
+            {"35"},
+            {"300", "301", "302", "303", "304", "305", "309", "36", "38", "39"},
+            {"4"},
+            {"2221", "2222", "2223", "2224", "2225", "2226", "2227", "2228", "2229", "223", "224", "225", "226",
+                    "227", "228", "229", "23", "24", "25", "26", "270", "271", "2720", "51", "52", "53",
+                    "54", "55"},
+            {"62"},
+            {"50", "67"},
+    };
+    private static final int TABLE_DIGITS = 4;
+    // BRAND_TABLES[n][p]: brand of a number whose first n digits are p, using only prefixes of at most n digits
+    private static final byte[][] BRAND_TABLES = buildBrandTables();
+
+    private static byte[][] buildBrandTables() {
+        final byte[][] tables = new byte[TABLE_DIGITS + 1][];
+        int size = 1;
+        for (int digits = 1; digits <= TABLE_DIGITS; digits++) {
+            size *= 10;
+            tables[digits] = new byte[size];
+            // lowest priority first, so higher priority brands overwrite shared ranges
+            for (int brandIndex = PREFIXES.length - 1; brandIndex >= 0; brandIndex--) {
+                for (String prefix : PREFIXES[brandIndex]) {
+                    if (prefix.length() > digits) {
+                        continue;
+                    }
+                    int scale = 1;
+                    for (int i = prefix.length(); i < digits; i++) {
+                        scale *= 10;
+                    }
+                    final int from = Integer.parseInt(prefix) * scale;
+                    for (int value = from; value < from + scale; value++) {
+                        tables[digits][value] = (byte) (brandIndex + 1);
+                    }
+                }
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Brand of a possibly partial card number; spaces and hyphens are ignored.
+     */
+    static int brandOf(@Nullable CharSequence number) {
+        if (number == null) {
+            return BRAND_UNKNOWN;
+        }
+        int prefix = 0;
+        int digits = 0;
+        for (int i = 0, length = number.length(); i < length && digits < TABLE_DIGITS; i++) {
+            final char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                prefix = prefix * 10 + (c - '0');
+                digits++;
+            } else if (c != ' ' && c != '-') {
+                return BRAND_UNKNOWN;
+            }
+        }
+        return digits == 0 ? BRAND_UNKNOWN : BRAND_TABLES[digits][prefix];
+    }
+
+    @NonNull
+    static String brandName(int brand) {
+        return BRAND_NAMES[brand];
+    }
+
+    /**
+     * @return the number of digits, or -1 if there is anything but digits, spaces and hyphens
+     */
+    static int digitCount(@Nullable CharSequence number) {
+        if (number == null) {
+            return -1;
+        }
+        int digits = 0;
+        for (int i = 0, length = number.length(); i < length; i++) {
+            final char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+            } else if (c != ' ' && c != '-') {
+                return -1;
+            }
+        }
+        return digits;
+    }
+
+    static boolean isValidLuhn(@Nullable CharSequence number) {
+        if (number == null) {
+            return false;
+        }
+        int sum = 0;
+        int digits = 0;
+        for (int i = number.length() - 1; i >= 0; i--) {
+            final char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                int digit = c - '0';
+                if ((digits & 1) == 1) {
+                    digit *= 2;
+                    if (digit > 9) {
+                        digit -= 9;
+                    }
+                }
+                sum += digit;
+                digits++;
+            } else if (c != ' ' && c != '-') {
+                return false;
+            }
+        }
+        return digits > 0 && sum % 10 == 0;
+    }
+
+    static boolean isValidLength(int brand, int digitCount) {
+        return digitCount >= MIN_LENGTH[brand] && digitCount <= MAX_LENGTH[brand];
+    }
+
+    /**
+     * @return the Stripe error code of the first problem, or null if the number, expiry and cvc
+     * look valid; a missing cvc is left for Stripe to judge
+     */
+    @Nullable
+    static String validate(@Nullable CharSequence number, @Nullable Integer expMonth, @Nullable Integer expYear,
+                           @Nullable CharSequence cvc) {
+        final int brand = brandOf(number);
+        final String numberError = validateNumber(number, brand);
+        if (numberError != null) {
+            return numberError;
+        }
+        if (expMonth == null || expMonth < 1 || expMonth > 12) {
+            return INVALID_EXPIRY_MONTH;
+        }
+        if (expYear == null) {
+            return INVALID_EXPIRY_YEAR;
+        }
+        final int year = expYear < 100 ? 2000 + expYear : expYear;
+        final Calendar now = Calendar.getInstance();
+        final int currentYear = now.get(Calendar.YEAR);
+        if (year < currentYear) {
+            return INVALID_EXPIRY_YEAR;
+        }
+        if (year == currentYear && expMonth < now.get(Calendar.MONTH) + 1) {
+            return INVALID_EXPIRY_MONTH;
+        }
+        if (cvc != null && cvc.length() > 0 && !isValidCvc(brand, cvc)) {
+            return INVALID_CVC;
+        }
+        return null;
+    }
+
+    private static boolean isValidCvc(int brand, CharSequence cvc) {
+        final int length = cvc.length();
+        if (length != (brand == BRAND_AMERICAN_EXPRESS ? 4 : 3) && !(brand == BRAND_UNKNOWN && length == 4)) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            final char c = cvc.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Validation report for the validateCard method: {brand, luhn_valid, length_valid, valid, error}.
+     */
+    @NonNull
+    static Map<String, Object> report(@Nullable String number, @Nullable Integer expMonth, @Nullable Integer expYear,
+                                      @Nullable String cvc) {
+        final int brand = brandOf(number);
+        Map<String, Object> report = new HashMap<>();
+        report.put("brand", brandName(brand));
+        report.put("luhn_valid", isValidLuhn(number));
+        report.put("length_valid", isValidLength(brand, digitCount(number)));
+        final String error = expMonth == null && expYear == null
+                ? validateNumber(number, brand)
+                : validate(number, expMonth, expYear, cvc);
+        report.put("valid", error == null);
+        report.put("error", error);
+        return report;
+    }
+
+    private static String validateNumber(CharSequence number, int brand) {
+        // some UnionPay cards are not Luhn valid
+        if (!isValidLength(brand, digitCount(number)) || (brand != BRAND_UNIONPAY && !isValidLuhn(number))) {
+            return INVALID_NUMBER;
+        }
+        return null;
+    }
+}
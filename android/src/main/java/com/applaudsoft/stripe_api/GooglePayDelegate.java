@@ -2,14 +2,13 @@ package com.applaudsoft.stripe_api;
 
 import android.app.Activity;
 import android.content.Intent;
-import android.util.Log;
+import android.os.SystemClock;
 
 import com.google.android.gms.common.api.ApiException;
 import com.google.android.gms.common.api.Status;
 import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.Task;
 import com.google.android.gms.wallet.AutoResolveHelper;
-import com.google.android.gms.wallet.IsReadyToPayRequest;
 import com.google.android.gms.wallet.PaymentData;
 import com.google.android.gms.wallet.PaymentDataRequest;
 import com.google.android.gms.wallet.PaymentMethodTokenizationParameters;
@@ -17,31 +16,33 @@ import com.google.android.gms.wallet.PaymentsClient;
 import com.google.android.gms.wallet.TransactionInfo;
 import com.google.android.gms.wallet.Wallet;
 import com.google.android.gms.wallet.WalletConstants;
-import com.stripe.android.GooglePayConfig;
 import com.stripe.android.model.Card;
 import com.stripe.android.model.PaymentMethod;
 import com.stripe.android.model.StripeMapUtil;
 import com.stripe.android.model.Token;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.PluginRegistry;
 
 public class GooglePayDelegate implements PluginRegistry.ActivityResultListener {
+    private static final String FLOW = "cardFromGooglePay";
 
+    private final PaymentEventStream events;
+    private final PluginMetrics metrics;
+    private final PluginLog log;
     private Activity activity;
     private PaymentsClient paymentsClient;
     private String stripeApiKey;
+    private GooglePayRequestTemplate requestTemplate;
 
     private static final int LOAD_PAYMENT_DATA_REQUEST_CODE = 100;
     private static final List<Integer> GPAY_ALLOWED_CARD_NETWORKS = Arrays.asList(
@@ -53,29 +54,103 @@ public class GooglePayDelegate implements PluginRegistry.ActivityResultListener
             WalletConstants.CARD_NETWORK_VISA,
             WalletConstants.CARD_NETWORK_MASTERCARD);
     private static final List<Integer> GPAY_ALLOWED_PAY_METHODS = Arrays.asList(WalletConstants.PAYMENT_METHOD_CARD, WalletConstants.PAYMENT_METHOD_TOKENIZED_CARD);
+    private static final long DEFAULT_READINESS_TTL_MS = 5 * 60 * 1000;
     private MethodChannel.Result pendingResult;
+    private boolean pendingResultBinary;
+    // answer with the token JSON bytes only
+    private boolean pendingResultRaw;
+    // fields of the result map to answer with, null for all
+    private StripeMapUtil.Projection pendingResultProjection;
+    private String pendingFlowId;
+    private long pendingSheetStartNanos;
+
+    // isReadyToPay verdict, valid for readinessTtlMs and dropped whenever the activity or key changes
+    private long readinessTtlMs = DEFAULT_READINESS_TTL_MS;
+    private Boolean cachedReadiness;
+    private long cachedReadinessAtMs;
+    private int readinessGeneration;
+    private List<MethodChannel.Result> pendingReadinessResults;
+    private int readinessCacheHits;
+    private int readinessCacheMisses;
+    private int readinessCoalesced;
+
+    GooglePayDelegate(PaymentEventStream events, PluginMetrics metrics, PluginLog log) {
+        this.events = events;
+        this.metrics = metrics;
+        this.log = log;
+    }
 
     public void setActivity(Activity activity) {
+        if (this.activity != activity) {
+            // PaymentsClient is bound to the activity it was created with
+            paymentsClient = null;
+            invalidateReadiness();
+        }
         this.activity = activity;
     }
 
+    /**
+     * The activity is gone for good, not just recreated for a configuration change: the sheet's
+     * result can no longer arrive, so the pending call fails instead of blocking later ones.
+     */
+    public void detachActivity() {
+        setActivity(null);
+        sendError("Activity detached", "The activity was destroyed before Google Pay returned", null);
+    }
+
+    public void setReadinessTtl(long ttlMs) {
+        readinessTtlMs = ttlMs;
+    }
+
+    public Map<String, Object> getReadinessStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("hits", readinessCacheHits);
+        stats.put("misses", readinessCacheMisses);
+        stats.put("coalesced", readinessCoalesced);
+        stats.put("ttl_ms", readinessTtlMs);
+        return stats;
+    }
+
+    private void invalidateReadiness() {
+        cachedReadiness = null;
+        readinessGeneration++;
+        // a check in flight still answers its own callers, but later ones start a fresh check
+        pendingReadinessResults = null;
+    }
+
     @Override
     public boolean onActivityResult(int requestCode, int resultCode, Intent data) {
-        Log.d("tag", "onActivityResult, requestCode: " + requestCode + ", resultCode: " + resultCode + ", data: " + data);
+        log.log(PluginLog.DEBUG, "gpay.on_activity_result", requestCode, resultCode);
+        PluginMetrics.Span resultSpan = metrics.begin("gpay.", "on_activity_result");
         switch (requestCode) {
             case LOAD_PAYMENT_DATA_REQUEST_CODE:
+                metrics.recordSince("gpay.", "sheet", pendingSheetStartNanos);
+                pendingSheetStartNanos = 0;
                 switch (resultCode) {
                     case Activity.RESULT_OK:
                         PaymentData paymentData = PaymentData.getFromIntent(data);
+                        PluginMetrics.Span span = null;
                         try {
-                            JSONObject paymentDataJson = new JSONObject(paymentData.toJson());
-                            Token stripeToken = StripeMapUtil.GooglePayUtil.tokenFromGooglePay(paymentDataJson);
-                            PaymentMethod.BillingDetails billingDetails = null;
-                            try {
-                                billingDetails = StripeMapUtil.GooglePayUtil.billingDetailsFromGooglePay(paymentDataJson);
-                            } catch (Exception e) {
-                                e.printStackTrace();
+                            if (pendingResultRaw) {
+                                span = metrics.begin("gpay.", "raw_token");
+                                byte[] rawToken = GooglePayPaymentData.rawToken(paymentData.toJson());
+                                metrics.end(span);
+                                emitStage("token_received");
+                                sendSuccess(rawToken);
+                                break;
                             }
+                            span = metrics.begin("gpay.", "parse_payment_data");
+                            GooglePayPaymentData parsed = GooglePayPaymentData.parse(paymentData.toJson());
+                            metrics.end(span);
+                            Token stripeToken = parsed.token;
+                            if (stripeToken != null && pendingFlowId != null && events.isListening()) {
+                                // the token is all the server needs, don't make it wait for the billing address
+                                Map<String, Object> tokenData = new HashMap<>();
+                                tokenData.put("token", stripeToken.getId());
+                                events.emit(FLOW, pendingFlowId, "token_received", tokenData);
+                            }
+                            PaymentMethod.BillingDetails billingDetails = parsed.billingDetails;
+                            emitStage("billing_parsed");
                             // You can get some data on the user's card, such as the brand and last 4 digits
 //                        CardInfo info = paymentData.getCardInfo();
                             // You can also pull the user address from the PaymentData object.
@@ -83,25 +158,44 @@ public class GooglePayDelegate implements PluginRegistry.ActivityResultListener
                             // This is the raw JSON string version of your Stripe token.
 //                            String rawToken = paymentData.getPaymentMethodToken().getToken();
 //                            Token stripeToken = Token.fromString(rawToken);
-                            if (stripeToken != null) {
+                            if (stripeToken != null && pendingResultBinary) {
+                                span = metrics.begin("gpay.", "encode_binary");
+                                byte[] encoded = StripeMapUtil.BinaryUtil.encodeGooglePayResult(stripeToken,
+                                        billingDetails != null ? billingDetails.address : null);
+                                metrics.end(span);
+                                sendSuccess(encoded);
+                            } else if (stripeToken != null) {
+                                span = metrics.begin("gpay.", "encode_map");
                                 Card card = stripeToken.getCard();
+                                StripeMapUtil.Projection projection = pendingResultProjection;
                                 Map<String, Object> resultMap = new HashMap<>();
-                                resultMap.put("card", StripeMapUtil.CardUtil.toMap(card));
-                                resultMap.put("token", stripeToken.getId());
-                                if (billingDetails != null && billingDetails.address != null) {
-                                    resultMap.put("billing_address", billingDetails.address.toParamMap());
+                                if (StripeMapUtil.Projection.includes(projection, "card")) {
+                                    resultMap.put("card", StripeMapUtil.CardUtil.toMap(card,
+                                            StripeMapUtil.Projection.nested(projection, "card")));
+                                }
+                                if (StripeMapUtil.Projection.includes(projection, "token")) {
+                                    StripeMapUtil.putIfNotEmpty(resultMap, "token", stripeToken.getId());
                                 }
-                                StripeApiPlugin.removeNullAndEmptyParamsIncl(resultMap);
+                                if (billingDetails != null && billingDetails.address != null
+                                        && StripeMapUtil.Projection.includes(projection, "billing_address")) {
+                                    resultMap.put("billing_address", StripeMapUtil.Projection.filter(projection, "billing_address",
+                                            StripeMapUtil.AddressUtil.toMap(billingDetails.address)));
+                                }
+                                metrics.end(span);
                                 sendSuccess(resultMap);
                             } else {
                                 sendSuccess(null);
                             }
                         } catch (Exception e) {
-                            e.printStackTrace();
+                            // closes the trace section the failing stage left open
+                            metrics.end(span);
+                            log.log(PluginLog.ERROR, "gpay.load_payment_data", e);
                             sendError("Google Pay error: " + e.getMessage(), null, null);
                         }
                         break;
                     case Activity.RESULT_CANCELED:
+                        emitStage(PaymentEventStream.STAGE_CANCELLED);
+                        pendingFlowId = null;
                         sendSuccess(null);
                         break;
                     case AutoResolveHelper.RESULT_ERROR:
@@ -115,11 +209,41 @@ public class GooglePayDelegate implements PluginRegistry.ActivityResultListener
                 }
                 break;
         }
+        metrics.end(resultSpan);
         return true;
     }
 
+    /**
+     * Takes a template built off the platform thread, unless one is already set.
+     */
+    void adoptRequestTemplate(@NonNull GooglePayRequestTemplate template) {
+        if (requestTemplate == null) {
+            requestTemplate = template;
+            stripeApiKey = template.publishableKey;
+        }
+    }
+
+    /**
+     * Takes a client built off the platform thread for {@code activity}, if it is still the current one.
+     */
+    void adoptPaymentsClient(Activity activity, @NonNull PaymentsClient client) {
+        if (this.activity == activity && paymentsClient == null) {
+            paymentsClient = client;
+        }
+    }
+
     public void setStripeApiKey(String stripeApiKey) {
         this.stripeApiKey = stripeApiKey;
+        if (requestTemplate != null && requestTemplate.publishableKey.equals(stripeApiKey)) {
+            return;
+        }
+        invalidateReadiness();
+        try {
+            requestTemplate = new GooglePayRequestTemplate(stripeApiKey);
+        } catch (Exception e) {
+            log.log(PluginLog.ERROR, "gpay.request_template", e);
+            requestTemplate = null;
+        }
     }
 
     public void isGooglePayAvailable(final MethodChannel.Result result) {
@@ -131,124 +255,108 @@ public class GooglePayDelegate implements PluginRegistry.ActivityResultListener
 //                .addAllowedPaymentMethod(WalletConstants.PAYMENT_METHOD_CARD)
 //                .addAllowedPaymentMethod(WalletConstants.PAYMENT_METHOD_TOKENIZED_CARD)
 //                .build();
+        if (requestTemplate == null) {
+            result.error("Stripe publishableKey not set", null, null);
+            return;
+        }
+        if (cachedReadiness != null && SystemClock.elapsedRealtime() - cachedReadinessAtMs < readinessTtlMs) {
+            readinessCacheHits++;
+            result.success(cachedReadiness);
+            return;
+        }
+        if (pendingReadinessResults != null) {
+            // a check is already in flight, wait for its verdict instead of issuing another one
+            readinessCoalesced++;
+            pendingReadinessResults.add(result);
+            return;
+        }
+        readinessCacheMisses++;
+        final List<MethodChannel.Result> callers = new ArrayList<>();
+        callers.add(result);
+        pendingReadinessResults = callers;
+        final int generation = readinessGeneration;
+        final long checkStartNanos = metrics.now();
         try {
-            final JSONObject tokenizationSpec = new GooglePayConfig(stripeApiKey).getTokenizationSpecification();
-            final JSONObject cardPaymentMethod = new JSONObject()
-                    .put("type", "CARD")
-                    .put(
-                            "parameters",
-                            new JSONObject()
-                                    .put("allowedAuthMethods", allowedAuthMethodsJson())
-                                    .put("allowedCardNetworks", allowedCardNetworksJson())
-                    )
-                    .put("tokenizationSpecification", tokenizationSpec);
-            final JSONObject request = new JSONObject()
-                    .put("apiVersion", 2)
-                    .put("apiVersionMinor", 0)
-                    .put("allowedPaymentMethods",
-                            new JSONArray().put(cardPaymentMethod));
-
-            Task<Boolean> task = getPaymentClient().isReadyToPay(IsReadyToPayRequest.fromJson(request.toString()));
+            Task<Boolean> task = getPaymentClient().isReadyToPay(requestTemplate.getIsReadyToPayRequest());
             task.addOnCompleteListener(new OnCompleteListener<Boolean>() {
                 @Override
                 public void onComplete(@NonNull Task<Boolean> taskRes) {
+                    metrics.recordSince("gpay.", "is_ready_to_pay", checkStartNanos);
                     try {
                         Boolean res = taskRes.getResult(ApiException.class);
-                        result.success(res == Boolean.TRUE);
+                        boolean ready = res == Boolean.TRUE;
+                        if (generation == readinessGeneration) {
+                            cachedReadiness = ready;
+                            cachedReadinessAtMs = SystemClock.elapsedRealtime();
+                        }
+                        completeReadiness(callers, ready, null);
                     } catch (Exception exception) {
-                        exception.printStackTrace();
-                        result.error(exception.getMessage(), null, null);
+                        log.log(PluginLog.WARN, "gpay.is_ready_to_pay", exception);
+                        completeReadiness(callers, null, exception.getMessage());
                     }
                 }
             });
         } catch (Exception e) {
-            e.printStackTrace();
-            result.error(e.getMessage(), null, null);
+            log.log(PluginLog.WARN, "gpay.is_ready_to_pay", e);
+            completeReadiness(callers, null, e.getMessage());
         }
     }
 
-    public void cardFromGooglePay(boolean billingAddressRequired, Double amount, final MethodChannel.Result result) {
+    private void completeReadiness(List<MethodChannel.Result> callers, Boolean ready, String error) {
+        if (pendingReadinessResults == callers) {
+            pendingReadinessResults = null;
+        }
+        for (MethodChannel.Result result : callers) {
+            if (error == null) {
+                result.success(ready);
+            } else {
+                result.error(error, null, null);
+            }
+        }
+    }
+
+    /**
+     * @param flowId identifies the stage events of this call on the event stream
+     */
+    public void cardFromGooglePay(boolean billingAddressRequired, Double amount, boolean binary, boolean raw,
+                                  @Nullable StripeMapUtil.Projection projection, String flowId,
+                                  final MethodChannel.Result result) {
         PaymentDataRequest request = createPaymentDataRequest(billingAddressRequired, amount);
         if (request != null) {
             if (pendingResult != null) {
-                sendError("Request in progress", null, null);
+                // only one payment sheet can be shown, reject the newcomer and keep the pending one
+                result.error("Request in progress", null, null);
+                return;
             }
             pendingResult = result;
-            AutoResolveHelper.resolveTask(
-                    paymentsClient.loadPaymentData(request),
-                    activity,
-                    LOAD_PAYMENT_DATA_REQUEST_CODE);
+            pendingResultBinary = binary;
+            pendingResultRaw = raw;
+            pendingResultProjection = projection;
+            pendingFlowId = flowId;
+            emitStage(PaymentEventStream.STAGE_STARTED);
+            pendingSheetStartNanos = metrics.now();
+            try {
+                AutoResolveHelper.resolveTask(
+                        getPaymentClient().loadPaymentData(request),
+                        activity,
+                        LOAD_PAYMENT_DATA_REQUEST_CODE);
+            } catch (Exception e) {
+                // no result will ever arrive, don't leave later calls blocked behind this one
+                log.log(PluginLog.ERROR, "gpay.load_payment_data", e);
+                sendError("Google Pay error: " + e.getMessage(), null, null);
+                return;
+            }
+            emitStage("sheet_requested");
         } else {
             result.error("PaymentDataRequest == null", null, null);
         }
     }
 
     private PaymentDataRequest createPaymentDataRequest(boolean billingAddressRequired, Double amount) {
-
-        try {
-            final JSONObject tokenizationSpec = new GooglePayConfig(stripeApiKey).getTokenizationSpecification();
-            final JSONObject cardPaymentMethod = new JSONObject()
-                    .put("type", "CARD")
-                    .put(
-                            "parameters",
-                            new JSONObject()
-                                    .put("allowedAuthMethods", allowedAuthMethodsJson())
-                                    .put("allowedCardNetworks", allowedCardNetworksJson())
-                                    // require billing address
-                                    .put("billingAddressRequired", billingAddressRequired)
-                                    .put(
-                                            "billingAddressParameters",
-                                            new JSONObject()
-                                                    // require full billing address
-                                                    .put("format", "MIN")
-                                    )
-                    )
-                    .put("tokenizationSpecification", tokenizationSpec);
-
-            // create PaymentDataRequest
-            final String paymentDataRequest = new JSONObject()
-                    .put("apiVersion", 2)
-                    .put("apiVersionMinor", 0)
-                    .put("allowedPaymentMethods",
-                            new JSONArray().put(cardPaymentMethod))
-//                    .put("transactionInfo", new JSONObject()
-////                            .put("totalPrice", "10.00")
-//                                    .put("totalPriceStatus", "NOT_CURRENTLY_KNOWN")
-//                                    .put("currencyCode", "USD")
-//                    )
-                    .put("transactionInfo", new JSONObject()
-                            .put("totalPrice", String.valueOf(amount))
-                            .put("totalPriceStatus", "ESTIMATED")
-                            .put("currencyCode", "USD")
-                    )
-                    .put("merchantInfo", new JSONObject()
-                            .put("merchantName", "Wabi"))
-
-                    // require email address
-//                    .put("emailRequired", true)
-                    .toString();
-
-            return PaymentDataRequest.fromJson(paymentDataRequest);
-        } catch (JSONException e) {
-            e.printStackTrace();
+        if (requestTemplate == null) {
             return null;
         }
-    }
-
-    private JSONArray allowedAuthMethodsJson() {
-        return new JSONArray()
-                .put("PAN_ONLY")
-                .put("CRYPTOGRAM_3DS");
-    }
-
-    private JSONArray allowedCardNetworksJson() {
-        return new JSONArray()
-                .put("AMEX")
-                .put("DISCOVER")
-                .put("INTERAC")
-                .put("JCB")
-                .put("MASTERCARD")
-                .put("VISA");
+        return requestTemplate.createPaymentDataRequest(billingAddressRequired, amount);
     }
 
 //    private PaymentDataRequest createPaymentDataRequest(boolean billingAddressRequired) {
@@ -311,32 +419,51 @@ public class GooglePayDelegate implements PluginRegistry.ActivityResultListener
 
     private PaymentsClient getPaymentClient() {
         if (paymentsClient == null) {
-            paymentsClient = Wallet.getPaymentsClient(activity,
-                    new Wallet.WalletOptions.Builder()
+            paymentsClient = createPaymentsClient(activity);
+        }
+        return paymentsClient;
+    }
+
+    static PaymentsClient createPaymentsClient(Activity activity) {
+        return Wallet.getPaymentsClient(activity,
+                new Wallet.WalletOptions.Builder()
 //                        .setEnvironment(WalletConstants.ENVIRONMENT_TEST)
 //                            .setEnvironment(WalletConstants.ENVIRONMENT_PRODUCTION)
                         .setEnvironment(BuildConfig.DEBUG ? WalletConstants.ENVIRONMENT_TEST : WalletConstants.ENVIRONMENT_PRODUCTION)
-                            .build());
+                        .build());
+    }
+
+    private void emitStage(String stage) {
+        if (pendingFlowId != null) {
+            events.emit(FLOW, pendingFlowId, stage);
         }
-        return paymentsClient;
     }
 
     private void sendSuccess(Object o) {
         if (pendingResult != null) {
             try {
                 pendingResult.success(o);
+                emitStage(PaymentEventStream.STAGE_COMPLETED);
             } catch (Exception e) {
                 String message = e.getMessage() != null ? e.getMessage() : e.toString();
                 pendingResult.error(null, message, null);
+                emitStage(PaymentEventStream.STAGE_FAILED);
             }
         }
         pendingResult = null;
+        pendingFlowId = null;
     }
 
     private void sendError(String s, String s1, Object o) {
         if (pendingResult != null) {
             pendingResult.error(s, s1, o);
+            if (pendingFlowId != null && events.isListening()) {
+                Map<String, Object> data = new HashMap<>();
+                data.put("message", s);
+                events.emit(FLOW, pendingFlowId, PaymentEventStream.STAGE_FAILED, data);
+            }
         }
         pendingResult = null;
+        pendingFlowId = null;
     }
 }
@@ -0,0 +1,204 @@
+package com.applaudsoft.stripe_api;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.stripe.android.model.Address;
+import com.stripe.android.model.PaymentMethod;
+import com.stripe.android.model.Token;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * The parts of a Google Pay PaymentData we return, read in a single streaming pass over
+ * {@code PaymentData.toJson()}: the Stripe token and the billing details. Everything else is skipped
+ * without being materialized; only the embedded token JSON is parsed, once, for {@link Token#fromJson}.
+ * Results match {@code StripeMapUtil.GooglePayUtil.tokenFromGooglePay}/{@code billingDetailsFromGooglePay}.
+ */
+class GooglePayPaymentData {
+    @Nullable
+    final Token token;
+    // null when PaymentData has no paymentMethodData.info
+    @Nullable
+    final PaymentMethod.BillingDetails billingDetails;
+
+    private GooglePayPaymentData(@Nullable Token token, @Nullable PaymentMethod.BillingDetails billingDetails) {
+        this.token = token;
+        this.billingDetails = billingDetails;
+    }
+
+    @NonNull
+    static GooglePayPaymentData parse(@NonNull String paymentDataJson) throws IOException, JSONException {
+        final Fields fields = readFields(paymentDataJson);
+        return new GooglePayPaymentData(Token.fromJson(new JSONObject(fields.token)), fields.toBillingDetails());
+    }
+
+    /**
+     * The Stripe token JSON exactly as Google Pay returned it, as UTF-8, for callers that forward it
+     * to their server; nothing is parsed beyond locating it.
+     */
+    @NonNull
+    static byte[] rawToken(@NonNull String paymentDataJson) throws IOException, JSONException {
+        return readFields(paymentDataJson).token.getBytes(Charset.forName("UTF-8"));
+    }
+
+    private static Fields readFields(String paymentDataJson) throws IOException, JSONException {
+        final Fields fields = new Fields();
+        final JsonReader reader = new JsonReader(new StringReader(paymentDataJson));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if ("paymentMethodData".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    readPaymentMethodData(reader, fields);
+                } else if ("email".equals(name)) {
+                    fields.email = nextString(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+        if (fields.token == null) {
+            throw new JSONException("PaymentData has no paymentMethodData.tokenizationData.token");
+        }
+        return fields;
+    }
+
+    private static void readPaymentMethodData(JsonReader reader, Fields fields) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if ("tokenizationData".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("token".equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+                        fields.token = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if ("info".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                fields.hasInfo = true;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("billingAddress".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        readBillingAddress(reader, fields);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void readBillingAddress(JsonReader reader, Fields fields) throws IOException {
+        fields.hasBillingAddress = true;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            switch (name) {
+                case "address1":
+                    fields.line1 = nextString(reader);
+                    break;
+                case "address2":
+                    fields.line2 = nextString(reader);
+                    break;
+                case "locality":
+                    fields.city = nextString(reader);
+                    break;
+                case "administrativeArea":
+                    fields.state = nextString(reader);
+                    break;
+                case "countryCode":
+                    fields.country = nextString(reader);
+                    break;
+                case "postalCode":
+                    fields.postalCode = nextString(reader);
+                    break;
+                case "name":
+                    fields.name = nextString(reader);
+                    break;
+                case "phoneNumber":
+                    fields.phone = nextString(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Like {@link JSONObject#optString(String)}, "" for null values; nested structures, which Google
+     * Pay never sends for these fields, are skipped and read as "" too.
+     */
+    private static String nextString(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+            case NUMBER:
+                return reader.nextString();
+            case BOOLEAN:
+                return String.valueOf(reader.nextBoolean());
+            default:
+                reader.skipValue();
+                return "";
+        }
+    }
+
+    private static final class Fields {
+        String token;
+        String email = "";
+        boolean hasInfo;
+        boolean hasBillingAddress;
+        String line1 = "";
+        String line2 = "";
+        String city = "";
+        String state = "";
+        String country = "";
+        String postalCode = "";
+        String name = "";
+        String phone = "";
+
+        PaymentMethod.BillingDetails toBillingDetails() {
+            if (!hasInfo) {
+                return null;
+            }
+            if (!hasBillingAddress) {
+                return new PaymentMethod.BillingDetails.Builder()
+                        .setEmail(email)
+                        .build();
+            }
+            final Address billingAddress = new Address.Builder()
+                    .setLine1(line1)
+                    .setLine2(line2)
+                    .setCity(city)
+                    .setState(state)
+                    .setCountry(country)
+                    .setPostalCode(postalCode)
+                    .build();
+            return new PaymentMethod.BillingDetails.Builder()
+                    .setAddress(billingAddress)
+                    .setName(name)
+                    .setEmail(email)
+                    .setPhone(phone)
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.applaudsoft.stripe_api;
+
+import com.google.android.gms.wallet.IsReadyToPayRequest;
+import com.google.android.gms.wallet.PaymentDataRequest;
+import com.stripe.android.GooglePayConfig;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Google Pay request JSON precompiled for a single publishable key.
+ * Everything except the transaction amount is serialized once, so a per-call
+ * {@link PaymentDataRequest} is a string concatenation away.
+ */
+class GooglePayRequestTemplate {
+    private static final String TOTAL_PRICE_PLACEHOLDER = "__total_price__";
+
+    final String publishableKey;
+    private final IsReadyToPayRequest isReadyToPayRequest;
+    // indexed by billingAddressRequired ? 1 : 0
+    private final String[] paymentDataRequestPrefix = new String[2];
+    private final String[] paymentDataRequestSuffix = new String[2];
+
+    GooglePayRequestTemplate(@NonNull String publishableKey) throws JSONException {
+        this.publishableKey = publishableKey;
+        final JSONObject tokenizationSpec = new GooglePayConfig(publishableKey).getTokenizationSpecification();
+
+        final JSONObject readyToPayRequest = new JSONObject()
+                .put("apiVersion", 2)
+                .put("apiVersionMinor", 0)
+                .put("allowedPaymentMethods", new JSONArray().put(new JSONObject()
+                        .put("type", "CARD")
+                        .put(
+                                "parameters",
+                                new JSONObject()
+                                        .put("allowedAuthMethods", allowedAuthMethodsJson())
+                                        .put("allowedCardNetworks", allowedCardNetworksJson())
+                        )
+                        .put("tokenizationSpecification", tokenizationSpec)));
+        isReadyToPayRequest = IsReadyToPayRequest.fromJson(readyToPayRequest.toString());
+
+        compilePaymentDataRequest(false, tokenizationSpec);
+        compilePaymentDataRequest(true, tokenizationSpec);
+    }
+
+    @NonNull
+    IsReadyToPayRequest getIsReadyToPayRequest() {
+        return isReadyToPayRequest;
+    }
+
+    @NonNull
+    PaymentDataRequest createPaymentDataRequest(boolean billingAddressRequired, Double amount) {
+        final int index = billingAddressRequired ? 1 : 0;
+        return PaymentDataRequest.fromJson(paymentDataRequestPrefix[index]
+                + JSONObject.quote(String.valueOf(amount))
+                + paymentDataRequestSuffix[index]);
+    }
+
+    private void compilePaymentDataRequest(boolean billingAddressRequired, JSONObject tokenizationSpec) throws JSONException {
+        final JSONObject cardPaymentMethod = new JSONObject()
+                .put("type", "CARD")
+                .put(
+                        "parameters",
+                        new JSONObject()
+                                .put("allowedAuthMethods", allowedAuthMethodsJson())
+                                .put("allowedCardNetworks", allowedCardNetworksJson())
+                                // require billing address
+                                .put("billingAddressRequired", billingAddressRequired)
+                                .put(
+                                        "billingAddressParameters",
+                                        new JSONObject()
+                                                // require full billing address
+                                                .put("format", "MIN")
+                                )
+                )
+                .put("tokenizationSpecification", tokenizationSpec);
+
+        final String paymentDataRequest = new JSONObject()
+                .put("apiVersion", 2)
+                .put("apiVersionMinor", 0)
+                .put("allowedPaymentMethods",
+                        new JSONArray().put(cardPaymentMethod))
+                .put("transactionInfo", new JSONObject()
+                        .put("totalPrice", TOTAL_PRICE_PLACEHOLDER)
+                        .put("totalPriceStatus", "ESTIMATED")
+                        .put("currencyCode", "USD")
+                )
+                .put("merchantInfo", new JSONObject()
+                        .put("merchantName", "Wabi"))
+                .toString();
+
+        final String quotedPlaceholder = JSONObject.quote(TOTAL_PRICE_PLACEHOLDER);
+        final int start = paymentDataRequest.indexOf(quotedPlaceholder);
+        final int index = billingAddressRequired ? 1 : 0;
+        paymentDataRequestPrefix[index] = paymentDataRequest.substring(0, start);
+        paymentDataRequestSuffix[index] = paymentDataRequest.substring(start + quotedPlaceholder.length());
+    }
+
+    private static JSONArray allowedAuthMethodsJson() {
+        return new JSONArray()
+                .put("PAN_ONLY")
+                .put("CRYPTOGRAM_3DS");
+    }
+
+    private static JSONArray allowedCardNetworksJson() {
+        return new JSONArray()
+                .put("AMEX")
+                .put("DISCOVER")
+                .put("INTERAC")
+                .put("JCB")
+                .put("MASTERCARD")
+                .put("VISA");
+    }
+}
@@ -0,0 +1,231 @@
+package com.applaudsoft.stripe_api;
+
+import android.os.SystemClock;
+
+import com.stripe.android.model.Source;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Sources by idempotency key: requests with a key that is in flight wait for that request instead
+ * of starting their own, and completed sources are served from a small LRU for {@code ttlMs}.
+ * Failures are not cached. Like Stripe, a key reused with different parameters is rejected with
+ * {@link #IDEMPOTENCY_ERROR}; the parameters are compared by a salted digest kept in memory only.
+ */
+class IdempotentSourceCache {
+    static final int DEFAULT_MAX_ENTRIES = 64;
+    static final long DEFAULT_TTL_MS = 10 * 60 * 1000;
+    static final String IDEMPOTENCY_ERROR = "idempotency_error";
+
+    interface Waiter {
+        void onSource(@NonNull Source source);
+
+        void onError(@NonNull String code, @Nullable String message);
+    }
+
+    private static final class Entry {
+        final Source source;
+        final byte[] fingerprint;
+        final long completedAtMs;
+
+        Entry(Source source, byte[] fingerprint, long completedAtMs) {
+            this.source = source;
+            this.fingerprint = fingerprint;
+            this.completedAtMs = completedAtMs;
+        }
+    }
+
+    private static final class InFlight {
+        final byte[] fingerprint;
+        final List<Waiter> waiters = new ArrayList<>();
+
+        InFlight(byte[] fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> completed = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    };
+    private final HashMap<String, InFlight> inFlight = new HashMap<>();
+    // per process, so a fingerprint can't be matched against card data outside it
+    private final byte[] salt = new byte[16];
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private long ttlMs = DEFAULT_TTL_MS;
+    private long hits;
+    private long coalesced;
+    private long misses;
+    private long mismatches;
+
+    IdempotentSourceCache() {
+        new SecureRandom().nextBytes(salt);
+    }
+
+    synchronized void configure(int maxEntries, long ttlMs) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.ttlMs = ttlMs;
+        while (completed.size() > this.maxEntries) {
+            completed.remove(completed.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * @param fingerprint of the request parameters, see {@link #fingerprint}
+     * @return true if the caller must run the request and report it with {@link #complete} or
+     * {@link #fail}; otherwise {@code waiter} is answered with the cached source, with the outcome
+     * of the request in flight, or with {@link #IDEMPOTENCY_ERROR} if either had other parameters
+     */
+    boolean acquire(@NonNull String key, @NonNull byte[] fingerprint, @NonNull Waiter waiter) {
+        final Source cached;
+        synchronized (this) {
+            final Entry entry = getCompleted(key);
+            if (entry == null) {
+                final InFlight request = inFlight.get(key);
+                if (request == null) {
+                    misses++;
+                    inFlight.put(key, new InFlight(fingerprint));
+                    return true;
+                }
+                if (Arrays.equals(request.fingerprint, fingerprint)) {
+                    coalesced++;
+                    request.waiters.add(waiter);
+                    return false;
+                }
+                cached = null;
+            } else {
+                cached = Arrays.equals(entry.fingerprint, fingerprint) ? entry.source : null;
+            }
+            if (cached != null) {
+                hits++;
+            } else {
+                mismatches++;
+            }
+        }
+        if (cached != null) {
+            waiter.onSource(cached);
+        } else {
+            waiter.onError(IDEMPOTENCY_ERROR,
+                    "Keys for idempotent requests can only be used with the same parameters they were first used with");
+        }
+        return false;
+    }
+
+    void complete(@NonNull String key, @NonNull Source source) {
+        final InFlight request;
+        synchronized (this) {
+            request = inFlight.remove(key);
+            if (request != null) {
+                completed.put(key, new Entry(source, request.fingerprint, SystemClock.elapsedRealtime()));
+            }
+        }
+        if (request != null) {
+            for (Waiter waiter : request.waiters) {
+                waiter.onSource(source);
+            }
+        }
+    }
+
+    /**
+     * Answers the requests waiting on {@code key} with the error the request in flight got.
+     */
+    void fail(@NonNull String key, @NonNull String code, @Nullable String message) {
+        final InFlight request;
+        synchronized (this) {
+            request = inFlight.remove(key);
+        }
+        if (request != null) {
+            for (Waiter waiter : request.waiters) {
+                waiter.onError(code, message);
+            }
+        }
+    }
+
+    /**
+     * A salted SHA-256 of {@code params} with map keys sorted. It never leaves the process: Stripe
+     * gets the caller's key, not anything derived from card data.
+     */
+    @NonNull
+    byte[] fingerprint(@NonNull Map<String, ?> params) {
+        final StringBuilder canonical = new StringBuilder();
+        appendCanonical(canonical, params);
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            return digest.digest(canonical.toString().getBytes(Charset.forName("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            // every Android release ships SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @NonNull
+    synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("hits", hits);
+        stats.put("coalesced", coalesced);
+        stats.put("misses", misses);
+        stats.put("mismatches", mismatches);
+        stats.put("size", completed.size());
+        stats.put("in_flight", inFlight.size());
+        stats.put("ttl_ms", ttlMs);
+        return stats;
+    }
+
+    private Entry getCompleted(String key) {
+        final Entry entry = completed.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - entry.completedAtMs >= ttlMs) {
+            completed.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    private static void appendCanonical(StringBuilder out, Object value) {
+        if (value instanceof Map) {
+            out.append('{');
+            for (Map.Entry<?, ?> entry : new TreeMap<>(stringKeys((Map<?, ?>) value)).entrySet()) {
+                out.append(entry.getKey()).append('=');
+                appendCanonical(out, entry.getValue());
+                out.append(',');
+            }
+            out.append('}');
+        } else if (value instanceof Collection) {
+            out.append('[');
+            for (Object item : (Collection<?>) value) {
+                appendCanonical(out, item);
+                out.append(',');
+            }
+            out.append(']');
+        } else {
+            out.append(value);
+        }
+    }
+
+    private static Map<String, Object> stringKeys(Map<?, ?> map) {
+        Map<String, Object> result = new HashMap<>();
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            result.put(String.valueOf(entry.getKey()), entry.getValue());
+        }
+        return result;
+    }
+}
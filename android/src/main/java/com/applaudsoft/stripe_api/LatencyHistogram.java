@@ -0,0 +1,97 @@
+package com.applaudsoft.stripe_api;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Lock-free latency histogram over microseconds with logarithmic buckets: four buckets per power
+ * of two, so percentiles are reported within 25% of the real value. Recording is a few atomic adds.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = bucketIndex(Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    void recordNanos(long nanos) {
+        final long micros = Math.max(0, nanos / 1000);
+        buckets.incrementAndGet(bucketIndex(micros));
+        totalMicros.addAndGet(micros);
+        long max;
+        while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+            // retry
+        }
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        totalMicros.set(0);
+        maxMicros.set(0);
+    }
+
+    /**
+     * {count, mean_ms, p50_ms, p95_ms, p99_ms, max_ms}; percentiles are bucket upper bounds, capped at the max.
+     * Concurrent recordings may or may not be included.
+     */
+    @NonNull
+    Map<String, Object> snapshot() {
+        final long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        final long max = maxMicros.get();
+        Map<String, Object> snapshot = new HashMap<>();
+        snapshot.put("count", total);
+        snapshot.put("mean_ms", total > 0 ? totalMicros.get() / 1e3 / total : 0.0);
+        snapshot.put("p50_ms", Math.min(max, percentileMicros(counts, total, 0.50)) / 1e3);
+        snapshot.put("p95_ms", Math.min(max, percentileMicros(counts, total, 0.95)) / 1e3);
+        snapshot.put("p99_ms", Math.min(max, percentileMicros(counts, total, 0.99)) / 1e3);
+        snapshot.put("max_ms", max / 1e3);
+        return snapshot;
+    }
+
+    private static long percentileMicros(long[] counts, long total, double quantile) {
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return bucketUpperBound(i);
+            }
+        }
+        return bucketUpperBound(counts.length - 1);
+    }
+
+    static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        final int octave = 63 - Long.numberOfLeadingZeros(micros);
+        final int subBucket = (int) ((micros >>> (octave - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return (octave - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int octave = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final int subBucket = index % SUB_BUCKETS;
+        final long width = 1L << (octave - SUB_BUCKET_BITS);
+        return ((SUB_BUCKETS + subBucket) * width) + width - 1;
+    }
+}
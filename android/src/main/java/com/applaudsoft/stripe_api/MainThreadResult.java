@@ -0,0 +1,66 @@
+package com.applaudsoft.stripe_api;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Result wrapper for handlers running on a background task queue: replies are always posted
+ * back to the platform thread, whatever thread produced them.
+ */
+class MainThreadResult implements MethodChannel.Result {
+    private final MethodChannel.Result result;
+    private final Handler mainHandler;
+
+    MainThreadResult(@NonNull MethodChannel.Result result, @NonNull Handler mainHandler) {
+        this.result = result;
+        this.mainHandler = mainHandler;
+    }
+
+    @Override
+    public void success(@Nullable final Object o) {
+        runOnMain(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.success(o);
+                } catch (Exception e) {
+                    String message = e.getMessage() != null ? e.getMessage() : e.toString();
+                    result.error(e.getClass().toString(), message, null);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void error(@NonNull final String errorCode, @Nullable final String errorMessage, @Nullable final Object errorDetails) {
+        runOnMain(new Runnable() {
+            @Override
+            public void run() {
+                result.error(errorCode, errorMessage, errorDetails);
+            }
+        });
+    }
+
+    @Override
+    public void notImplemented() {
+        runOnMain(new Runnable() {
+            @Override
+            public void run() {
+                result.notImplemented();
+            }
+        });
+    }
+
+    private void runOnMain(Runnable runnable) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            runnable.run();
+        } else {
+            mainHandler.post(runnable);
+        }
+    }
+}
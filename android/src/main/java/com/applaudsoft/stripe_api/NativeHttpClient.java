@@ -0,0 +1,164 @@
+package com.applaudsoft.stripe_api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import io.flutter.plugin.common.MethodChannel.Result;
+
+/**
+ * Executes the Dart StripeApiHandler's requests natively, over the platform's HttpURLConnection.
+ * Connections are kept alive and pooled per host by the platform, so consecutive customer calls
+ * reuse one TLS session instead of handshaking again, and gzip responses are decompressed
+ * transparently. Blocking I/O runs on a small pool; results are {status, headers, body}.
+ */
+class NativeHttpClient {
+    static final int MAX_CONCURRENT_REQUESTS = 4;
+    // same timeouts as stripe-android
+    private static final int CONNECT_TIMEOUT_MS = 30 * 1000;
+    private static final int READ_TIMEOUT_MS = 80 * 1000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final PluginMetrics metrics;
+    private final ThreadPoolExecutor executor;
+
+    NativeHttpClient(@NonNull PluginMetrics metrics) {
+        this.metrics = metrics;
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(MAX_CONCURRENT_REQUESTS, MAX_CONCURRENT_REQUESTS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                return new Thread(runnable, "stripe_api-http-" + threadCount.incrementAndGet());
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    void execute(@NonNull final String method, @NonNull final String url, @Nullable final Map<String, String> headers,
+                 @Nullable final String body, @NonNull final Result result) {
+        final long submittedAt = metrics.now();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    metrics.recordSince("http_queue_wait.", method, submittedAt);
+                    final long sentAt = metrics.now();
+                    final Map<String, Object> response;
+                    try {
+                        response = send(method, url, headers, body);
+                    } catch (Exception e) {
+                        // not just I/O: a non-HTTP URL or an invalid header must still answer Dart
+                        metrics.recordSince("http_request.", method, sentAt);
+                        result.error(e.getClass().toString(), e.getMessage(), null);
+                        return;
+                    }
+                    metrics.recordSince("http_request.", method, sentAt);
+                    result.success(response);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.error(e.getClass().toString(), "The HTTP client is closed", null);
+        }
+    }
+
+    @NonNull
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("active", executor.getActiveCount());
+        stats.put("queued", executor.getQueue().size());
+        stats.put("completed", executor.getCompletedTaskCount());
+        return stats;
+    }
+
+    void close() {
+        executor.shutdown();
+    }
+
+    private static Map<String, Object> send(String method, String url, Map<String, String> headers, String body)
+            throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        boolean completed = false;
+        try {
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setUseCaches(false);
+            if (headers != null) {
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    // left to the platform, which only decompresses when it asked for gzip itself
+                    if (!"Accept-Encoding".equalsIgnoreCase(header.getKey())) {
+                        connection.setRequestProperty(header.getKey(), header.getValue());
+                    }
+                }
+            }
+            if (body != null) {
+                final byte[] bytes = body.getBytes(UTF_8);
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(bytes.length);
+                final OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(bytes);
+                } finally {
+                    out.close();
+                }
+            }
+
+            final int status = connection.getResponseCode();
+            Map<String, Object> response = new HashMap<>();
+            response.put("status", status);
+            response.put("headers", responseHeaders(connection));
+            response.put("body", readBody(status >= 400 ? connection.getErrorStream() : connection.getInputStream()));
+            completed = true;
+            return response;
+        } finally {
+            // a fully read and closed body returns the connection to the pool; disconnect() would close it
+            if (!completed) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static Map<String, String> responseHeaders(HttpURLConnection connection) {
+        Map<String, String> headers = new HashMap<>();
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            // the status line is reported under a null name
+            if (header.getKey() != null && !header.getValue().isEmpty()) {
+                headers.put(header.getKey(), header.getValue().get(header.getValue().size() - 1));
+            }
+        }
+        return headers;
+    }
+
+    private static String readBody(@Nullable InputStream in) throws IOException {
+        if (in == null) {
+            return "";
+        }
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,565 @@
+package com.applaudsoft.stripe_api;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Base64;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Opt-in durable queue for source requests that failed because the device was offline.
+ * Requests are kept in an append-only log in no-backup storage, every record encrypted with an
+ * AES-GCM key that never leaves the AndroidKeyStore, and replayed with exponential backoff when
+ * connectivity returns. All state is confined to a single worker thread.
+ * The card CVC is never queued: PCI DSS forbids storing it, so replayed card sources are created
+ * without one and Stripe skips the cvc_check.
+ */
+class OfflineSourceQueue {
+    static final int DEFAULT_MAX_ENTRIES = 50;
+    private static final String FILE_NAME = "stripe_api_offline_queue.log";
+    private static final String KEY_ALIAS = "stripe_api_offline_queue";
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long ENTRY_MAX_AGE_MS = 24 * 60 * 60 * 1000; // Stripe keeps idempotency keys for 24h
+    private static final long BACKOFF_BASE_MS = 2000;
+    private static final long BACKOFF_MAX_MS = 5 * 60 * 1000;
+    private static final int MAX_REPLAYS_IN_FLIGHT = 2;
+    private static final int COMPACT_AFTER_DONE_RECORDS = 32;
+    // request arguments that are dropped before anything is queued
+    private static final String[] UNQUEUED_ARGS = {"cvc"};
+
+    interface Replayer {
+        /**
+         * Runs the request again; {@code callback} must be called exactly once, on any thread.
+         */
+        void replay(@NonNull Entry entry, @NonNull ReplayCallback callback);
+    }
+
+    interface ReplayCallback {
+        void onResult(@Nullable Object source);
+
+        void onNetworkError();
+
+        void onError(@NonNull String code, @Nullable String message);
+    }
+
+    interface KeyProvider {
+        @NonNull
+        SecretKey getKey() throws Exception;
+    }
+
+    interface QueuedCallback {
+        void onQueued(@Nullable String queueId);
+    }
+
+    interface Listener {
+        void onReplayed(@NonNull Entry entry, @Nullable Object source);
+
+        void onFailed(@NonNull Entry entry, @NonNull String code, @Nullable String message);
+    }
+
+    static final class Entry {
+        final String id;
+        final String method;
+        final Map<String, Object> args;
+        final String idempotencyKey;
+        final long createdAtMs;
+
+        Entry(String id, String method, Map<String, Object> args, String idempotencyKey, long createdAtMs) {
+            this.id = id;
+            this.method = method;
+            this.args = args;
+            this.idempotencyKey = idempotencyKey;
+            this.createdAtMs = createdAtMs;
+        }
+    }
+
+    private final Context appContext;
+    private final File file;
+    private final KeyProvider keyProvider;
+    private final Replayer replayer;
+    private final Listener listener;
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor();
+    private final Random random = new Random();
+
+    // worker thread only
+    private final LinkedHashMap<String, Entry> pending = new LinkedHashMap<>();
+    private final Map<String, Entry> replaying = new HashMap<>();
+    private SecretKey key;
+    private boolean loaded;
+    private int doneRecords;
+    private int attempt;
+    private ScheduledFuture<?> scheduledReplay;
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private long enqueued;
+    private long replayed;
+    private long failed;
+    // full queue, or no usable key
+    private long rejected;
+    private ConnectivityManager.NetworkCallback networkCallback;
+
+    OfflineSourceQueue(@NonNull Context appContext, @NonNull Replayer replayer, @NonNull Listener listener) {
+        this(appContext, new File(appContext.getNoBackupFilesDir(), FILE_NAME), new KeyProvider() {
+            @NonNull
+            @Override
+            @RequiresApi(api = Build.VERSION_CODES.M)
+            public SecretKey getKey() throws Exception {
+                return getOrCreateKey();
+            }
+        }, replayer, listener);
+    }
+
+    /**
+     * For tests, which have no AndroidKeyStore.
+     */
+    @VisibleForTesting
+    OfflineSourceQueue(@NonNull Context appContext, @NonNull File file, @NonNull KeyProvider keyProvider,
+                       @NonNull Replayer replayer, @NonNull Listener listener) {
+        this.appContext = appContext;
+        this.file = file;
+        this.keyProvider = keyProvider;
+        this.replayer = replayer;
+        this.listener = listener;
+    }
+
+    /**
+     * The queue needs AndroidKeyStore AES keys, available from Android 6.0.
+     */
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    /**
+     * Loads what a previous process left behind, replays it and starts watching connectivity.
+     */
+    void start(final int maxEntries) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                OfflineSourceQueue.this.maxEntries = Math.max(1, maxEntries);
+                ensureLoaded();
+                registerNetworkCallback();
+                replayNow();
+            }
+        });
+    }
+
+    void close() {
+        onWorker(new Runnable() {
+            @Override
+            public void run() {
+                unregisterNetworkCallback();
+                // a delayed task would still run after shutdown()
+                if (scheduledReplay != null) {
+                    scheduledReplay.cancel(false);
+                    scheduledReplay = null;
+                }
+            }
+        });
+        worker.shutdown();
+    }
+
+    /**
+     * Persists a request for replay.
+     *
+     * @param onQueued receives the queue id, or null if the queue is full or can't persist
+     */
+    void enqueue(@NonNull final String method, @NonNull final Map<String, Object> args,
+                 @Nullable final String idempotencyKey, @NonNull final QueuedCallback onQueued) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                ensureLoaded();
+                if (key == null || pending.size() + replaying.size() >= maxEntries) {
+                    rejected++;
+                    onQueued.onQueued(null);
+                    return;
+                }
+                final Entry entry = new Entry(UUID.randomUUID().toString(), method, queueable(args),
+                        idempotencyKey != null ? idempotencyKey : UUID.randomUUID().toString(),
+                        System.currentTimeMillis());
+                try {
+                    append(addRecord(entry));
+                } catch (Exception e) {
+                    rejected++;
+                    onQueued.onQueued(null);
+                    return;
+                }
+                pending.put(entry.id, entry);
+                enqueued++;
+                onQueued.onQueued(entry.id);
+                scheduleReplay(backoffMs());
+            }
+        });
+    }
+
+    /**
+     * Answers {@code result} from the worker thread with {pending, replaying, enqueued, replayed, failed, rejected, attempt, max_entries}.
+     */
+    void getStats(@NonNull final MethodChannel.Result result) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                Map<String, Object> stats = new HashMap<>();
+                stats.put("pending", pending.size());
+                stats.put("replaying", replaying.size());
+                stats.put("enqueued", enqueued);
+                stats.put("replayed", replayed);
+                stats.put("failed", failed);
+                stats.put("rejected", rejected);
+                stats.put("attempt", attempt);
+                stats.put("max_entries", maxEntries);
+                result.success(stats);
+            }
+        });
+    }
+
+    private void replayNow() {
+        if (scheduledReplay != null) {
+            scheduledReplay.cancel(false);
+            scheduledReplay = null;
+        }
+        final Iterator<Entry> iterator = pending.values().iterator();
+        while (iterator.hasNext() && replaying.size() < MAX_REPLAYS_IN_FLIGHT) {
+            final Entry entry = iterator.next();
+            iterator.remove();
+            if (System.currentTimeMillis() - entry.createdAtMs > ENTRY_MAX_AGE_MS) {
+                finish(entry, false);
+                listener.onFailed(entry, "expired", "Queued request expired before it could be sent");
+                continue;
+            }
+            replaying.put(entry.id, entry);
+            replayer.replay(entry, new ReplayCallback() {
+                @Override
+                public void onResult(@Nullable final Object source) {
+                    onWorker(new Runnable() {
+                        @Override
+                        public void run() {
+                            replaying.remove(entry.id);
+                            attempt = 0;
+                            finish(entry, true);
+                            listener.onReplayed(entry, source);
+                            replayNow();
+                        }
+                    });
+                }
+
+                @Override
+                public void onNetworkError() {
+                    onWorker(new Runnable() {
+                        @Override
+                        public void run() {
+                            replaying.remove(entry.id);
+                            pending.put(entry.id, entry);
+                            attempt++;
+                            scheduleReplay(backoffMs());
+                        }
+                    });
+                }
+
+                @Override
+                public void onError(@NonNull final String code, @Nullable final String message) {
+                    onWorker(new Runnable() {
+                        @Override
+                        public void run() {
+                            replaying.remove(entry.id);
+                            finish(entry, false);
+                            listener.onFailed(entry, code, message);
+                            replayNow();
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs {@code task} on the worker unless the queue was closed. A replay that ends after close()
+     * leaves its entry in the log for the next process, which replays it under the same idempotency key.
+     */
+    private void onWorker(Runnable task) {
+        try {
+            worker.execute(task);
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
+
+    private void finish(Entry entry, boolean success) {
+        if (success) {
+            replayed++;
+        } else {
+            failed++;
+        }
+        try {
+            append(doneRecord(entry.id));
+            if (++doneRecords >= COMPACT_AFTER_DONE_RECORDS) {
+                compact();
+            }
+        } catch (Exception e) {
+            // the entry may be replayed once more after a restart, its idempotency key keeps that safe
+        }
+    }
+
+    private long backoffMs() {
+        final long exponential = BACKOFF_BASE_MS << Math.min(attempt, 16);
+        final long capped = Math.min(exponential, BACKOFF_MAX_MS);
+        // up to 20% jitter so a fleet of devices doesn't retry in lockstep
+        return capped + (long) (random.nextDouble() * capped * 0.2);
+    }
+
+    private void scheduleReplay(long delayMs) {
+        if (pending.isEmpty() || scheduledReplay != null) {
+            return;
+        }
+        scheduledReplay = worker.schedule(new Runnable() {
+            @Override
+            public void run() {
+                scheduledReplay = null;
+                replayNow();
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void registerNetworkCallback() {
+        final ConnectivityManager connectivityManager =
+                (ConnectivityManager) appContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null || networkCallback != null) {
+            return;
+        }
+        networkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(@NonNull Network network) {
+                onWorker(new Runnable() {
+                    @Override
+                    public void run() {
+                        attempt = 0;
+                        replayNow();
+                    }
+                });
+            }
+        };
+        try {
+            connectivityManager.registerNetworkCallback(new NetworkRequest.Builder()
+                    .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    .build(), networkCallback);
+        } catch (Exception e) {
+            // missing ACCESS_NETWORK_STATE or too many callbacks; backoff alone still replays
+            networkCallback = null;
+        }
+    }
+
+    private void unregisterNetworkCallback() {
+        final ConnectivityManager connectivityManager =
+                (ConnectivityManager) appContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager != null && networkCallback != null) {
+            connectivityManager.unregisterNetworkCallback(networkCallback);
+        }
+        networkCallback = null;
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!isSupported()) {
+            return;
+        }
+        try {
+            key = keyProvider.getKey();
+        } catch (Exception e) {
+            key = null;
+            return;
+        }
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final JSONObject record;
+                    try {
+                        record = new JSONObject(decrypt(line));
+                    } catch (Exception e) {
+                        // torn write from a crash, or a record from a key that was reset
+                        continue;
+                    }
+                    final String id = record.getString("id");
+                    if ("done".equals(record.getString("op"))) {
+                        pending.remove(id);
+                    } else {
+                        pending.put(id, new Entry(id,
+                                record.getString("method"),
+                                // logs written before the CVC was dropped are rewritten by compact()
+                                queueable(jsonToMap(record.getJSONObject("args"))),
+                                record.getString("idempotency_key"),
+                                record.getLong("created_at")));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            compact();
+        } catch (Exception e) {
+            // unreadable log, start over rather than replaying garbage
+            pending.clear();
+            file.delete();
+        }
+    }
+
+    /**
+     * Rewrites the log with only the pending entries.
+     */
+    private void compact() throws IOException, GeneralSecurityException, JSONException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), UTF_8);
+        try {
+            final List<Entry> entries = new ArrayList<>(pending.values());
+            entries.addAll(replaying.values());
+            for (Entry entry : entries) {
+                writer.write(encrypt(addRecord(entry)));
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+        doneRecords = 0;
+    }
+
+    private void append(JSONObject record) throws IOException, GeneralSecurityException {
+        final FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write((encrypt(record) + "\n").getBytes(UTF_8));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static JSONObject addRecord(Entry entry) throws JSONException {
+        return new JSONObject()
+                .put("op", "add")
+                .put("id", entry.id)
+                .put("method", entry.method)
+                .put("args", new JSONObject(entry.args))
+                .put("idempotency_key", entry.idempotencyKey)
+                .put("created_at", entry.createdAtMs);
+    }
+
+    private static Map<String, Object> queueable(Map<String, Object> args) {
+        final Map<String, Object> queued = new HashMap<>(args);
+        for (String name : UNQUEUED_ARGS) {
+            queued.remove(name);
+        }
+        return queued;
+    }
+
+    private static JSONObject doneRecord(String id) {
+        try {
+            return new JSONObject().put("op", "done").put("id", id);
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Map<String, Object> jsonToMap(JSONObject json) throws JSONException {
+        final Map<String, Object> map = new HashMap<>();
+        final Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            final String name = keys.next();
+            final Object value = json.get(name);
+            if (value == JSONObject.NULL) {
+                continue;
+            }
+            map.put(name, value instanceof JSONObject ? jsonToMap((JSONObject) value) : value);
+        }
+        return map;
+    }
+
+    private String encrypt(JSONObject record) throws GeneralSecurityException {
+        final Cipher cipher = Cipher.getInstance(CIPHER);
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        final byte[] iv = cipher.getIV();
+        final byte[] ciphertext = cipher.doFinal(record.toString().getBytes(UTF_8));
+        final byte[] sealed = new byte[1 + iv.length + ciphertext.length];
+        sealed[0] = (byte) iv.length;
+        System.arraycopy(iv, 0, sealed, 1, iv.length);
+        System.arraycopy(ciphertext, 0, sealed, 1 + iv.length, ciphertext.length);
+        return Base64.encodeToString(sealed, Base64.NO_WRAP);
+    }
+
+    private String decrypt(String line) throws GeneralSecurityException {
+        final byte[] sealed = Base64.decode(line, Base64.NO_WRAP);
+        final int ivLength = sealed[0];
+        final Cipher cipher = Cipher.getInstance(CIPHER);
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, sealed, 1, ivLength));
+        return new String(cipher.doFinal(sealed, 1 + ivLength, sealed.length - 1 - ivLength), UTF_8);
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private static SecretKey getOrCreateKey() throws Exception {
+        final KeyStore keyStore = KeyStore.getInstance("AndroidKeyStore");
+        keyStore.load(null);
+        if (!keyStore.containsAlias(KEY_ALIAS)) {
+            final KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
+            generator.init(new KeyGenParameterSpec.Builder(KEY_ALIAS,
+                    KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                    .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                    .setKeySize(256)
+                    .build());
+            return generator.generateKey();
+        }
+        return (SecretKey) keyStore.getKey(KEY_ALIAS, null);
+    }
+}
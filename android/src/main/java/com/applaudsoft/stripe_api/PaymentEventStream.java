@@ -0,0 +1,85 @@
+package com.applaudsoft.stripe_api;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import io.flutter.plugin.common.EventChannel;
+
+/**
+ * Stage events of long-running flows (Google Pay sheet, source creation), streamed to Dart as
+ * {flow, flow_id, stage, timestamp_ms, uptime_us, data}. Events are dropped while nobody listens.
+ */
+class PaymentEventStream implements EventChannel.StreamHandler {
+    static final String STAGE_STARTED = "started";
+    static final String STAGE_COMPLETED = "completed";
+    static final String STAGE_CANCELLED = "cancelled";
+    static final String STAGE_FAILED = "failed";
+
+    private final Handler mainHandler;
+    private volatile EventChannel.EventSink sink;
+
+    PaymentEventStream(@NonNull Handler mainHandler) {
+        this.mainHandler = mainHandler;
+    }
+
+    @Override
+    public void onListen(Object arguments, EventChannel.EventSink events) {
+        sink = events;
+    }
+
+    @Override
+    public void onCancel(Object arguments) {
+        sink = null;
+    }
+
+    boolean isListening() {
+        return sink != null;
+    }
+
+    void emit(@NonNull String flow, @NonNull String flowId, @NonNull String stage) {
+        emit(flow, flowId, stage, null);
+    }
+
+    /**
+     * Safe to call from any thread; the event is timestamped here and delivered on the platform thread.
+     */
+    void emit(@NonNull String flow, @NonNull String flowId, @NonNull String stage, @Nullable Map<String, Object> data) {
+        if (sink == null) {
+            return;
+        }
+        final Map<String, Object> event = new HashMap<>();
+        event.put("flow", flow);
+        event.put("flow_id", flowId);
+        event.put("stage", stage);
+        event.put("timestamp_ms", System.currentTimeMillis());
+        // monotonic, use this one to measure the time between stages
+        event.put("uptime_us", SystemClock.elapsedRealtimeNanos() / 1000);
+        if (data != null) {
+            event.put("data", data);
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            send(event);
+        } else {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    send(event);
+                }
+            });
+        }
+    }
+
+    private void send(Map<String, Object> event) {
+        EventChannel.EventSink sink = this.sink;
+        if (sink != null) {
+            sink.success(event);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.applaudsoft.stripe_api;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Structured plugin log: events go into a fixed ring of preallocated entries without locks and
+ * without building strings, and a daemon thread formats them into logcat. The thread sleeps until an
+ * entry is written and ends on {@link #close()}. Entries stay in the ring for {@link #snapshot()}
+ * until overwritten. Below the current level, a call is a volatile read.
+ */
+class PluginLog {
+    static final int VERBOSE = Log.VERBOSE;
+    static final int DEBUG = Log.DEBUG;
+    static final int INFO = Log.INFO;
+    static final int WARN = Log.WARN;
+    static final int ERROR = Log.ERROR;
+    static final int OFF = Integer.MAX_VALUE;
+
+    private static final String TAG = "stripe_api";
+    private static final int CAPACITY = 256;
+    private static final int MASK = CAPACITY - 1;
+    private static final long NO_VALUE = Long.MIN_VALUE;
+    private static final int READ_OK = 0;
+    private static final int READ_PENDING = 1;
+    private static final int READ_OVERWRITTEN = 2;
+
+    private static final class Entry {
+        // sequence of the event held, -1 while being written
+        volatile long sequence = -1;
+        long timeMs;
+        int level;
+        String event;
+        long a;
+        long b;
+        String detail;
+        Throwable error;
+    }
+
+    private static final class Copy {
+        long timeMs;
+        int level;
+        String event;
+        long a;
+        long b;
+        String detail;
+        Throwable error;
+    }
+
+    private final Entry[] entries = new Entry[CAPACITY];
+    private final AtomicLong nextSequence = new AtomicLong();
+    private volatile int level = ERROR;
+    private volatile Thread drainThread;
+    private volatile boolean closed;
+    // read and written by the drain thread only
+    private long drained;
+    private final AtomicLong dropped = new AtomicLong();
+
+    PluginLog() {
+        for (int i = 0; i < CAPACITY; i++) {
+            entries[i] = new Entry();
+        }
+    }
+
+    void setLevel(int level) {
+        this.level = level;
+    }
+
+    int getLevel() {
+        return level;
+    }
+
+    boolean isLoggable(int level) {
+        return level >= this.level;
+    }
+
+    void log(int level, @NonNull String event, long a, long b) {
+        if (level >= this.level) {
+            record(level, event, a, b, null, null);
+        }
+    }
+
+    void log(int level, @NonNull String event, @Nullable String detail) {
+        if (level >= this.level) {
+            record(level, event, NO_VALUE, NO_VALUE, detail, null);
+        }
+    }
+
+    void log(int level, @NonNull String event, @Nullable Throwable error) {
+        if (level >= this.level) {
+            record(level, event, NO_VALUE, NO_VALUE, null, error);
+        }
+    }
+
+    private void record(int level, String event, long a, long b, String detail, Throwable error) {
+        final long sequence = nextSequence.getAndIncrement();
+        final Entry entry = entries[(int) (sequence & MASK)];
+        entry.sequence = -1;
+        entry.timeMs = System.currentTimeMillis();
+        entry.level = level;
+        entry.event = event;
+        entry.a = a;
+        entry.b = b;
+        entry.detail = detail;
+        entry.error = error;
+        entry.sequence = sequence;
+        final Thread drainThread = this.drainThread;
+        if (drainThread != null) {
+            LockSupport.unpark(drainThread);
+        } else {
+            startDrain();
+        }
+    }
+
+    private synchronized void startDrain() {
+        if (drainThread != null) {
+            // started by another writer after we looked, which may have missed our entry
+            LockSupport.unpark(drainThread);
+            return;
+        }
+        if (closed) {
+            return;
+        }
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final Copy copy = new Copy();
+                while (true) {
+                    // entries written before close() are still printed
+                    final boolean closing = closed;
+                    while (drained < nextSequence.get()) {
+                        final int status = read(drained, copy);
+                        if (status == READ_PENDING) {
+                            // its writer unparks us once the entry is complete
+                            break;
+                        }
+                        if (status == READ_OK) {
+                            Log.println(copy.level, TAG, format(copy));
+                        } else {
+                            dropped.incrementAndGet();
+                        }
+                        drained++;
+                    }
+                    if (closing) {
+                        return;
+                    }
+                    LockSupport.park(PluginLog.this);
+                }
+            }
+        }, "stripe_api-log");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        drainThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the drain thread once it has printed what is already logged. Later entries still go into
+     * the ring for {@link #snapshot()}, but not to logcat.
+     */
+    synchronized void close() {
+        closed = true;
+        if (drainThread != null) {
+            LockSupport.unpark(drainThread);
+        }
+    }
+
+    /**
+     * Copies the entry of {@code sequence} unless it was overwritten or is still being written.
+     */
+    private int read(long sequence, Copy copy) {
+        final Entry entry = entries[(int) (sequence & MASK)];
+        final long held = entry.sequence;
+        if (held != sequence) {
+            return held > sequence ? READ_OVERWRITTEN : READ_PENDING;
+        }
+        copy.timeMs = entry.timeMs;
+        copy.level = entry.level;
+        copy.event = entry.event;
+        copy.a = entry.a;
+        copy.b = entry.b;
+        copy.detail = entry.detail;
+        copy.error = entry.error;
+        // a writer that lapped the ring meanwhile may have mixed its fields in
+        return entry.sequence == sequence ? READ_OK : READ_OVERWRITTEN;
+    }
+
+    /**
+     * The entries still in the ring, oldest first: {time_ms, level, event, message}.
+     */
+    @NonNull
+    List<Map<String, Object>> snapshot() {
+        final long end = nextSequence.get();
+        final List<Map<String, Object>> snapshot = new ArrayList<>();
+        final Copy copy = new Copy();
+        for (long sequence = Math.max(0, end - CAPACITY); sequence < end; sequence++) {
+            if (read(sequence, copy) != READ_OK) {
+                continue;
+            }
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("time_ms", copy.timeMs);
+            entry.put("level", levelName(copy.level));
+            entry.put("event", copy.event);
+            entry.put("message", format(copy));
+            snapshot.add(entry);
+        }
+        return snapshot;
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    private static String format(Copy copy) {
+        final StringBuilder message = new StringBuilder(copy.event);
+        if (copy.a != NO_VALUE) {
+            message.append(' ').append(copy.a);
+        }
+        if (copy.b != NO_VALUE) {
+            message.append(' ').append(copy.b);
+        }
+        if (copy.detail != null) {
+            message.append(": ").append(copy.detail);
+        }
+        if (copy.error != null) {
+            message.append('\n').append(Log.getStackTraceString(copy.error));
+        }
+        return message.toString();
+    }
+
+    @NonNull
+    static String levelName(int level) {
+        switch (level) {
+            case VERBOSE:
+                return "verbose";
+            case DEBUG:
+                return "debug";
+            case INFO:
+                return "info";
+            case WARN:
+                return "warn";
+            case ERROR:
+                return "error";
+            default:
+                return "off";
+        }
+    }
+
+    /**
+     * @return the level named {@code name}, or -1 if there is none
+     */
+    static int levelOf(@Nullable String name) {
+        if (name == null) {
+            return -1;
+        }
+        switch (name) {
+            case "verbose":
+                return VERBOSE;
+            case "debug":
+                return DEBUG;
+            case "info":
+                return INFO;
+            case "warn":
+                return WARN;
+            case "error":
+                return ERROR;
+            case "off":
+                return OFF;
+            default:
+                return -1;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.applaudsoft.stripe_api;
+
+import android.os.Trace;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Named latency histograms for the plugin's hot paths, optionally mirrored as Android trace
+ * sections for systrace/Perfetto. While disabled every call is a volatile read and a return.
+ */
+class PluginMetrics {
+    private volatile boolean enabled;
+    private volatile boolean traceEnabled;
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    static final class Span {
+        final String name;
+        final long startNanos;
+        final boolean traced;
+        boolean ended;
+
+        Span(String name, long startNanos, boolean traced) {
+            this.name = name;
+            this.startNanos = startNanos;
+            this.traced = traced;
+        }
+    }
+
+    void setEnabled(boolean enabled, boolean traceEnabled) {
+        this.enabled = enabled;
+        this.traceEnabled = enabled && traceEnabled;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts timing {@code prefix + name} on the current thread; pass the span to {@link #end(Span)}
+     * on the same thread.
+     *
+     * @return null while disabled
+     */
+    @Nullable
+    Span begin(@NonNull String prefix, @NonNull String name) {
+        if (!enabled) {
+            return null;
+        }
+        final String fullName = prefix + name;
+        final boolean traced = traceEnabled;
+        if (traced) {
+            // section names are limited to 127 characters
+            Trace.beginSection(fullName.length() > 127 ? fullName.substring(0, 127) : fullName);
+        }
+        return new Span(fullName, System.nanoTime(), traced);
+    }
+
+    /**
+     * Ends {@code span}; ending it again is a no-op.
+     */
+    void end(@Nullable Span span) {
+        if (span == null || span.ended) {
+            return;
+        }
+        span.ended = true;
+        if (span.traced) {
+            Trace.endSection();
+        }
+        histogram(span.name).recordNanos(System.nanoTime() - span.startNanos);
+    }
+
+    /**
+     * Start of an asynchronous interval, see {@link #recordSince(String, String, long)}.
+     *
+     * @return 0 while disabled
+     */
+    long now() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time since {@code startNanos} taken from {@link #now()}; a no-op if that was 0.
+     * Asynchronous intervals only go to the histograms, trace sections can't span threads.
+     */
+    void recordSince(@NonNull String prefix, @NonNull String name, long startNanos) {
+        if (startNanos == 0 || !enabled) {
+            return;
+        }
+        histogram(prefix + name).recordNanos(System.nanoTime() - startNanos);
+    }
+
+    void reset() {
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    @NonNull
+    Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new HashMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return snapshot;
+    }
+
+    private LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+}
@@ -0,0 +1,130 @@
+package com.applaudsoft.stripe_api;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Runs a list of requests with at most {@code parallelism} of them in flight and answers the
+ * batch once with one entry per item, either {@code {source: ...}} or {@code {error: {code, message}}}.
+ * A failing item never fails the batch.
+ */
+class SourceBatch {
+    interface ItemLauncher {
+        /**
+         * Starts item {@code index}; {@code itemResult} must be answered exactly once.
+         */
+        void launch(int index, @NonNull MethodChannel.Result itemResult);
+    }
+
+    private final int size;
+    private final int parallelism;
+    private final Object[] items;
+    private final AtomicInteger nextIndex = new AtomicInteger();
+    private final AtomicInteger remaining;
+    // launches owed to finished items; only the thread that owns the drain loop starts them, so an
+    // item answered synchronously from launch() doesn't recurse into the next launch
+    private final AtomicInteger freeSlots = new AtomicInteger();
+    private final AtomicInteger drainRequests = new AtomicInteger();
+    private final MethodChannel.Result batchResult;
+    private final ItemLauncher launcher;
+
+    SourceBatch(int size, int parallelism, @NonNull MethodChannel.Result batchResult, @NonNull ItemLauncher launcher) {
+        this.size = size;
+        this.parallelism = Math.max(1, parallelism);
+        this.items = new Object[size];
+        this.remaining = new AtomicInteger(size);
+        this.batchResult = batchResult;
+        this.launcher = launcher;
+    }
+
+    void start() {
+        if (size == 0) {
+            batchResult.success(Collections.emptyList());
+            return;
+        }
+        freeSlots.set(Math.min(parallelism, size));
+        drain();
+    }
+
+    private void drain() {
+        if (drainRequests.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            while (freeSlots.get() > 0) {
+                freeSlots.decrementAndGet();
+                launchNext();
+            }
+            missed = drainRequests.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void launchNext() {
+        final int index = nextIndex.getAndIncrement();
+        if (index >= size) {
+            return;
+        }
+        final ItemResult itemResult = new ItemResult(index);
+        try {
+            launcher.launch(index, itemResult);
+        } catch (Exception e) {
+            String message = e.getMessage() != null ? e.getMessage() : e.toString();
+            itemResult.error(e.getClass().toString(), message, null);
+        }
+    }
+
+    private void onItemDone(int index, Map<String, Object> item) {
+        items[index] = item;
+        if (remaining.decrementAndGet() == 0) {
+            batchResult.success(Arrays.asList(items));
+        } else {
+            freeSlots.incrementAndGet();
+            drain();
+        }
+    }
+
+    private class ItemResult implements MethodChannel.Result {
+        private final int index;
+        private final AtomicBoolean answered = new AtomicBoolean();
+
+        ItemResult(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void success(@Nullable Object source) {
+            if (answered.compareAndSet(false, true)) {
+                Map<String, Object> item = new HashMap<>();
+                item.put("source", source);
+                onItemDone(index, item);
+            }
+        }
+
+        @Override
+        public void error(@NonNull String errorCode, @Nullable String errorMessage, @Nullable Object errorDetails) {
+            if (answered.compareAndSet(false, true)) {
+                Map<String, Object> error = new HashMap<>();
+                error.put("code", errorCode);
+                error.put("message", errorMessage);
+                Map<String, Object> item = new HashMap<>();
+                item.put("error", error);
+                onItemDone(index, item);
+            }
+        }
+
+        @Override
+        public void notImplemented() {
+            error("not_implemented", null, null);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.applaudsoft.stripe_api;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Tracks in-flight Stripe requests by request id so parallel calls never share a callback.
+ * At most {@code maxConcurrent} requests run at once, the rest wait in a FIFO queue.
+ * Everything is lock-free: callers and Stripe callbacks may come from any thread.
+ */
+class SourceRequestRegistry {
+    static final int DEFAULT_MAX_CONCURRENT = 4;
+
+    private final ConcurrentHashMap<String, PendingRequest> requests;
+    private final Queue<PendingRequest> waiting = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private volatile int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    private static final int WAITING = 0;
+    private static final int RUNNING = 1;
+    private static final int CANCELLED = 2;
+    // answered through complete(), or failed to start
+    private static final int DONE = 3;
+
+    static final class PendingRequest {
+        final String id;
+        final MethodChannel.Result result;
+        final boolean cancellableWhileRunning;
+        final Runnable start;
+        final long enqueuedAtNanos = System.nanoTime();
+        final AtomicInteger state = new AtomicInteger(WAITING);
+
+        PendingRequest(String id, MethodChannel.Result result, boolean cancellableWhileRunning, Runnable start) {
+            this.id = id;
+            this.result = result;
+            this.cancellableWhileRunning = cancellableWhileRunning;
+            this.start = start;
+        }
+    }
+
+    SourceRequestRegistry() {
+        this(new ConcurrentHashMap<String, PendingRequest>());
+    }
+
+    @VisibleForTesting
+    SourceRequestRegistry(@NonNull ConcurrentHashMap<String, PendingRequest> requests) {
+        this.requests = requests;
+    }
+
+    void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        drain();
+    }
+
+    /**
+     * Registers {@code requestId} and runs {@code start} as soon as a slot is free. {@code start}
+     * must eventually lead to {@link #complete(String)} for the same id.
+     */
+    void submit(@NonNull String requestId, @NonNull MethodChannel.Result result, @NonNull Runnable start) {
+        submit(requestId, result, true, start);
+    }
+
+    /**
+     * @param cancellableWhileRunning false for requests with side effects Stripe applies whatever
+     *                                the app does, e.g. a charge: once started they can't be
+     *                                cancelled and always report their outcome
+     */
+    void submit(@NonNull String requestId, @NonNull MethodChannel.Result result, boolean cancellableWhileRunning,
+                @NonNull Runnable start) {
+        final PendingRequest request = new PendingRequest(requestId, result, cancellableWhileRunning, start);
+        if (requests.putIfAbsent(requestId, request) != null) {
+            result.error("duplicate_request_id", "A request with id " + requestId + " is already in flight", null);
+            return;
+        }
+        waiting.add(request);
+        updateMax(maxQueueDepth, queueDepth.incrementAndGet());
+        drain();
+    }
+
+    /**
+     * Releases the slot of {@code requestId}.
+     *
+     * @return the result to answer, or null if the request was cancelled or is unknown
+     */
+    @Nullable
+    MethodChannel.Result complete(@NonNull String requestId) {
+        final PendingRequest request = requests.remove(requestId);
+        if (request == null) {
+            return null;
+        }
+        running.decrementAndGet();
+        drain();
+        // a cancel racing us answers only if it claimed the request first
+        return request.state.compareAndSet(RUNNING, DONE) ? request.result : null;
+    }
+
+    /**
+     * Answers {@code requestId} with a "cancelled" error. A waiting request is dropped and its id
+     * can be reused at once; a running one keeps its slot until Stripe answers, but that answer is
+     * dropped. Running requests submitted as not cancellable while running are left alone.
+     *
+     * @return whether the request was cancelled
+     */
+    boolean cancel(@NonNull String requestId) {
+        final PendingRequest request = requests.get(requestId);
+        if (request == null) {
+            return false;
+        }
+        if (request.state.compareAndSet(WAITING, CANCELLED)) {
+            requests.remove(requestId, request);
+            waiting.remove(request);
+            queueDepth.decrementAndGet();
+        } else if (!request.cancellableWhileRunning || !request.state.compareAndSet(RUNNING, CANCELLED)) {
+            return false;
+        }
+        cancelled.incrementAndGet();
+        request.result.error("cancelled", "Request " + requestId + " was cancelled", null);
+        return true;
+    }
+
+    @NonNull
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        final long startedCount = started.get();
+        stats.put("in_flight", running.get());
+        stats.put("queue_depth", queueDepth.get());
+        stats.put("max_queue_depth", maxQueueDepth.get());
+        stats.put("max_concurrent", maxConcurrent);
+        stats.put("started", startedCount);
+        stats.put("cancelled", cancelled.get());
+        stats.put("avg_wait_ms", startedCount > 0 ? totalWaitNanos.get() / 1e6 / startedCount : 0.0);
+        stats.put("max_wait_ms", maxWaitNanos.get() / 1e6);
+        return stats;
+    }
+
+    private void drain() {
+        while (true) {
+            final int current = running.get();
+            if (current >= maxConcurrent || waiting.isEmpty()) {
+                return;
+            }
+            if (!running.compareAndSet(current, current + 1)) {
+                continue;
+            }
+            final PendingRequest request = waiting.poll();
+            if (request == null) {
+                running.decrementAndGet();
+                continue;
+            }
+            if (!request.state.compareAndSet(WAITING, RUNNING)) {
+                // cancelled while waiting, cancel() already dropped it
+                running.decrementAndGet();
+                continue;
+            }
+            queueDepth.decrementAndGet();
+            final long waitNanos = System.nanoTime() - request.enqueuedAtNanos;
+            started.incrementAndGet();
+            totalWaitNanos.addAndGet(waitNanos);
+            updateMax(maxWaitNanos, waitNanos);
+            try {
+                request.start.run();
+            } catch (Exception e) {
+                if (requests.remove(request.id, request)) {
+                    running.decrementAndGet();
+                }
+                if (request.state.compareAndSet(RUNNING, DONE)) {
+                    String message = e.getMessage() != null ? e.getMessage() : e.toString();
+                    request.result.error(e.getClass().toString(), message, null);
+                }
+            }
+        }
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+}
@@ -1,59 +1,184 @@
 package com.applaudsoft.stripe_api;
 
+import android.app.Activity;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 
+import com.google.android.gms.wallet.PaymentsClient;
 import com.stripe.android.ApiResultCallback;
 import com.stripe.android.Stripe;
 import com.stripe.android.core.StripeError;
+import com.stripe.android.core.exception.APIConnectionException;
 import com.stripe.android.core.exception.InvalidRequestException;
+import com.stripe.android.exception.CardException;
 import com.stripe.android.model.Address;
 import com.stripe.android.model.CardParams;
+import com.stripe.android.model.ConfirmPaymentIntentParams;
+import com.stripe.android.model.PaymentIntent;
+import com.stripe.android.model.PaymentMethodCreateParams;
 import com.stripe.android.model.Source;
 import com.stripe.android.model.SourceParams;
 import com.stripe.android.model.StripeMapUtil;
 
 import org.jetbrains.annotations.NotNull;
-import org.json.JSONObject;
 
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
 import io.flutter.embedding.engine.plugins.activity.ActivityAware;
 import io.flutter.embedding.engine.plugins.activity.ActivityPluginBinding;
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
 import io.flutter.plugin.common.MethodChannel.Result;
+import io.flutter.plugin.common.StandardMethodCodec;
 
 /**
  * FlutterPlugin
  */
 public class StripeApiPlugin implements FlutterPlugin, MethodCallHandler, ActivityAware {
-    private Stripe stripe;
-    ApiResultCallback<Source> sourceCallback;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // client for the platform account of the publishable key passed to init
+    private volatile Stripe stripe;
+    private volatile String publishableKey;
+    private final SourceRequestRegistry sourceRequests = new SourceRequestRegistry();
+    private final IdempotentSourceCache idempotentSources = new IdempotentSourceCache();
+    private volatile OfflineSourceQueue offlineQueue;
     private GooglePayDelegate gpayDelegate;
 
     private MethodChannel channel;
+    // same handlers, run on a background task queue instead of the platform thread
+    private MethodChannel backgroundChannel;
+    private EventChannel eventChannel;
+    private final PaymentEventStream events = new PaymentEventStream(mainHandler);
+    private final PluginMetrics metrics = new PluginMetrics();
+    // one per engine attachment: its drain thread ends on detach
+    private PluginLog log;
+    private ExecutorService conversionExecutor;
+    // blocking Stripe calls; their concurrency is capped by sourceRequests
+    private ExecutorService paymentExecutor;
+    // transport for the Dart StripeApiHandler
+    private NativeHttpClient httpClient;
     private Context appContext;
+    private StripePrewarmer prewarmer;
+    private volatile double initMs = -1;
+
+    private static final String CARD_REJECTED_MESSAGE = "The card was rejected before contacting Stripe";
+    // error code sendSourceError reports when Stripe could not be reached
+    private static final String NETWORK_ERROR_CODE = APIConnectionException.class.toString();
+    private static final String OFFLINE_QUEUE_FLOW = "offlineQueue";
+
+    // per method: calls handled off the platform thread and the time they would have spent on it
+    private final ConcurrentHashMap<String, AtomicLong> offMainThreadCalls = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicLong> offMainThreadNanos = new ConcurrentHashMap<>();
 
 
     @Override
     public void onAttachedToEngine(@NonNull FlutterPlugin.FlutterPluginBinding flutterPluginBinding) {
-        channel = new MethodChannel(flutterPluginBinding.getBinaryMessenger(), "stripe_api");
+        BinaryMessenger messenger = flutterPluginBinding.getBinaryMessenger();
+        channel = new MethodChannel(messenger, "stripe_api");
         channel.setMethodCallHandler(this);
+        backgroundChannel = new MethodChannel(messenger, "stripe_api/background",
+                StandardMethodCodec.INSTANCE, messenger.makeBackgroundTaskQueue());
+        backgroundChannel.setMethodCallHandler(new MethodCallHandler() {
+            @Override
+            public void onMethodCall(@NonNull MethodCall call, @NonNull Result result) {
+                long start = System.nanoTime();
+                PluginMetrics.Span span = metrics.begin("background_method.", call.method);
+                try {
+                    handleMethodCall(call, new MainThreadResult(result, mainHandler), true);
+                } finally {
+                    metrics.end(span);
+                }
+                recordOffMainThread(call.method, System.nanoTime() - start, true);
+            }
+        });
+        eventChannel = new EventChannel(messenger, "stripe_api/events");
+        eventChannel.setStreamHandler(events);
+        conversionExecutor = Executors.newSingleThreadExecutor();
+        paymentExecutor = Executors.newCachedThreadPool();
+        httpClient = new NativeHttpClient(metrics);
         appContext = flutterPluginBinding.getApplicationContext();
-        gpayDelegate = new GooglePayDelegate();
+        log = new PluginLog();
+        gpayDelegate = new GooglePayDelegate(events, metrics, log);
+        if (StripePrewarmer.isEnabled(appContext)) {
+            startPrewarm(new StripePrewarmer(appContext));
+        }
+    }
+
+    private void startPrewarm(final StripePrewarmer prewarmer) {
+        this.prewarmer = prewarmer;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                prewarmer.warmUp();
+                final GooglePayRequestTemplate template = prewarmer.getRequestTemplate();
+                if (template != null) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            GooglePayDelegate gpayDelegate = StripeApiPlugin.this.gpayDelegate;
+                            if (gpayDelegate != null) {
+                                gpayDelegate.adoptRequestTemplate(template);
+                            }
+                        }
+                    });
+                }
+            }
+        }, "stripe_api-prewarm").start();
+    }
+
+    /**
+     * The PaymentsClient registers a lifecycle fragment on its activity, which is only safe on the
+     * platform thread; it is built there right after the attach instead of during it.
+     */
+    private void prewarmPaymentsClient(final StripePrewarmer prewarmer, final Activity activity) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                GooglePayDelegate gpayDelegate = StripeApiPlugin.this.gpayDelegate;
+                if (gpayDelegate == null || activity.isFinishing() || activity.isDestroyed()) {
+                    return;
+                }
+                long start = System.nanoTime();
+                final PaymentsClient client = GooglePayDelegate.createPaymentsClient(activity);
+                prewarmer.putTiming("payments_client_ms", StripePrewarmer.millisSince(start));
+                gpayDelegate.adoptPaymentsClient(activity, client);
+            }
+        });
     }
 
 
     @Override
     public void onDetachedFromEngine(@NonNull FlutterPluginBinding binding) {
         channel.setMethodCallHandler(null);
+        backgroundChannel.setMethodCallHandler(null);
+        eventChannel.setStreamHandler(null);
+        conversionExecutor.shutdown();
+        paymentExecutor.shutdown();
+        httpClient.close();
+        log.close();
+        if (offlineQueue != null) {
+            offlineQueue.close();
+            offlineQueue = null;
+        }
+        prewarmer = null;
         appContext = null;
         gpayDelegate = null;
     }
@@ -63,6 +188,9 @@ public class StripeApiPlugin implements FlutterPlugin, MethodCallHandler, Activi
     public void onAttachedToActivity(@NonNull ActivityPluginBinding binding) {
         gpayDelegate.setActivity(binding.getActivity());
         binding.addActivityResultListener(gpayDelegate);
+        if (prewarmer != null) {
+            prewarmPaymentsClient(prewarmer, binding.getActivity());
+        }
     }
 
     @Override
@@ -77,23 +205,255 @@ public class StripeApiPlugin implements FlutterPlugin, MethodCallHandler, Activi
 
     @Override
     public void onDetachedFromActivity() {
-        gpayDelegate.setActivity(null);
+        gpayDelegate.detachActivity();
     }
 
     @Override
     public void onMethodCall(MethodCall call, @NotNull final Result result) {
+        PluginMetrics.Span span = metrics.begin("method.", call.method);
+        try {
+            handleMethodCall(call, result, false);
+        } finally {
+            metrics.end(span);
+        }
+    }
+
+    /**
+     * @param offMainThread true when invoked from the background task queue; Google Pay work is
+     *                      then posted to the platform thread and result conversion to a worker
+     */
+    private void handleMethodCall(final MethodCall call, @NotNull final Result result, final boolean offMainThread) {
+        final GooglePayDelegate gpayDelegate = this.gpayDelegate;
         if (call.method.equals("init")) {
-            String publishableKey = call.argument("publishableKey");
+            final long initStart = System.nanoTime();
+            final String publishableKey = call.argument("publishableKey");
             if (TextUtils.isEmpty(publishableKey)) {
                 result.error("Stripe publishableKey cannot be empty", null, null);
                 return;
             }
-            gpayDelegate.setStripeApiKey(publishableKey);
-            stripe = new Stripe(appContext, publishableKey);
+            final Number readinessTtlMs = call.argument("googlePayReadinessTtlMs");
+            Number maxConcurrentRequests = call.argument("maxConcurrentRequests");
+            if (maxConcurrentRequests != null) {
+                sourceRequests.setMaxConcurrent(maxConcurrentRequests.intValue());
+            }
+            Number idempotencyCacheSize = call.argument("idempotencyCacheSize");
+            Number idempotencyCacheTtlMs = call.argument("idempotencyCacheTtlMs");
+            if (idempotencyCacheSize != null || idempotencyCacheTtlMs != null) {
+                idempotentSources.configure(
+                        idempotencyCacheSize != null ? idempotencyCacheSize.intValue() : IdempotentSourceCache.DEFAULT_MAX_ENTRIES,
+                        idempotencyCacheTtlMs != null ? idempotencyCacheTtlMs.longValue() : IdempotentSourceCache.DEFAULT_TTL_MS);
+            }
+            runOnMain(offMainThread, new Runnable() {
+                @Override
+                public void run() {
+                    gpayDelegate.setStripeApiKey(publishableKey);
+                    if (readinessTtlMs != null) {
+                        gpayDelegate.setReadinessTtl(readinessTtlMs.longValue());
+                    }
+                }
+            });
+            Number stripeClientPoolSize = call.argument("stripeClientPoolSize");
+            if (stripeClientPoolSize != null) {
+                StripeClientPool.setMaxSize(stripeClientPoolSize.intValue());
+            }
+            final StripePrewarmer prewarmer = this.prewarmer;
+            Stripe prewarmed = prewarmer != null ? prewarmer.takeStripe(publishableKey) : null;
+            if (prewarmed != null) {
+                StripeClientPool.offer(publishableKey, null, prewarmed);
+            }
+            this.publishableKey = publishableKey;
+            stripe = StripeClientPool.get(appContext, publishableKey, null);
+            if (prewarmer != null) {
+                prewarmer.rememberKey(publishableKey);
+            }
+            if (Boolean.TRUE.equals(call.argument("offlineQueue"))) {
+                Number offlineQueueMaxEntries = call.argument("offlineQueueMaxEntries");
+                startOfflineQueue(offlineQueueMaxEntries != null
+                        ? offlineQueueMaxEntries.intValue() : OfflineSourceQueue.DEFAULT_MAX_ENTRIES);
+            }
+            initMs = StripePrewarmer.millisSince(initStart);
             result.success(null);
         } else if (call.method.equals("createSourceFromCard")) {
             Map<String, ?> cardMap = call.arguments();
-//            Card card = new Card(
+            final boolean binary = Boolean.TRUE.equals(cardMap.get("binary"));
+            String cardError = validateCardMap(cardMap);
+            if (cardError != null) {
+                result.error(cardError, CARD_REJECTED_MESSAGE, null);
+                return;
+            }
+            CardParams cardParams = cardParamsFromMap(cardMap);
+            SourceParams params = SourceParams.createCardParams(cardParams);
+            createSourceQueueable(call, params, binary, true, result, offMainThread);
+        } else if (call.method.equals("createSourceFromAliPay")) {
+            final boolean binary = Boolean.TRUE.equals(call.argument("binary"));
+            Map<String, ?> sourceParams = call.arguments();
+            createSourceQueueable(call, alipayParamsFromMap(sourceParams), binary, false, result, offMainThread);
+        } else if (call.method.equals("createSourcesFromCards")) { // returns [{source: source} | {error: {code, message}}]
+            final List<Map<String, ?>> cards = call.argument("cards");
+            final boolean binary = Boolean.TRUE.equals(call.argument("binary"));
+            // item i is sent with "<idempotency_key>/i", so a retried batch reuses each item's key
+            final String idempotencyKey = call.argument("idempotency_key");
+            final String batchId = requestIdFrom(call);
+            final String stripeAccountId = call.argument("stripe_account");
+            final StripeMapUtil.Projection projection = StripeMapUtil.Projection.of(call.<List<?>>argument("fields"));
+            Number parallelism = call.argument("parallelism");
+            new SourceBatch(cards != null ? cards.size() : 0,
+                    parallelism != null ? parallelism.intValue() : SourceRequestRegistry.DEFAULT_MAX_CONCURRENT,
+                    result, new SourceBatch.ItemLauncher() {
+                @Override
+                public void launch(int index, @NonNull Result itemResult) {
+                    String cardError = validateCardMap(cards.get(index));
+                    if (cardError != null) {
+                        itemResult.error(cardError, CARD_REJECTED_MESSAGE, null);
+                        return;
+                    }
+                    CardParams cardParams = cardParamsFromMap(cards.get(index));
+                    SourceParams params = SourceParams.createCardParams(cardParams);
+                    String itemKey = idempotencyKey != null ? idempotencyKey + "/" + index : null;
+                    createSource(call.method, batchId + "/" + index, itemKey, stripeAccountId, params,
+                            binary, projection, true, itemResult, offMainThread);
+                }
+            }).start();
+        } else if (call.method.equals("validateCard")) { // returns {brand, luhn_valid, length_valid, valid, error}
+            result.success(CardValidator.report(
+                    (String) call.argument("number"),
+                    (Integer) call.argument("exp_month"),
+                    (Integer) call.argument("exp_year"),
+                    (String) call.argument("cvc")));
+        } else if (call.method.equals("cancelRequest")) {
+            String requestId = call.argument("request_id");
+            result.success(requestId != null && sourceRequests.cancel(requestId));
+        } else if (call.method.equals("getRequestStats")) {
+            result.success(sourceRequests.getStats());
+        } else if (call.method.equals("httpRequest")) {
+            httpClient.execute(
+                    (String) Objects.requireNonNull(call.argument("method")),
+                    (String) Objects.requireNonNull(call.argument("url")),
+                    call.<Map<String, String>>argument("headers"),
+                    call.<String>argument("body"),
+                    offMainThread ? result : new MainThreadResult(result, mainHandler));
+        } else if (call.method.equals("getStripeClientPoolStats")) {
+            result.success(StripeClientPool.getStats());
+        } else if (call.method.equals("getOfflineQueueStats")) {
+            final OfflineSourceQueue offlineQueue = this.offlineQueue;
+            if (offlineQueue == null) {
+                result.success(null);
+            } else {
+                offlineQueue.getStats(offMainThread ? result : new MainThreadResult(result, mainHandler));
+            }
+        } else if (call.method.equals("getIdempotencyStats")) {
+            result.success(idempotentSources.getStats());
+        } else if (call.method.equals("isGooglePayAvailable")) {
+            runOnMain(offMainThread, new Runnable() {
+                @Override
+                public void run() {
+                    gpayDelegate.isGooglePayAvailable(result);
+                }
+            });
+        } else if (call.method.equals("getGooglePayReadinessStats")) {
+            runOnMain(offMainThread, new Runnable() {
+                @Override
+                public void run() {
+                    result.success(gpayDelegate.getReadinessStats());
+                }
+            });
+        } else if (call.method.equals("getStartupTimings")) {
+            final StripePrewarmer prewarmer = this.prewarmer;
+            Map<String, Object> timings = prewarmer != null ? prewarmer.getTimings() : new HashMap<String, Object>();
+            timings.put("prewarm_enabled", prewarmer != null);
+            if (initMs >= 0) {
+                timings.put("init_ms", initMs);
+            }
+            result.success(timings);
+        } else if (call.method.equals("setMetricsEnabled")) {
+            metrics.setEnabled(Boolean.TRUE.equals(call.argument("enabled")), Boolean.TRUE.equals(call.argument("trace")));
+            result.success(null);
+        } else if (call.method.equals("resetMetrics")) {
+            metrics.reset();
+            result.success(null);
+        } else if (call.method.equals("getMetrics")) {
+            final Map<String, Object> snapshot = new HashMap<>();
+            snapshot.put("enabled", metrics.isEnabled());
+            snapshot.put("histograms", metrics.snapshot());
+            snapshot.put("requests", sourceRequests.getStats());
+            snapshot.put("idempotency", idempotentSources.getStats());
+            snapshot.put("main_thread_savings", getMainThreadSavings());
+            snapshot.put("http", httpClient.getStats());
+            snapshot.put("stripe_clients", StripeClientPool.getStats());
+            runOnMain(offMainThread, new Runnable() {
+                @Override
+                public void run() {
+                    snapshot.put("google_pay_readiness", gpayDelegate.getReadinessStats());
+                    result.success(snapshot);
+                }
+            });
+        } else if (call.method.equals("setLogLevel")) {
+            final String levelName = call.argument("level");
+            final int level = PluginLog.levelOf(levelName);
+            if (level < 0) {
+                result.error("invalid_level", "Unknown log level " + levelName, null);
+                return;
+            }
+            log.setLevel(level);
+            result.success(null);
+        } else if (call.method.equals("dumpDiagnostics")) {
+            final Map<String, Object> diagnostics = new HashMap<>();
+            diagnostics.put("log_level", PluginLog.levelName(log.getLevel()));
+            diagnostics.put("log", log.snapshot());
+            diagnostics.put("log_dropped", log.getDropped());
+            diagnostics.put("metrics_enabled", metrics.isEnabled());
+            diagnostics.put("requests", sourceRequests.getStats());
+            diagnostics.put("idempotency", idempotentSources.getStats());
+            diagnostics.put("http", httpClient.getStats());
+            diagnostics.put("stripe_clients", StripeClientPool.getStats());
+            result.success(diagnostics);
+        } else if (call.method.equals("getMainThreadSavings")) {
+            result.success(getMainThreadSavings());
+        } else if (call.method.equals("isApplePayAvailable")) {
+            result.success(false);
+        } else if (call.method.equals("confirmPaymentIntentWithCard")) { // returns {id, status, requires_action, ...}
+            Map<String, ?> cardMap = call.argument("card");
+            String clientSecret = call.argument("client_secret");
+            if (cardMap == null || TextUtils.isEmpty(clientSecret)) {
+                result.error("invalid_request", "card and client_secret are required", null);
+                return;
+            }
+            String cardError = validateCardMap(cardMap);
+            if (cardError != null) {
+                result.error(cardError, CARD_REJECTED_MESSAGE, null);
+                return;
+            }
+            ConfirmPaymentIntentParams params = ConfirmPaymentIntentParams.createWithPaymentMethodCreateParams(
+                    PaymentMethodCreateParams.createCard(cardParamsFromMap(cardMap)), clientSecret);
+            String returnUrl = call.argument("return_url");
+            if (returnUrl != null) {
+                params.setReturnUrl(returnUrl);
+            }
+            confirmPaymentIntent(call.method, requestIdFrom(call), (String) call.argument("idempotency_key"),
+                    (String) call.argument("stripe_account"), params,
+                    offMainThread ? result : new MainThreadResult(result, mainHandler));
+        } else if (call.method.equals("cardFromGooglePay")) { // returns {token: tokenId, card: stripeCard}, or the token JSON bytes if raw
+            Map<String, ?> params = call.arguments();
+            final boolean billingAddressRequired = Boolean.TRUE.equals(params.get("billing_address_required"));
+            Double amount = (Double) params.get("amount");
+            final Double finalAmount = amount == null ? 1 : amount;
+            final boolean binary = Boolean.TRUE.equals(params.get("binary"));
+            final boolean raw = Boolean.TRUE.equals(params.get("raw"));
+            final StripeMapUtil.Projection projection = StripeMapUtil.Projection.of((List<?>) params.get("fields"));
+            final String flowId = requestIdFrom(call);
+            runOnMain(offMainThread, new Runnable() {
+                @Override
+                public void run() {
+                    gpayDelegate.cardFromGooglePay(billingAddressRequired, finalAmount, binary, raw, projection, flowId, result);
+                }
+            });
+        } else {
+            result.notImplemented();
+        }
+    }
+
+    private static CardParams cardParamsFromMap(Map<String, ?> cardMap) {
+//        Card card = new Card(
 //                    (String) cardMap.get("number"),
 //                    (Integer) cardMap.get("exp_month"),
 //                    (Integer) cardMap.get("exp_year"),
@@ -107,118 +467,462 @@ public class StripeApiPlugin implements FlutterPlugin, MethodCallHandler, Activi
 //                    (String) cardMap.get("address_country"),
 //                    (String) cardMap.get("currency"),
 //                    null);
-            Address address = new Address(
-                    (String) cardMap.get("address_city"),
-                    (String) cardMap.get("address_country"),
-                    (String) cardMap.get("address_line1"),
-                    (String) cardMap.get("address_line2"),
-                    (String) cardMap.get("address_zip"),
-                    (String) cardMap.get("address_state")
-                    );
-            CardParams cardParams = new CardParams(
-                    (String) Objects.requireNonNull(cardMap.get("number")),
-                    (Integer) Objects.requireNonNull(cardMap.get("exp_month")),
-                    (Integer) Objects.requireNonNull(cardMap.get("exp_year")),
-                    (String) cardMap.get("cvc"),
-                    (String) cardMap.get("name"),
-                    address,
-                    (String) cardMap.get("currency")
-            );
-            sourceCallback = new ApiResultCallback<Source>() {
-                public void onSuccess(@NonNull Source source) {
-                    Map<String, Object> map = StripeMapUtil.SourceUtil.toMap(source);
-                    removeNullAndEmptyParamsIncl(map);
-                    try {
-                        result.success(map);
-                    } catch (Exception e) {
-                        String errorCodeDefault = e.getClass().toString();
-                        String message = e.getMessage() != null ? e.getMessage() : e.toString();
-                        result.error(errorCodeDefault, message, null);
-                    }
-                }
+        Address address = new Address(
+                (String) cardMap.get("address_city"),
+                (String) cardMap.get("address_country"),
+                (String) cardMap.get("address_line1"),
+                (String) cardMap.get("address_line2"),
+                (String) cardMap.get("address_zip"),
+                (String) cardMap.get("address_state")
+                );
+        return new CardParams(
+                (String) Objects.requireNonNull(cardMap.get("number")),
+                (Integer) Objects.requireNonNull(cardMap.get("exp_month")),
+                (Integer) Objects.requireNonNull(cardMap.get("exp_year")),
+                (String) cardMap.get("cvc"),
+                (String) cardMap.get("name"),
+                address,
+                (String) cardMap.get("currency")
+        );
+    }
 
-                public void onError(@NonNull Exception error) {
-                    String errorCodeDefault = error.getClass().toString();
-                    if (error instanceof InvalidRequestException) {
-                        StripeError stripeError = ((InvalidRequestException) error).getStripeError();
-                        if (stripeError != null) {
-                            String code = stripeError.getCode();
-                            code = code != null ? code : errorCodeDefault;
-                            result.error(code, stripeError.getMessage(), null);
-                            return;
+    private static SourceParams alipayParamsFromMap(Map<String, ?> sourceParams) {
+        return SourceParams.createAlipayReusableParams(
+                (String) sourceParams.get("currency"),
+                (String) sourceParams.get("name"),
+                (String) sourceParams.get("email"),
+                (String) sourceParams.get("return_url")
+        );
+    }
+
+    /**
+     * @return the Stripe error code the card would be declined with, or null if it looks valid
+     */
+    @Nullable
+    private static String validateCardMap(Map<String, ?> cardMap) {
+        return CardValidator.validate(
+                (String) cardMap.get("number"),
+                (Integer) cardMap.get("exp_month"),
+                (Integer) cardMap.get("exp_year"),
+                (String) cardMap.get("cvc"));
+    }
+
+    private static String requestIdFrom(MethodCall call) {
+        String requestId = call.argument("request_id");
+        return requestId != null ? requestId : UUID.randomUUID().toString();
+    }
+
+    /**
+     * {@link #createSource} for a direct call; with queue_if_offline and the offline queue running, a
+     * request that can't reach Stripe is persisted for replay and answered with a "queued_offline"
+     * error whose details are the queue id. Its outcome arrives later on the event stream.
+     */
+    private void createSourceQueueable(MethodCall call, SourceParams params, boolean binary, boolean stripeErrorCodes,
+                                       Result result, boolean offMainThread) {
+        String idempotencyKey = call.argument("idempotency_key");
+        final OfflineSourceQueue offlineQueue = this.offlineQueue;
+        if (offlineQueue != null && Boolean.TRUE.equals(call.argument("queue_if_offline"))) {
+            if (idempotencyKey == null) {
+                // the failed attempt may still have reached Stripe, the replay must not create a second source
+                idempotencyKey = UUID.randomUUID().toString();
+            }
+            result = queueOnNetworkError(offlineQueue, call.method, new HashMap<String, Object>((Map<String, ?>) call.arguments()),
+                    idempotencyKey, result);
+        }
+        createSource(call.method, requestIdFrom(call), idempotencyKey, (String) call.argument("stripe_account"), params,
+                binary, StripeMapUtil.Projection.of(call.<List<?>>argument("fields")), stripeErrorCodes, result, offMainThread);
+    }
+
+    private static Result queueOnNetworkError(final OfflineSourceQueue offlineQueue, final String method,
+                                              final Map<String, Object> args, final String idempotencyKey, final Result result) {
+        return new Result() {
+            @Override
+            public void success(@Nullable Object o) {
+                result.success(o);
+            }
+
+            @Override
+            public void error(@NonNull final String errorCode, @Nullable final String errorMessage, @Nullable final Object errorDetails) {
+                if (!NETWORK_ERROR_CODE.equals(errorCode)) {
+                    result.error(errorCode, errorMessage, errorDetails);
+                    return;
+                }
+                offlineQueue.enqueue(method, args, idempotencyKey, new OfflineSourceQueue.QueuedCallback() {
+                    @Override
+                    public void onQueued(@Nullable String queueId) {
+                        if (queueId != null) {
+                            result.error("queued_offline", "Stripe is unreachable, the request will be replayed", queueId);
+                        } else {
+                            result.error(errorCode, errorMessage, errorDetails);
                         }
                     }
-                    String message = error.getMessage() != null ? error.getMessage() : error.toString();
-                    result.error(errorCodeDefault, message, null);
+                });
+            }
+
+            @Override
+            public void notImplemented() {
+                result.notImplemented();
+            }
+        };
+    }
+
+    private void startOfflineQueue(int maxEntries) {
+        if (offlineQueue != null || !OfflineSourceQueue.isSupported()) {
+            return;
+        }
+        offlineQueue = new OfflineSourceQueue(appContext, new OfflineSourceQueue.Replayer() {
+            @Override
+            public void replay(@NonNull OfflineSourceQueue.Entry entry, @NonNull final OfflineSourceQueue.ReplayCallback callback) {
+                final boolean card = !"createSourceFromAliPay".equals(entry.method);
+                final SourceParams params;
+                try {
+                    params = card ? SourceParams.createCardParams(cardParamsFromMap(entry.args)) : alipayParamsFromMap(entry.args);
+                } catch (Exception e) {
+                    callback.onError(e.getClass().toString(), e.getMessage());
+                    return;
                 }
-            };
+                createSource(entry.method, "offline/" + entry.id, entry.idempotencyKey,
+                        (String) entry.args.get("stripe_account"), params,
+                        Boolean.TRUE.equals(entry.args.get("binary")), null, card, new Result() {
+                            @Override
+                            public void success(@Nullable Object source) {
+                                callback.onResult(source);
+                            }
 
-            stripe.createSource(SourceParams.createCardParams(cardParams), sourceCallback);
-        } else if (call.method.equals("createSourceFromAliPay")) {
-            sourceCallback = new ApiResultCallback<Source>() {
-                public void onSuccess(@NonNull Source source) {
-                    Map<String, Object> map = StripeMapUtil.SourceUtil.toMap(source);
-                    removeNullAndEmptyParamsIncl(map);
-                    try {
-                        result.success(map);
-                    } catch (Exception e) {
-                        String errorCodeDefault = e.getClass().toString();
-                        String message = e.getMessage() != null ? e.getMessage() : e.toString();
-                        result.error(errorCodeDefault, message, null);
+                            @Override
+                            public void error(@NonNull String errorCode, @Nullable String errorMessage, @Nullable Object errorDetails) {
+                                if (NETWORK_ERROR_CODE.equals(errorCode)) {
+                                    callback.onNetworkError();
+                                } else {
+                                    callback.onError(errorCode, errorMessage);
+                                }
+                            }
+
+                            @Override
+                            public void notImplemented() {
+                                callback.onError("not_implemented", null);
+                            }
+                        }, true);
+            }
+        }, new OfflineSourceQueue.Listener() {
+            @Override
+            public void onReplayed(@NonNull OfflineSourceQueue.Entry entry, @Nullable Object source) {
+                Map<String, Object> data = new HashMap<>();
+                data.put("method", entry.method);
+                data.put("source", source);
+                events.emit(OFFLINE_QUEUE_FLOW, entry.id, PaymentEventStream.STAGE_COMPLETED, data);
+            }
+
+            @Override
+            public void onFailed(@NonNull OfflineSourceQueue.Entry entry, @NonNull String code, @Nullable String message) {
+                Map<String, Object> data = new HashMap<>();
+                data.put("method", entry.method);
+                data.put("code", code);
+                data.put("message", message);
+                events.emit(OFFLINE_QUEUE_FLOW, entry.id, PaymentEventStream.STAGE_FAILED, data);
+            }
+        });
+        offlineQueue.start(maxEntries);
+    }
+
+    @Nullable
+    private Stripe stripeFor(@Nullable String stripeAccountId) {
+        final String publishableKey = this.publishableKey;
+        final Context appContext = this.appContext;
+        if (TextUtils.isEmpty(stripeAccountId) || publishableKey == null || appContext == null) {
+            return stripe;
+        }
+        return StripeClientPool.get(appContext, publishableKey, stripeAccountId);
+    }
+
+    /**
+     * Creates a Source through {@link #sourceRequests}, each request with its own callback.
+     * Stage events are emitted with the method as flow and the request id as flow id.
+     *
+     * @param idempotencyKey forwarded to Stripe; a request with the key of one in flight or recently
+     *                       completed shares its outcome instead of calling Stripe again
+     * @param stripeAccountId connected account to create the source for, null for the platform account
+     * @param projection fields of the source map to answer with, null for all; ignored for binary results
+     * @param stripeErrorCodes report the Stripe error code of invalid requests instead of the exception class
+     */
+    private void createSource(final String method, final String requestId, @Nullable final String idempotencyKey,
+                              @Nullable final String stripeAccountId, final SourceParams params, final boolean binary,
+                              @Nullable final StripeMapUtil.Projection projection, final boolean stripeErrorCodes,
+                              final Result result, final boolean offMainThread) {
+        final Stripe stripe = stripeFor(stripeAccountId);
+        // Stripe scopes idempotency keys to the account, so does the cache
+        final String cacheKey = idempotencyKey == null || TextUtils.isEmpty(stripeAccountId)
+                ? idempotencyKey : stripeAccountId + ':' + idempotencyKey;
+        if (stripe == null) {
+            result.error("Stripe not initialized", "init must be called before " + method, null);
+            return;
+        }
+        events.emit(method, requestId, PaymentEventStream.STAGE_STARTED);
+        if (idempotencyKey != null && !idempotentSources.acquire(cacheKey, idempotentSources.fingerprint(params.toParamMap()),
+                new IdempotentSourceCache.Waiter() {
+                    @Override
+                    public void onSource(@NonNull Source source) {
+                        sendSource(method, source, binary, projection, result, offMainThread);
+                        events.emit(method, requestId, PaymentEventStream.STAGE_COMPLETED);
+                    }
+
+                    @Override
+                    public void onError(@NonNull String code, @Nullable String message) {
+                        result.error(code, message, null);
+                        events.emit(method, requestId, PaymentEventStream.STAGE_FAILED);
                     }
+                })) {
+            // answered from the cache or by the request already in flight with this key
+            return;
+        }
+        // requests waiting on this key are released exactly once, with the outcome the leader got
+        final AtomicBoolean released = new AtomicBoolean(idempotencyKey == null);
+        final AtomicBoolean sent = new AtomicBoolean();
+        final Result leaderResult = idempotencyKey == null ? result : new Result() {
+            @Override
+            public void success(@Nullable Object o) {
+                result.success(o);
+            }
+
+            @Override
+            public void error(@NonNull String errorCode, @Nullable String errorMessage, @Nullable Object errorDetails) {
+                result.error(errorCode, errorMessage, errorDetails);
+                // a leader cancelled once sent leaves its waiters on the Stripe call, which still
+                // releases them and caches the source; otherwise the registry answered without
+                // calling Stripe (duplicate request id, cancelled while queued) and so are they
+                if (!sent.get() && released.compareAndSet(false, true)) {
+                    idempotentSources.fail(cacheKey, errorCode, errorMessage);
                 }
+            }
+
+            @Override
+            public void notImplemented() {
+                result.notImplemented();
+            }
+        };
+        final long submittedAt = metrics.now();
+        sourceRequests.submit(requestId, leaderResult, new Runnable() {
+            @Override
+            public void run() {
+                events.emit(method, requestId, "request_sent");
+                metrics.recordSince("queue_wait.", method, submittedAt);
+                final long sentAt = metrics.now();
+                sent.set(true);
+                sendCreateSource(stripe, params, idempotencyKey, stripeAccountId, new ApiResultCallback<Source>() {
+                    public void onSuccess(@NonNull Source source) {
+                        metrics.recordSince("stripe_request.", method, sentAt);
+                        if (released.compareAndSet(false, true)) {
+                            idempotentSources.complete(cacheKey, source);
+                        }
+                        PluginMetrics.Span span = metrics.begin("callback.onSuccess.", method);
+                        Result result = sourceRequests.complete(requestId);
+                        if (events.isListening()) {
+                            Map<String, Object> data = new HashMap<>();
+                            data.put("source_id", source.getId());
+                            if (source.getStatus() != null) {
+                                data.put("status", source.getStatus().name());
+                            }
+                            if (source.getRedirect() != null) {
+                                // lets the app start the redirect before the full source is mapped
+                                data.put("redirect_url", source.getRedirect().getUrl());
+                            }
+                            events.emit(method, requestId, "source_created", data);
+                        }
+                        if (result != null) {
+                            sendSource(method, source, binary, projection, result, offMainThread);
+                        }
+                        events.emit(method, requestId, result != null
+                                ? PaymentEventStream.STAGE_COMPLETED : PaymentEventStream.STAGE_CANCELLED);
+                        metrics.end(span);
+                    }
+
+                    public void onError(@NonNull Exception error) {
+                        metrics.recordSince("stripe_request.", method, sentAt);
+                        log.log(PluginLog.WARN, method, error);
+                        if (released.compareAndSet(false, true)) {
+                            idempotentSources.fail(cacheKey, sourceErrorCode(error, stripeErrorCodes),
+                                    sourceErrorMessage(error, stripeErrorCodes));
+                        }
+                        PluginMetrics.Span span = metrics.begin("callback.onError.", method);
+                        Result result = sourceRequests.complete(requestId);
+                        if (result != null) {
+                            sendSourceError(error, stripeErrorCodes, result);
+                        }
+                        if (events.isListening()) {
+                            Map<String, Object> data = new HashMap<>();
+                            data.put("message", error.getMessage() != null ? error.getMessage() : error.toString());
+                            events.emit(method, requestId, result != null
+                                    ? PaymentEventStream.STAGE_FAILED : PaymentEventStream.STAGE_CANCELLED, data);
+                        }
+                        metrics.end(span);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stripe takes the Stripe-Account header from the call, not from the client, so the account is
+     * always passed: null would send the request for the platform account even on a pooled client
+     * built for a connected one.
+     */
+    static void sendCreateSource(@NonNull Stripe stripe, @NonNull SourceParams params, @Nullable String idempotencyKey,
+                                 @Nullable String stripeAccountId, @NonNull ApiResultCallback<Source> callback) {
+        stripe.createSource(params, idempotencyKey, TextUtils.isEmpty(stripeAccountId) ? null : stripeAccountId, callback);
+    }
 
-                public void onError(@NonNull Exception error) {
-                    String errorCodeDefault = error.getClass().toString();
-                    String message = error.getMessage() != null ? error.getMessage() : error.toString();
-                    result.error(errorCodeDefault, message, null);
+    /**
+     * Creates the card's PaymentMethod and confirms the PaymentIntent with it in one Stripe call, on
+     * {@link #paymentExecutor}. Answers with the PaymentIntent whatever its status; one in
+     * requires_action needs the app to complete authentication.
+     */
+    private void confirmPaymentIntent(final String method, final String requestId, @Nullable final String idempotencyKey,
+                                      @Nullable String stripeAccountId, final ConfirmPaymentIntentParams params,
+                                      final Result result) {
+        final Stripe stripe = stripeFor(stripeAccountId);
+        if (stripe == null) {
+            result.error("Stripe not initialized", "init must be called before " + method, null);
+            return;
+        }
+        events.emit(method, requestId, PaymentEventStream.STAGE_STARTED);
+        final long submittedAt = metrics.now();
+        // the charge goes through whatever the app does, so once sent it always reports its outcome
+        sourceRequests.submit(requestId, result, false, new Runnable() {
+            @Override
+            public void run() {
+                paymentExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        events.emit(method, requestId, "request_sent");
+                        metrics.recordSince("queue_wait.", method, submittedAt);
+                        final long sentAt = metrics.now();
+                        final PaymentIntent paymentIntent;
+                        try {
+                            paymentIntent = stripe.confirmPaymentIntentSynchronous(params, idempotencyKey);
+                        } catch (Exception e) {
+                            metrics.recordSince("stripe_request.", method, sentAt);
+                            log.log(PluginLog.WARN, method, e);
+                            Result result = sourceRequests.complete(requestId);
+                            if (result != null) {
+                                sendPaymentError(e, result);
+                            }
+                            events.emit(method, requestId, result != null
+                                    ? PaymentEventStream.STAGE_FAILED : PaymentEventStream.STAGE_CANCELLED);
+                            return;
+                        }
+                        metrics.recordSince("stripe_request.", method, sentAt);
+                        Result result = sourceRequests.complete(requestId);
+                        if (result != null) {
+                            result.success(StripeMapUtil.PaymentIntentUtil.toMap(paymentIntent));
+                        }
+                        events.emit(method, requestId, result != null
+                                ? PaymentEventStream.STAGE_COMPLETED : PaymentEventStream.STAGE_CANCELLED);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Like {@link #sendSourceError}, but a declined card also carries Stripe's error code, e.g.
+     * card_declined: a confirmation is new API, so no caller matches on the CardException class.
+     */
+    private static void sendPaymentError(Exception error, Result result) {
+        StripeError stripeError = error instanceof CardException ? ((CardException) error).getStripeError() : null;
+        if (stripeError != null && stripeError.getCode() != null) {
+            result.error(stripeError.getCode(), stripeError.getMessage(), null);
+            return;
+        }
+        sendSourceError(error, true, result);
+    }
+
+    private static void sendSourceError(Exception error, boolean stripeErrorCodes, Result result) {
+        result.error(sourceErrorCode(error, stripeErrorCodes), sourceErrorMessage(error, stripeErrorCodes), null);
+    }
+
+    private static String sourceErrorCode(Exception error, boolean stripeErrorCodes) {
+        StripeError stripeError = reportedStripeError(error, stripeErrorCodes);
+        return stripeError != null && stripeError.getCode() != null ? stripeError.getCode() : error.getClass().toString();
+    }
+
+    private static String sourceErrorMessage(Exception error, boolean stripeErrorCodes) {
+        StripeError stripeError = reportedStripeError(error, stripeErrorCodes);
+        if (stripeError != null) {
+            return stripeError.getMessage();
+        }
+        return error.getMessage() != null ? error.getMessage() : error.toString();
+    }
+
+    /**
+     * The Stripe error of invalid requests when {@code stripeErrorCodes} is set, else null.
+     */
+    @Nullable
+    private static StripeError reportedStripeError(Exception error, boolean stripeErrorCodes) {
+        return stripeErrorCodes && error instanceof InvalidRequestException
+                ? ((InvalidRequestException) error).getStripeError() : null;
+    }
+
+    private void sendSource(final String method, final Source source, final boolean binary,
+                            @Nullable final StripeMapUtil.Projection projection, final Result result, boolean offMainThread) {
+        if (offMainThread) {
+            // Stripe delivers callbacks on the platform thread, move the conversion off it
+            conversionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    sendSource(method, source, binary, projection, result, false);
+                    recordOffMainThread(method, System.nanoTime() - start, false);
                 }
-            };
+            });
+            return;
+        }
+        PluginMetrics.Span span = metrics.begin("convert.", binary ? "source_binary" : "source_map");
+        try {
+            result.success(binary ? StripeMapUtil.BinaryUtil.encode(source) : StripeMapUtil.SourceUtil.toMap(source, projection));
+        } catch (Exception e) {
+            String errorCodeDefault = e.getClass().toString();
+            String message = e.getMessage() != null ? e.getMessage() : e.toString();
+            result.error(errorCodeDefault, message, null);
+        }
+        metrics.end(span);
+    }
 
-            Map<String, ?> sourceParams = call.arguments();
-            stripe.createSource(SourceParams.createAlipayReusableParams(
-                    (String) sourceParams.get("currency"),
-                    (String) sourceParams.get("name"),
-                    (String) sourceParams.get("email"),
-                    (String) sourceParams.get("return_url")
-            ), sourceCallback);
-        } else if (call.method.equals("isGooglePayAvailable")) {
-            gpayDelegate.isGooglePayAvailable(result);
-        } else if (call.method.equals("isApplePayAvailable")) {
-            result.success(false);
-        } else if (call.method.equals("cardFromGooglePay")) { // returns {token: tokenId, card: stripeCard}
-            Map<String, ?> params = call.arguments();
-            Boolean billingAddressRequired = (Boolean) params.get("billing_address_required");
-            billingAddressRequired = billingAddressRequired != null ? billingAddressRequired : false;
-            Double amount = (Double) params.get("amount");
-            amount = amount == null ? 1 : amount;
-            gpayDelegate.cardFromGooglePay(billingAddressRequired, amount, result);
+    private void runOnMain(boolean offMainThread, Runnable runnable) {
+        if (offMainThread) {
+            mainHandler.post(runnable);
         } else {
-            result.notImplemented();
+            runnable.run();
         }
     }
 
-    public static void removeNullAndEmptyParamsIncl(@NonNull Map<String, Object> mapToEdit) {
-        // Remove all null values; they cause validation errors
-        for (String key : new HashSet<>(mapToEdit.keySet())) {
-            if (mapToEdit.get(key) == null) {
-                mapToEdit.remove(key);
-            }
-            if (mapToEdit.get(key) == JSONObject.NULL) {
-                mapToEdit.remove(key);
-            }
+    private void recordOffMainThread(String method, long nanos, boolean countCall) {
+        counter(offMainThreadNanos, method).addAndGet(nanos);
+        if (countCall) {
+            counter(offMainThreadCalls, method).incrementAndGet();
+        }
+    }
 
-            if (mapToEdit.get(key) instanceof CharSequence) {
-                CharSequence sequence = (CharSequence) mapToEdit.get(key);
-                if (TextUtils.isEmpty(sequence)) {
-                    mapToEdit.remove(key);
-                }
+    private static AtomicLong counter(ConcurrentHashMap<String, AtomicLong> counters, String key) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
             }
+        }
+        return counter;
+    }
 
-            if (mapToEdit.get(key) instanceof Map) {
-                Map<String, Object> stringObjectMap = (Map<String, Object>) mapToEdit.get(key);
-                removeNullAndEmptyParamsIncl(stringObjectMap);
-            }
+    private Map<String, Object> getMainThreadSavings() {
+        Map<String, Object> savings = new HashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : offMainThreadNanos.entrySet()) {
+            Map<String, Object> method = new HashMap<>();
+            AtomicLong calls = offMainThreadCalls.get(entry.getKey());
+            method.put("calls", calls != null ? calls.get() : 0L);
+            method.put("saved_ms", entry.getValue().get() / 1e6);
+            savings.put(entry.getKey(), method);
         }
+        return savings;
     }
 }
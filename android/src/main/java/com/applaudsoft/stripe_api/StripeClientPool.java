@@ -0,0 +1,95 @@
+package com.applaudsoft.stripe_api;
+
+import android.content.Context;
+import android.text.TextUtils;
+
+import com.stripe.android.Stripe;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Process-wide LRU of {@link Stripe} clients by publishable key and connected account, shared by
+ * every FlutterEngine, so switching between accounts doesn't rebuild a client each time.
+ */
+final class StripeClientPool {
+    static final int DEFAULT_MAX_SIZE = 8;
+
+    private static final LinkedHashMap<String, Stripe> clients = new LinkedHashMap<String, Stripe>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Stripe> eldest) {
+            if (size() > maxSize) {
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+    };
+    private static int maxSize = DEFAULT_MAX_SIZE;
+    private static long hits;
+    private static long misses;
+    private static long evictions;
+
+    private StripeClientPool() {
+    }
+
+    /**
+     * @param stripeAccountId the connected account requests are made for, or null for the platform account
+     */
+    @NonNull
+    static synchronized Stripe get(@NonNull Context appContext, @NonNull String publishableKey,
+                                   @Nullable String stripeAccountId) {
+        if (TextUtils.isEmpty(stripeAccountId)) {
+            stripeAccountId = null;
+        }
+        final String key = key(publishableKey, stripeAccountId);
+        Stripe stripe = clients.get(key);
+        if (stripe != null) {
+            hits++;
+            return stripe;
+        }
+        misses++;
+        stripe = new Stripe(appContext.getApplicationContext(), publishableKey, stripeAccountId);
+        clients.put(key, stripe);
+        return stripe;
+    }
+
+    /**
+     * Adds a client built elsewhere, e.g. by the prewarmer, unless one is already pooled.
+     */
+    static synchronized void offer(@NonNull String publishableKey, @Nullable String stripeAccountId,
+                                   @NonNull Stripe stripe) {
+        final String key = key(publishableKey, stripeAccountId);
+        if (!clients.containsKey(key)) {
+            clients.put(key, stripe);
+        }
+    }
+
+    static synchronized void setMaxSize(int maxSize) {
+        StripeClientPool.maxSize = Math.max(1, maxSize);
+        while (clients.size() > StripeClientPool.maxSize) {
+            clients.remove(clients.keySet().iterator().next());
+            evictions++;
+        }
+    }
+
+    @NonNull
+    static synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        stats.put("hit_rate", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        stats.put("size", clients.size());
+        stats.put("max_size", maxSize);
+        return stats;
+    }
+
+    private static String key(String publishableKey, String stripeAccountId) {
+        return TextUtils.isEmpty(stripeAccountId) ? publishableKey : publishableKey + '\n' + stripeAccountId;
+    }
+}
@@ -0,0 +1,171 @@
+package com.applaudsoft.stripe_api;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.text.TextUtils;
+
+import com.stripe.android.Stripe;
+import com.stripe.android.model.Address;
+import com.stripe.android.model.PaymentMethod;
+import com.stripe.android.model.StripeMapUtil;
+import com.stripe.android.model.Token;
+
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Opt-in warm up of the clients and code paths the first payment would otherwise pay for.
+ * Enabled with {@code <meta-data android:name="com.applaudsoft.stripe_api.PREWARM" android:value="true"/>}
+ * in the app manifest; it runs before Dart calls init, so it uses the publishable key of the last init.
+ */
+class StripePrewarmer {
+    static final String META_DATA_PREWARM = "com.applaudsoft.stripe_api.PREWARM";
+    private static final String PREFS_NAME = "com.applaudsoft.stripe_api";
+    private static final String PREF_PUBLISHABLE_KEY = "last_publishable_key";
+
+    private final Context appContext;
+    private final Map<String, Object> timings = new ConcurrentHashMap<>();
+    private volatile Stripe stripe;
+    private volatile String stripeKey;
+    private volatile GooglePayRequestTemplate requestTemplate;
+
+    StripePrewarmer(@NonNull Context appContext) {
+        this.appContext = appContext;
+    }
+
+    static boolean isEnabled(@NonNull Context context) {
+        try {
+            ApplicationInfo info = context.getPackageManager()
+                    .getApplicationInfo(context.getPackageName(), PackageManager.GET_META_DATA);
+            return info.metaData != null && info.metaData.getBoolean(META_DATA_PREWARM, false);
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Blocking, call it off the platform thread.
+     */
+    void warmUp() {
+        final long start = System.nanoTime();
+        try {
+            final String publishableKey = getPrefs().getString(PREF_PUBLISHABLE_KEY, null);
+            timings.put("key_available", publishableKey != null);
+            if (publishableKey != null) {
+                long stepStart = System.nanoTime();
+                stripe = new Stripe(appContext, publishableKey);
+                stripeKey = publishableKey;
+                timings.put("stripe_ms", millisSince(stepStart));
+
+                stepStart = System.nanoTime();
+                GooglePayRequestTemplate template = new GooglePayRequestTemplate(publishableKey);
+                template.createPaymentDataRequest(true, 1.0);
+                requestTemplate = template;
+                timings.put("request_template_ms", millisSince(stepStart));
+            }
+
+            long stepStart = System.nanoTime();
+            warmSerialization();
+            timings.put("serialization_ms", millisSince(stepStart));
+        } catch (Exception e) {
+            timings.put("error", e.toString());
+        }
+        timings.put("total_ms", millisSince(start));
+    }
+
+    /**
+     * Runs a dummy Google Pay result through the same parsing and encoding as onActivityResult.
+     */
+    private static void warmSerialization() throws Exception {
+        final JSONObject tokenJson = new JSONObject()
+                .put("id", "tok_prewarm")
+                .put("object", "token")
+                .put("type", "card")
+                .put("created", 0)
+                .put("livemode", false)
+                .put("used", false)
+                .put("card", new JSONObject()
+                        .put("id", "card_prewarm")
+                        .put("object", "card")
+                        .put("brand", "Visa")
+                        .put("country", "US")
+                        .put("exp_month", 1)
+                        .put("exp_year", 2030)
+                        .put("funding", "credit")
+                        .put("last4", "4242"));
+        final JSONObject paymentData = new JSONObject()
+                .put("paymentMethodData", new JSONObject()
+                        .put("tokenizationData", new JSONObject()
+                                .put("token", tokenJson.toString()))
+                        .put("info", new JSONObject()
+                                .put("billingAddress", new JSONObject()
+                                        .put("address1", "1 Prewarm St")
+                                        .put("locality", "City")
+                                        .put("countryCode", "US")
+                                        .put("postalCode", "00000"))));
+        final GooglePayPaymentData parsed = GooglePayPaymentData.parse(paymentData.toString());
+        final Token token = parsed.token;
+        final PaymentMethod.BillingDetails billingDetails = parsed.billingDetails;
+        final Address address = billingDetails != null ? billingDetails.address : null;
+        if (token != null) {
+            StripeMapUtil.CardUtil.toMap(token.getCard());
+            StripeMapUtil.BinaryUtil.encodeGooglePayResult(token, address);
+        }
+        if (address != null) {
+            StripeMapUtil.AddressUtil.toMap(address);
+        }
+    }
+
+    /**
+     * Remembers {@code publishableKey} for the next process start.
+     */
+    void rememberKey(@NonNull String publishableKey) {
+        if (!publishableKey.equals(getPrefs().getString(PREF_PUBLISHABLE_KEY, null))) {
+            getPrefs().edit().putString(PREF_PUBLISHABLE_KEY, publishableKey).apply();
+        }
+    }
+
+    /**
+     * @return the prewarmed instance if it was built for {@code publishableKey}; it is handed out once
+     */
+    @Nullable
+    Stripe takeStripe(@NonNull String publishableKey) {
+        final Stripe stripe = this.stripe;
+        if (stripe == null || !TextUtils.equals(stripeKey, publishableKey)) {
+            return null;
+        }
+        this.stripe = null;
+        timings.put("stripe_prewarm_used", true);
+        return stripe;
+    }
+
+    @Nullable
+    GooglePayRequestTemplate getRequestTemplate() {
+        return requestTemplate;
+    }
+
+    void putTiming(@NonNull String name, double millis) {
+        timings.put(name, millis);
+    }
+
+    @NonNull
+    Map<String, Object> getTimings() {
+        return new HashMap<>(timings);
+    }
+
+    private SharedPreferences getPrefs() {
+        return appContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    static double millisSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1e6;
+    }
+}
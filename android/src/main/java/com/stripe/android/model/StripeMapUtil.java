@@ -5,14 +5,95 @@ import android.text.TextUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.AbstractMap;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 public class StripeMapUtil {
+    /**
+     * The fields a caller asked for, as paths such as {@code "id"} or {@code "card.last4"}. A
+     * top-level field with no subpath selects its whole value. Fields that weren't asked for are
+     * never read from the model.
+     */
+    public static final class Projection {
+        // field -> projection of its value, or null for the whole value
+        private final Map<String, Projection> fields = new HashMap<>();
+
+        private Projection(Collection<?> paths) {
+            final Map<String, Set<String>> subpaths = new HashMap<>();
+            for (Object path : paths) {
+                final String value = String.valueOf(path);
+                final int dot = value.indexOf('.');
+                if (dot < 0) {
+                    subpaths.put(value, null);
+                    continue;
+                }
+                final String field = value.substring(0, dot);
+                if (subpaths.containsKey(field) && subpaths.get(field) == null) {
+                    // the whole value was already requested
+                    continue;
+                }
+                Set<String> subfields = subpaths.get(field);
+                if (subfields == null) {
+                    subfields = new HashSet<>();
+                    subpaths.put(field, subfields);
+                }
+                subfields.add(value.substring(dot + 1));
+            }
+            // nested projections are built once here, not on every conversion
+            for (Map.Entry<String, Set<String>> entry : subpaths.entrySet()) {
+                fields.put(entry.getKey(), entry.getValue() == null ? null : new Projection(entry.getValue()));
+            }
+        }
+
+        /**
+         * @return null, meaning everything, when {@code paths} is null or empty
+         */
+        @Nullable
+        public static Projection of(@Nullable List<?> paths) {
+            if (paths == null || paths.isEmpty()) {
+                return null;
+            }
+            return new Projection(paths);
+        }
+
+        public static boolean includes(@Nullable Projection projection, @NonNull String field) {
+            return projection == null || projection.fields.containsKey(field);
+        }
+
+        /**
+         * @return the projection of a nested value, null if all of it was requested
+         */
+        @Nullable
+        public static Projection nested(@Nullable Projection projection, @NonNull String field) {
+            if (projection == null) {
+                return null;
+            }
+            return projection.fields.get(field);
+        }
+
+        /**
+         * Drops the entries of an already built nested map that weren't requested.
+         */
+        @NonNull
+        public static Map<String, Object> filter(@Nullable Projection projection, @NonNull String field,
+                                                 @NonNull Map<String, Object> map) {
+            final Projection nested = nested(projection, field);
+            if (nested == null) {
+                return map;
+            }
+            map.keySet().retainAll(nested.fields.keySet());
+            return map;
+        }
+    }
+
     public static class GooglePayUtil {
         public static Token tokenFromGooglePay(@NonNull JSONObject googlePayPaymentData)
                 throws JSONException {
@@ -87,34 +168,80 @@ public class StripeMapUtil {
 
         @NonNull
         public static Map<String, Object> toMap(Card card) {
-            final AbstractMap<String, Object> map = new HashMap<>();
+            return toMap(card, null);
+        }
+
+        @NonNull
+        public static Map<String, Object> toMap(Card card, @Nullable Projection projection) {
             if (card == null) {
-                return map;
+                return new HashMap<>();
+            }
+            final Map<String, Object> map = newMap(21);
+            if (Projection.includes(projection, FIELD_NAME)) {
+                putIfNotEmpty(map, FIELD_NAME, card.getName());
+            }
+            if (Projection.includes(projection, FIELD_ADDRESS_CITY)) {
+                putIfNotEmpty(map, FIELD_ADDRESS_CITY, card.getAddressCity());
+            }
+            if (Projection.includes(projection, FIELD_ADDRESS_COUNTRY)) {
+                putIfNotEmpty(map, FIELD_ADDRESS_COUNTRY, card.getAddressCountry());
+            }
+            if (Projection.includes(projection, FIELD_ADDRESS_LINE1)) {
+                putIfNotEmpty(map, FIELD_ADDRESS_LINE1, card.getAddressLine1());
+            }
+            if (Projection.includes(projection, FIELD_ADDRESS_LINE1_CHECK)) {
+                putIfNotEmpty(map, FIELD_ADDRESS_LINE1_CHECK, card.getAddressLine1Check());
+            }
+            if (Projection.includes(projection, FIELD_ADDRESS_LINE2)) {
+                putIfNotEmpty(map, FIELD_ADDRESS_LINE2, card.getAddressLine2());
+            }
+            if (Projection.includes(projection, FIELD_ADDRESS_STATE)) {
+                putIfNotEmpty(map, FIELD_ADDRESS_STATE, card.getAddressState());
+            }
+            if (Projection.includes(projection, FIELD_ADDRESS_ZIP)) {
+                putIfNotEmpty(map, FIELD_ADDRESS_ZIP, card.getAddressZip());
+            }
+            if (Projection.includes(projection, FIELD_ADDRESS_ZIP_CHECK)) {
+                putIfNotEmpty(map, FIELD_ADDRESS_ZIP_CHECK, card.getAddressZipCheck());
+            }
+            if (Projection.includes(projection, FIELD_BRAND)) {
+                putIfNotEmpty(map, FIELD_BRAND, card.getBrand().getDisplayName());
+            }
+            if (Projection.includes(projection, FIELD_CURRENCY)) {
+                putIfNotEmpty(map, FIELD_CURRENCY, card.getCurrency());
+            }
+            if (Projection.includes(projection, FIELD_COUNTRY)) {
+                putIfNotEmpty(map, FIELD_COUNTRY, card.getCountry());
+            }
+            if (Projection.includes(projection, FIELD_CUSTOMER)) {
+                putIfNotEmpty(map, FIELD_CUSTOMER, card.getCustomerId());
+            }
+            if (Projection.includes(projection, FIELD_CVC_CHECK)) {
+                putIfNotEmpty(map, FIELD_CVC_CHECK, card.getCvcCheck());
+            }
+            if (Projection.includes(projection, FIELD_EXP_MONTH)) {
+                putIfNotEmpty(map, FIELD_EXP_MONTH, card.getExpMonth());
+            }
+            if (Projection.includes(projection, FIELD_EXP_YEAR)) {
+                putIfNotEmpty(map, FIELD_EXP_YEAR, card.getExpYear());
+            }
+            if (Projection.includes(projection, FIELD_FINGERPRINT)) {
+                putIfNotEmpty(map, FIELD_FINGERPRINT, card.getFingerprint());
+            }
+            if (Projection.includes(projection, FIELD_FUNDING) && card.getFunding() != null) {
+                map.put(FIELD_FUNDING, card.getFunding().name().toLowerCase());
+            }
+            if (Projection.includes(projection, FIELD_ID)) {
+                putIfNotEmpty(map, FIELD_ID, card.getId());
+            }
+            if (Projection.includes(projection, FIELD_LAST4)) {
+                putIfNotEmpty(map, FIELD_LAST4, card.getLast4());
+            }
+            if (Projection.includes(projection, FIELD_TOKENIZATION_METHOD) && card.getTokenizationMethod() != null) {
+                map.put(FIELD_TOKENIZATION_METHOD, card.getTokenizationMethod().name());
             }
-            map.put(FIELD_NAME, card.getName());
-            map.put(FIELD_ADDRESS_CITY, card.getAddressCity());
-            map.put(FIELD_ADDRESS_COUNTRY, card.getAddressCountry());
-            map.put(FIELD_ADDRESS_LINE1, card.getAddressLine1());
-            map.put(FIELD_ADDRESS_LINE1_CHECK, card.getAddressLine1Check());
-            map.put(FIELD_ADDRESS_LINE2, card.getAddressLine2());
-            map.put(FIELD_ADDRESS_STATE, card.getAddressState());
-            map.put(FIELD_ADDRESS_ZIP, card.getAddressZip());
-            map.put(FIELD_ADDRESS_ZIP_CHECK, card.getAddressZipCheck());
-            map.put(FIELD_BRAND, card.getBrand().getDisplayName());
-            map.put(FIELD_CURRENCY, card.getCurrency());
-            map.put(FIELD_COUNTRY, card.getCountry());
-            map.put(FIELD_CUSTOMER, card.getCustomerId());
-            map.put(FIELD_CVC_CHECK, card.getCvcCheck());
-            map.put(FIELD_EXP_MONTH, card.getExpMonth());
-            map.put(FIELD_EXP_YEAR, card.getExpYear());
-            map.put(FIELD_FINGERPRINT, card.getFingerprint());
-            map.put(FIELD_FUNDING, card.getFunding() != null ? card.getFunding().name().toLowerCase() : null);
-            map.put(FIELD_ID, card.getId());
-            map.put(FIELD_LAST4, card.getLast4());
-            map.put(FIELD_TOKENIZATION_METHOD, card.getTokenizationMethod() != null ? card.getTokenizationMethod().name() : null);
 //            map.put(FIELD_METADATA, card.getMetadata());
             map.put(FIELD_OBJECT, VALUE_CARD);
-            removeNullAndEmptyParams(map);
             return map;
         }
     }
@@ -139,49 +266,76 @@ public class StripeMapUtil {
 
         @NonNull
         public static Map<String, Object> toMap(Source source) {
-            final AbstractMap<String, Object> map = new HashMap<>();
+            return toMap(source, null);
+        }
+
+        /**
+         * @param projection fields to extract, e.g. {@code "id"}, {@code "status"}, {@code "card.last4"};
+         *                   null for all of them
+         */
+        @NonNull
+        public static Map<String, Object> toMap(Source source, @Nullable Projection projection) {
             if (source == null) {
-                return map;
+                return new HashMap<>();
             }
+            final Map<String, Object> map = newMap(15);
 
-            map.put(FIELD_ID, source.getId());
-            map.put(FIELD_AMOUNT, source.getAmount());
-            map.put(FIELD_CLIENT_SECRET, source.getClientSecret());
+            if (Projection.includes(projection, FIELD_ID)) {
+                putIfNotEmpty(map, FIELD_ID, source.getId());
+            }
+            if (Projection.includes(projection, FIELD_AMOUNT)) {
+                putIfNotEmpty(map, FIELD_AMOUNT, source.getAmount());
+            }
+            if (Projection.includes(projection, FIELD_CLIENT_SECRET)) {
+                putIfNotEmpty(map, FIELD_CLIENT_SECRET, source.getClientSecret());
+            }
 
-            if (source.getCodeVerification() != null) {
-                map.put(FIELD_CODE_VERIFICATION, SourceCodeVerificationUtil.toMap(source.getCodeVerification()));
+            if (Projection.includes(projection, FIELD_CODE_VERIFICATION) && source.getCodeVerification() != null) {
+                map.put(FIELD_CODE_VERIFICATION, Projection.filter(projection, FIELD_CODE_VERIFICATION,
+                        SourceCodeVerificationUtil.toMap(source.getCodeVerification())));
             }
 
-            map.put(FIELD_CREATED, source.getCreated());
-            map.put(FIELD_CURRENCY, source.getCurrency());
-            if (source.getFlow() != null) {
+            if (Projection.includes(projection, FIELD_CREATED)) {
+                putIfNotEmpty(map, FIELD_CREATED, source.getCreated());
+            }
+            if (Projection.includes(projection, FIELD_CURRENCY)) {
+                putIfNotEmpty(map, FIELD_CURRENCY, source.getCurrency());
+            }
+            if (Projection.includes(projection, FIELD_FLOW) && source.getFlow() != null) {
                 map.put(FIELD_FLOW, source.getFlow().name());
             }
-            map.put(FIELD_LIVEMODE, source.isLiveMode());
+            if (Projection.includes(projection, FIELD_LIVEMODE)) {
+                putIfNotEmpty(map, FIELD_LIVEMODE, source.isLiveMode());
+            }
 //            map.put(FIELD_METADATA, source.getMetaData());
 
-            if (source.getOwner() != null) {
-                map.put(FIELD_OWNER, SourceOwnerUtil.toMap(source.getOwner()));
+            if (Projection.includes(projection, FIELD_OWNER) && source.getOwner() != null) {
+                map.put(FIELD_OWNER, Projection.filter(projection, FIELD_OWNER, SourceOwnerUtil.toMap(source.getOwner())));
             }
 
-            if (source.getReceiver() != null) {
-                map.put(FIELD_RECEIVER, SourceReceiverUtil.toMap(source.getReceiver()));
+            if (Projection.includes(projection, FIELD_RECEIVER) && source.getReceiver() != null) {
+                map.put(FIELD_RECEIVER, Projection.filter(projection, FIELD_RECEIVER, SourceReceiverUtil.toMap(source.getReceiver())));
             }
 
-            if (source.getRedirect() != null) {
-                map.put(FIELD_REDIRECT, SourceRedirectUtil.toMap(source.getRedirect()));
+            if (Projection.includes(projection, FIELD_REDIRECT) && source.getRedirect() != null) {
+                map.put(FIELD_REDIRECT, Projection.filter(projection, FIELD_REDIRECT, SourceRedirectUtil.toMap(source.getRedirect())));
             }
 
-            map.put(source.getTypeRaw(), source.getSourceTypeData());
+            final String typeRaw = source.getTypeRaw();
+            if (!TextUtils.isEmpty(typeRaw) && Projection.includes(projection, typeRaw) && source.getSourceTypeData() != null) {
+                map.put(typeRaw, copyNonEmpty(source.getSourceTypeData(), Projection.nested(projection, typeRaw)));
+            }
 
-            if (source.getStatus() != null) {
+            if (Projection.includes(projection, FIELD_STATUS) && source.getStatus() != null) {
                 map.put(FIELD_STATUS, source.getStatus().name());
             }
-            map.put(FIELD_TYPE, source.getTypeRaw());
-            if (source.getUsage() != null) {
+            // the type names the key of the type data, which is useless without it
+            if (Projection.includes(projection, FIELD_TYPE) || (typeRaw != null && Projection.includes(projection, typeRaw))) {
+                putIfNotEmpty(map, FIELD_TYPE, typeRaw);
+            }
+            if (Projection.includes(projection, FIELD_USAGE) && source.getUsage() != null) {
                 map.put(FIELD_USAGE, source.getUsage().name());
             }
-            removeNullAndEmptyParams(map);
             return map;
         }
     }
@@ -194,7 +348,7 @@ public class StripeMapUtil {
             if (sourceCodeVerification == null) {
                 return null;
             }
-            final Map<String, Object> map = new HashMap<>();
+            final Map<String, Object> map = newMap(2);
             map.put(FIELD_ATTEMPTS_REMAINING, sourceCodeVerification.getAttemptsRemaining());
             if (sourceCodeVerification.getStatus() != null) {
                 map.put(FIELD_STATUS, sourceCodeVerification.getStatus().name());
@@ -217,29 +371,28 @@ public class StripeMapUtil {
 
         @NonNull
         public static Map<String, Object> toMap(Source.Owner sourceOwner) {
-            final AbstractMap<String, Object> map = new HashMap<>();
             if (sourceOwner == null) {
-                return map;
+                return new HashMap<>();
             }
+            final Map<String, Object> map = newMap(8);
 
             if (sourceOwner.getAddress() != null) {
                 map.put(FIELD_ADDRESS, AddressUtil.toMap(sourceOwner.getAddress()));
             }
-            map.put(FIELD_EMAIL, sourceOwner.getEmail());
-            map.put(FIELD_NAME, sourceOwner.getName());
-            map.put(FIELD_PHONE, sourceOwner.getPhone());
+            putIfNotEmpty(map, FIELD_EMAIL, sourceOwner.getEmail());
+            putIfNotEmpty(map, FIELD_NAME, sourceOwner.getName());
+            putIfNotEmpty(map, FIELD_PHONE, sourceOwner.getPhone());
             if (sourceOwner.getVerifiedAddress() != null) {
                 map.put(FIELD_VERIFIED_ADDRESS, AddressUtil.toMap(sourceOwner.getVerifiedAddress()));
             }
-            map.put(FIELD_VERIFIED_EMAIL, sourceOwner.getVerifiedEmail());
-            map.put(FIELD_VERIFIED_NAME, sourceOwner.getVerifiedName());
-            map.put(FIELD_VERIFIED_PHONE, sourceOwner.getVerifiedPhone());
-            removeNullAndEmptyParams(map);
+            putIfNotEmpty(map, FIELD_VERIFIED_EMAIL, sourceOwner.getVerifiedEmail());
+            putIfNotEmpty(map, FIELD_VERIFIED_NAME, sourceOwner.getVerifiedName());
+            putIfNotEmpty(map, FIELD_VERIFIED_PHONE, sourceOwner.getVerifiedPhone());
             return map;
         }
     }
 
-    static class AddressUtil {
+    public static class AddressUtil {
         private static final String FIELD_CITY = "city";
         /* 2 Character Country Code */
         private static final String FIELD_COUNTRY = "country";
@@ -250,16 +403,61 @@ public class StripeMapUtil {
 
         @NonNull
         public static Map<String, Object> toMap(Address address) {
-            final HashMap<String, Object> map = new HashMap<>();
             if (address == null) {
-                return map;
+                return new HashMap<>();
+            }
+            final Map<String, Object> map = newMap(6);
+            putIfNotEmpty(map, FIELD_CITY, address.getCity());
+            putIfNotEmpty(map, FIELD_COUNTRY, address.getCountry());
+            putIfNotEmpty(map, FIELD_LINE_1, address.getLine1());
+            putIfNotEmpty(map, FIELD_LINE_2, address.getLine2());
+            putIfNotEmpty(map, FIELD_POSTAL_CODE, address.getPostalCode());
+            putIfNotEmpty(map, FIELD_STATE, address.getState());
+            return map;
+        }
+    }
+
+    public static class PaymentIntentUtil {
+        private static final String FIELD_ID = "id";
+        private static final String FIELD_OBJECT = "object";
+        private static final String FIELD_AMOUNT = "amount";
+        private static final String FIELD_CURRENCY = "currency";
+        private static final String FIELD_STATUS = "status";
+        private static final String FIELD_PAYMENT_METHOD_ID = "payment_method_id";
+        private static final String FIELD_REQUIRES_ACTION = "requires_action";
+        private static final String FIELD_NEXT_ACTION_TYPE = "next_action_type";
+        private static final String FIELD_LAST_PAYMENT_ERROR = "last_payment_error";
+        private static final String FIELD_CODE = "code";
+        private static final String FIELD_DECLINE_CODE = "decline_code";
+        private static final String FIELD_MESSAGE = "message";
+        private static final String VALUE_PAYMENT_INTENT = "payment_intent";
+
+        @NonNull
+        public static Map<String, Object> toMap(PaymentIntent paymentIntent) {
+            if (paymentIntent == null) {
+                return new HashMap<>();
+            }
+            final Map<String, Object> map = newMap(9);
+            putIfNotEmpty(map, FIELD_ID, paymentIntent.getId());
+            map.put(FIELD_OBJECT, VALUE_PAYMENT_INTENT);
+            putIfNotEmpty(map, FIELD_AMOUNT, paymentIntent.getAmount());
+            putIfNotEmpty(map, FIELD_CURRENCY, paymentIntent.getCurrency());
+            if (paymentIntent.getStatus() != null) {
+                map.put(FIELD_STATUS, paymentIntent.getStatus().getCode());
+            }
+            putIfNotEmpty(map, FIELD_PAYMENT_METHOD_ID, paymentIntent.getPaymentMethodId());
+            map.put(FIELD_REQUIRES_ACTION, paymentIntent.requiresAction());
+            if (paymentIntent.getNextActionType() != null) {
+                map.put(FIELD_NEXT_ACTION_TYPE, paymentIntent.getNextActionType().getCode());
+            }
+            final PaymentIntent.Error error = paymentIntent.getLastPaymentError();
+            if (error != null) {
+                final Map<String, Object> errorMap = newMap(3);
+                putIfNotEmpty(errorMap, FIELD_CODE, error.getCode());
+                putIfNotEmpty(errorMap, FIELD_DECLINE_CODE, error.getDeclineCode());
+                putIfNotEmpty(errorMap, FIELD_MESSAGE, error.getMessage());
+                map.put(FIELD_LAST_PAYMENT_ERROR, errorMap);
             }
-            map.put(FIELD_CITY, address.getCity());
-            map.put(FIELD_COUNTRY, address.getCountry());
-            map.put(FIELD_LINE_1, address.getLine1());
-            map.put(FIELD_LINE_2, address.getLine2());
-            map.put(FIELD_POSTAL_CODE, address.getPostalCode());
-            map.put(FIELD_STATE, address.getState());
             return map;
         }
     }
@@ -272,18 +470,18 @@ public class StripeMapUtil {
 
         @NonNull
         public static Map<String, Object> toMap(Source.Receiver sourceReceiver) {
-            final HashMap<String, Object> map = new HashMap<>();
             if (sourceReceiver == null) {
-                return map;
+                return new HashMap<>();
             }
+            final Map<String, Object> map = newMap(4);
 
 //            if (!StripeTextUtils.isBlank(mAddress)) {
 //                map.put(FIELD_ADDRESS, mAddress);
 //            }
-            map.put(FIELD_ADDRESS, sourceReceiver.getAddress());
-            map.put(FIELD_AMOUNT_CHARGED, sourceReceiver.getAmountCharged());
-            map.put(FIELD_AMOUNT_RECEIVED, sourceReceiver.getAmountReceived());
-            map.put(FIELD_AMOUNT_RETURNED, sourceReceiver.getAmountReturned());
+            putIfNotEmpty(map, FIELD_ADDRESS, sourceReceiver.getAddress());
+            putIfNotEmpty(map, FIELD_AMOUNT_CHARGED, sourceReceiver.getAmountCharged());
+            putIfNotEmpty(map, FIELD_AMOUNT_RECEIVED, sourceReceiver.getAmountReceived());
+            putIfNotEmpty(map, FIELD_AMOUNT_RETURNED, sourceReceiver.getAmountReturned());
             return map;
         }
     }
@@ -295,20 +493,347 @@ public class StripeMapUtil {
 
         @NonNull
         public static Map<String, Object> toMap(Source.Redirect sourceRedirect) {
-            final AbstractMap<String, Object> map = new HashMap<>();
             if (sourceRedirect == null) {
-                return map;
+                return new HashMap<>();
             }
-            map.put(FIELD_RETURN_URL, sourceRedirect.getReturnUrl());
+            final Map<String, Object> map = newMap(3);
+            putIfNotEmpty(map, FIELD_RETURN_URL, sourceRedirect.getReturnUrl());
             if (sourceRedirect.getStatus() != null) {
                 map.put(FIELD_STATUS, sourceRedirect.getStatus().name());
             }
-            map.put(FIELD_URL, sourceRedirect.getUrl());
-            removeNullAndEmptyParams(map);
+            putIfNotEmpty(map, FIELD_URL, sourceRedirect.getUrl());
             return map;
         }
     }
 
+    /**
+     * Compact binary encoding of the channel results, decoded on the Dart side by
+     * {@code stripe_binary_codec.dart}. A message is a format version, a kind and one object.
+     * Objects are (field id, tagged value) pairs terminated by field id 0, field ids mirror the
+     * map keys used above and empty values are skipped like in the map path.
+     */
+    public static class BinaryUtil {
+        static final int FORMAT_VERSION = 1;
+
+        static final int KIND_SOURCE = 1;
+        static final int KIND_CARD = 2;
+        static final int KIND_GOOGLE_PAY_RESULT = 3;
+
+        static final int TYPE_TRUE = 1;
+        static final int TYPE_FALSE = 2;
+        static final int TYPE_INT = 3;
+        static final int TYPE_DOUBLE = 4;
+        static final int TYPE_STRING = 5;
+        static final int TYPE_OBJECT = 6;
+        static final int TYPE_MAP = 7;
+        static final int TYPE_LIST = 8;
+
+        @NonNull
+        public static byte[] encode(@NonNull Source source) {
+            final Writer writer = new Writer(256);
+            writer.writeHeader(KIND_SOURCE);
+            writeSource(writer, source);
+            return writer.toByteArray();
+        }
+
+        @NonNull
+        public static byte[] encode(@NonNull Card card) {
+            final Writer writer = new Writer(128);
+            writer.writeHeader(KIND_CARD);
+            writeCard(writer, card);
+            return writer.toByteArray();
+        }
+
+        @NonNull
+        public static byte[] encodeGooglePayResult(@NonNull Token token, Address billingAddress) {
+            final Writer writer = new Writer(192);
+            writer.writeHeader(KIND_GOOGLE_PAY_RESULT);
+            writer.writeField(1, token.getId());
+            if (token.getCard() != null) {
+                writer.beginObject(2);
+                writeCard(writer, token.getCard());
+            }
+            if (billingAddress != null) {
+                writer.beginObject(3);
+                writeAddress(writer, billingAddress);
+            }
+            writer.endObject();
+            return writer.toByteArray();
+        }
+
+        private static void writeSource(Writer writer, Source source) {
+            writer.writeField(1, source.getId());
+            writer.writeField(2, source.getAmount());
+            writer.writeField(3, source.getClientSecret());
+            if (source.getCodeVerification() != null) {
+                writer.beginObject(4);
+                writer.writeField(1, source.getCodeVerification().getAttemptsRemaining());
+                if (source.getCodeVerification().getStatus() != null) {
+                    writer.writeField(2, source.getCodeVerification().getStatus().name());
+                }
+                writer.endObject();
+            }
+            writer.writeField(5, source.getCreated());
+            writer.writeField(6, source.getCurrency());
+            if (source.getFlow() != null) {
+                writer.writeField(7, source.getFlow().name());
+            }
+            writer.writeField(8, source.isLiveMode());
+            if (source.getOwner() != null) {
+                final Source.Owner owner = source.getOwner();
+                writer.beginObject(9);
+                if (owner.getAddress() != null) {
+                    writer.beginObject(1);
+                    writeAddress(writer, owner.getAddress());
+                }
+                writer.writeField(2, owner.getEmail());
+                writer.writeField(3, owner.getName());
+                writer.writeField(4, owner.getPhone());
+                if (owner.getVerifiedAddress() != null) {
+                    writer.beginObject(5);
+                    writeAddress(writer, owner.getVerifiedAddress());
+                }
+                writer.writeField(6, owner.getVerifiedEmail());
+                writer.writeField(7, owner.getVerifiedName());
+                writer.writeField(8, owner.getVerifiedPhone());
+                writer.endObject();
+            }
+            if (source.getReceiver() != null) {
+                final Source.Receiver receiver = source.getReceiver();
+                writer.beginObject(10);
+                writer.writeField(1, receiver.getAddress());
+                writer.writeField(2, receiver.getAmountCharged());
+                writer.writeField(3, receiver.getAmountReceived());
+                writer.writeField(4, receiver.getAmountReturned());
+                writer.endObject();
+            }
+            if (source.getRedirect() != null) {
+                final Source.Redirect redirect = source.getRedirect();
+                writer.beginObject(11);
+                writer.writeField(1, redirect.getReturnUrl());
+                if (redirect.getStatus() != null) {
+                    writer.writeField(2, redirect.getStatus().name());
+                }
+                writer.writeField(3, redirect.getUrl());
+                writer.endObject();
+            }
+            if (source.getStatus() != null) {
+                writer.writeField(12, source.getStatus().name());
+            }
+            writer.writeField(13, source.getTypeRaw());
+            if (source.getUsage() != null) {
+                writer.writeField(14, source.getUsage().name());
+            }
+            writer.writeField(15, source.getSourceTypeData());
+            writer.endObject();
+        }
+
+        private static void writeCard(Writer writer, Card card) {
+            writer.writeField(1, card.getName());
+            writer.writeField(2, card.getAddressCity());
+            writer.writeField(3, card.getAddressCountry());
+            writer.writeField(4, card.getAddressLine1());
+            writer.writeField(5, card.getAddressLine1Check());
+            writer.writeField(6, card.getAddressLine2());
+            writer.writeField(7, card.getAddressState());
+            writer.writeField(8, card.getAddressZip());
+            writer.writeField(9, card.getAddressZipCheck());
+            writer.writeField(10, card.getBrand().getDisplayName());
+            writer.writeField(11, card.getCurrency());
+            writer.writeField(12, card.getCountry());
+            writer.writeField(13, card.getCustomerId());
+            writer.writeField(14, card.getCvcCheck());
+            writer.writeField(15, card.getExpMonth());
+            writer.writeField(16, card.getExpYear());
+            writer.writeField(17, card.getFingerprint());
+            if (card.getFunding() != null) {
+                writer.writeField(18, card.getFunding().name().toLowerCase());
+            }
+            writer.writeField(19, card.getId());
+            writer.writeField(20, card.getLast4());
+            if (card.getTokenizationMethod() != null) {
+                writer.writeField(21, card.getTokenizationMethod().name());
+            }
+            writer.endObject();
+        }
+
+        private static void writeAddress(Writer writer, Address address) {
+            writer.writeField(1, address.getCity());
+            writer.writeField(2, address.getCountry());
+            writer.writeField(3, address.getLine1());
+            writer.writeField(4, address.getLine2());
+            writer.writeField(5, address.getPostalCode());
+            writer.writeField(6, address.getState());
+            writer.endObject();
+        }
+
+        private static boolean isEmpty(Object value) {
+            return value == null
+                    || value == JSONObject.NULL
+                    || (value instanceof CharSequence && ((CharSequence) value).length() == 0);
+        }
+
+        private static final class Writer {
+            private byte[] buffer;
+            private int size;
+
+            Writer(int initialCapacity) {
+                buffer = new byte[initialCapacity];
+            }
+
+            void writeHeader(int kind) {
+                writeByte(FORMAT_VERSION);
+                writeByte(kind);
+            }
+
+            void writeField(int fieldId, Object value) {
+                if (isEmpty(value)) {
+                    return;
+                }
+                writeByte(fieldId);
+                writeValue(value);
+            }
+
+            void beginObject(int fieldId) {
+                writeByte(fieldId);
+                writeByte(TYPE_OBJECT);
+            }
+
+            void endObject() {
+                writeByte(0);
+            }
+
+            byte[] toByteArray() {
+                final byte[] bytes = new byte[size];
+                System.arraycopy(buffer, 0, bytes, 0, size);
+                return bytes;
+            }
+
+            @SuppressWarnings("unchecked")
+            private void writeValue(Object value) {
+                if (value instanceof Boolean) {
+                    writeByte((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+                } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+                    writeByte(TYPE_INT);
+                    final long l = ((Number) value).longValue();
+                    writeVarint((l << 1) ^ (l >> 63));
+                } else if (value instanceof Number) {
+                    writeByte(TYPE_DOUBLE);
+                    final long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+                    for (int i = 0; i < 8; i++) {
+                        writeByte((int) (bits >>> (8 * i)));
+                    }
+                } else if (value instanceof Map) {
+                    final Map<String, ?> map = (Map<String, ?>) value;
+                    int count = 0;
+                    for (Object entryValue : map.values()) {
+                        if (!isEmpty(entryValue)) {
+                            count++;
+                        }
+                    }
+                    writeByte(TYPE_MAP);
+                    writeVarint(count);
+                    for (Map.Entry<String, ?> entry : map.entrySet()) {
+                        if (!isEmpty(entry.getValue())) {
+                            writeString(entry.getKey());
+                            writeValue(entry.getValue());
+                        }
+                    }
+                } else if (value instanceof List) {
+                    final List<?> list = (List<?>) value;
+                    writeByte(TYPE_LIST);
+                    writeVarint(list.size());
+                    for (Object item : list) {
+                        writeValue(item == null ? "" : item);
+                    }
+                } else {
+                    writeByte(TYPE_STRING);
+                    writeString(value.toString());
+                }
+            }
+
+            private void writeString(String value) {
+                final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeVarint(bytes.length);
+                ensureCapacity(bytes.length);
+                System.arraycopy(bytes, 0, buffer, size, bytes.length);
+                size += bytes.length;
+            }
+
+            private void writeVarint(long value) {
+                while ((value & ~0x7FL) != 0) {
+                    writeByte((int) ((value & 0x7F) | 0x80));
+                    value >>>= 7;
+                }
+                writeByte((int) value);
+            }
+
+            private void writeByte(int b) {
+                ensureCapacity(1);
+                buffer[size++] = (byte) b;
+            }
+
+            private void ensureCapacity(int extra) {
+                if (size + extra > buffer.length) {
+                    final byte[] grown = new byte[Math.max(buffer.length * 2, size + extra)];
+                    System.arraycopy(buffer, 0, grown, 0, size);
+                    buffer = grown;
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a map that holds {@code expectedSize} entries without rehashing.
+     */
+    @NonNull
+    static Map<String, Object> newMap(int expectedSize) {
+        return new HashMap<>((int) (expectedSize / 0.75f) + 1);
+    }
+
+    /**
+     * Puts {@code value} unless it is null or an empty string, so maps never need a cleanup pass.
+     */
+    public static void putIfNotEmpty(@NonNull Map<String, Object> map, @NonNull String key, Object value) {
+        if (value == null || value == JSONObject.NULL) {
+            return;
+        }
+        if (value instanceof CharSequence && ((CharSequence) value).length() == 0) {
+            return;
+        }
+        map.put(key, value);
+    }
+
+    /**
+     * Copies a raw Stripe map (e.g. source type data) dropping null and empty values, without
+     * touching the model's own map.
+     */
+    @NonNull
+    static Map<String, Object> copyNonEmpty(@NonNull Map<String, ?> source) {
+        return copyNonEmpty(source, null);
+    }
+
+    /**
+     * Like {@link #copyNonEmpty(Map)}, only copying the entries {@code projection} selects.
+     */
+    @SuppressWarnings("unchecked")
+    @NonNull
+    static Map<String, Object> copyNonEmpty(@NonNull Map<String, ?> source, @Nullable Projection projection) {
+        final Map<String, Object> map = newMap(source.size());
+        for (Map.Entry<String, ?> entry : source.entrySet()) {
+            if (!Projection.includes(projection, entry.getKey())) {
+                continue;
+            }
+            final Object value = entry.getValue();
+            if (value instanceof Map) {
+                map.put(entry.getKey(), copyNonEmpty((Map<String, ?>) value, Projection.nested(projection, entry.getKey())));
+            } else {
+                putIfNotEmpty(map, entry.getKey(), value);
+            }
+        }
+        return map;
+    }
+
     @SuppressWarnings("unchecked")
     public static void removeNullAndEmptyParams(@NonNull Map<String, Object> mapToEdit) {
         // Remove all null values; they cause validation errors
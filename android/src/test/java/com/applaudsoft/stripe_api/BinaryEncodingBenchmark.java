@@ -0,0 +1,119 @@
+package com.applaudsoft.stripe_api;
+
+import com.stripe.android.model.Address;
+import com.stripe.android.model.Source;
+import com.stripe.android.model.StripeMapUtil;
+import com.stripe.android.model.Token;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.flutter.plugin.common.StandardMessageCodec;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Source, card and Google Pay results encoded for the platform channel: as a map tree through
+ * StandardMessageCodec against the compact binary form. Each result counts the bytes of the
+ * channel message; with a report directory the messages themselves are saved under
+ * {@code channel/} for the Dart decode benchmark in tool/binary_codec_benchmark.dart.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BinaryEncodingBenchmark {
+    private static final StandardMessageCodec CODEC = StandardMessageCodec.INSTANCE;
+
+    @Test
+    public void channelEncoding() throws Exception {
+        final Source source = Source.fromJson(new JSONObject(MicroBenchmark.fixture("source_card.json")));
+        final Token token = StripeMapUtil.GooglePayUtil.tokenFromGooglePay(
+                new JSONObject(MicroBenchmark.fixture("google_pay_payment_data.json")));
+        final GooglePayPaymentData paymentData = GooglePayPaymentData.parse(MicroBenchmark.fixture("google_pay_payment_data.json"));
+        assertNotNull(source);
+        assertNotNull(paymentData.billingDetails);
+        final Address address = paymentData.billingDetails.address;
+
+        final MicroBenchmark benchmark = new MicroBenchmark("binary_encoding");
+        compare(benchmark, "source", new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                return CODEC.encodeMessage(StripeMapUtil.SourceUtil.toMap(source));
+            }
+        }, new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                return CODEC.encodeMessage(StripeMapUtil.BinaryUtil.encode(source));
+            }
+        });
+        compare(benchmark, "card", new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                return CODEC.encodeMessage(StripeMapUtil.CardUtil.toMap(token.getCard()));
+            }
+        }, new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                return CODEC.encodeMessage(StripeMapUtil.BinaryUtil.encode(token.getCard()));
+            }
+        });
+        compare(benchmark, "google_pay_result", new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                // the map GooglePayDelegate returns without a projection
+                final Map<String, Object> resultMap = new HashMap<>();
+                resultMap.put("card", StripeMapUtil.CardUtil.toMap(token.getCard()));
+                StripeMapUtil.putIfNotEmpty(resultMap, "token", token.getId());
+                resultMap.put("billing_address", StripeMapUtil.AddressUtil.toMap(address));
+                return CODEC.encodeMessage(resultMap);
+            }
+        }, new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                return CODEC.encodeMessage(StripeMapUtil.BinaryUtil.encodeGooglePayResult(token, address));
+            }
+        });
+        benchmark.report();
+    }
+
+    private static void compare(MicroBenchmark benchmark, String name, MicroBenchmark.Body map, MicroBenchmark.Body binary)
+            throws Exception {
+        final ByteBuffer mapMessage = (ByteBuffer) map.run();
+        final ByteBuffer binaryMessage = (ByteBuffer) binary.run();
+        assertTrue(binaryMessage.capacity() < mapMessage.capacity());
+        benchmark.measure(name + " map", map).counter("channel_bytes", mapMessage.capacity());
+        benchmark.measure(name + " binary", binary).counter("channel_bytes", binaryMessage.capacity());
+        save(name + ".map.bin", mapMessage);
+        save(name + ".binary.bin", binaryMessage);
+    }
+
+    private static void save(String name, ByteBuffer message) throws IOException {
+        final String reportDir = System.getProperty("benchmark.reportDir");
+        if (reportDir == null) {
+            return;
+        }
+        final File dir = new File(reportDir, "channel");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        final byte[] bytes = new byte[message.capacity()];
+        final ByteBuffer view = message.duplicate();
+        view.clear();
+        view.get(bytes);
+        final OutputStream out = new FileOutputStream(new File(dir, name));
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
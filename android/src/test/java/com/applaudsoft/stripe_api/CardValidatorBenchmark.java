@@ -0,0 +1,140 @@
+package com.applaudsoft.stripe_api;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * CardValidator's lookup tables and in-place Luhn check against the string scans the Dart
+ * {@code CardUtils} does: normalize the number, then test each brand's prefix list with
+ * startsWith, and read digits one substring at a time. Brand detection runs once per keystroke,
+ * so it is measured over every prefix of a set of formatted test numbers.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CardValidatorBenchmark {
+    private static final String[] NUMBERS = {
+            "4242 4242 4242 4242", "5555 5555 5555 4444", "2223 0031 2200 3222", "3782 822463 10005",
+            "6011 1111 1111 1117", "3056 9300 0902 0004", "3566 0020 2036 0505", "6200 0000 0000 0005",
+            "6759 6498 2643 8453", "9999 9999 9999 9995",
+    };
+    // same order and prefixes as CardValidator, in brand order
+    private static final String[][] PREFIXES = {
+            {"34", "37"},
+            {"60", "64", "65"},
+            {"35"},
+            {"300", "301", "302", "303", "304", "305", "309", "36", "38", "39"},
+            {"4"},
+            {"2221", "2222", "2223", "2224", "2225", "2226", "2227", "2228", "2229", "223", "224", "225", "226",
+                    "227", "228", "229", "23", "24", "25", "26", "270", "271", "2720", "51", "52", "53",
+                    "54", "55"},
+            {"62"},
+            {"50", "67"},
+    };
+
+    @Test
+    public void throughput() throws Exception {
+        final List<String> keystrokes = new ArrayList<>();
+        for (String number : NUMBERS) {
+            for (int length = 1; length <= number.length(); length++) {
+                keystrokes.add(number.substring(0, length));
+            }
+        }
+        for (String typed : keystrokes) {
+            assertEquals(typed, scanBrand(typed), CardValidator.brandOf(typed));
+        }
+        for (String number : NUMBERS) {
+            assertEquals(number, scanLuhn(number), CardValidator.isValidLuhn(number));
+        }
+
+        final MicroBenchmark benchmark = new MicroBenchmark("card_validator");
+        benchmark.measure("brand per keystroke, prefix scan", new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                int brands = 0;
+                for (int i = 0, size = keystrokes.size(); i < size; i++) {
+                    brands += scanBrand(keystrokes.get(i));
+                }
+                return brands;
+            }
+        }).counter("lookups_per_op", keystrokes.size());
+        benchmark.measure("brand per keystroke, lookup table", new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                int brands = 0;
+                for (int i = 0, size = keystrokes.size(); i < size; i++) {
+                    brands += CardValidator.brandOf(keystrokes.get(i));
+                }
+                return brands;
+            }
+        }).counter("lookups_per_op", keystrokes.size());
+        benchmark.measure("luhn, substring scan", new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                int valid = 0;
+                for (String number : NUMBERS) {
+                    valid += scanLuhn(number) ? 1 : 0;
+                }
+                return valid;
+            }
+        }).counter("numbers_per_op", NUMBERS.length);
+        benchmark.measure("luhn, in place", new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                int valid = 0;
+                for (String number : NUMBERS) {
+                    valid += CardValidator.isValidLuhn(number) ? 1 : 0;
+                }
+                return valid;
+            }
+        }).counter("numbers_per_op", NUMBERS.length);
+        benchmark.measure("validate", new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                int valid = 0;
+                for (String number : NUMBERS) {
+                    valid += CardValidator.validate(number, 12, 2099, "123") == null ? 1 : 0;
+                }
+                return valid;
+            }
+        }).counter("numbers_per_op", NUMBERS.length);
+        benchmark.report();
+    }
+
+    private static int scanBrand(String number) {
+        final String spaceless = number.replace(" ", "").replace("-", "");
+        if (spaceless.isEmpty()) {
+            return CardValidator.BRAND_UNKNOWN;
+        }
+        for (int brandIndex = 0; brandIndex < PREFIXES.length; brandIndex++) {
+            for (String prefix : PREFIXES[brandIndex]) {
+                if (spaceless.startsWith(prefix)) {
+                    return brandIndex + 1;
+                }
+            }
+        }
+        return CardValidator.BRAND_UNKNOWN;
+    }
+
+    private static boolean scanLuhn(String number) {
+        final String spaceless = number.replace(" ", "").replace("-", "");
+        boolean isOdd = true;
+        int sum = 0;
+        for (int index = spaceless.length() - 1; index >= 0; index--) {
+            int digit = Integer.parseInt(spaceless.substring(index, index + 1));
+            isOdd = !isOdd;
+            if (isOdd) {
+                digit *= 2;
+            }
+            if (digit > 9) {
+                digit -= 9;
+            }
+            sum += digit;
+        }
+        return !spaceless.isEmpty() && sum % 10 == 0;
+    }
+}
@@ -0,0 +1,61 @@
+package com.applaudsoft.stripe_api;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CardValidatorTest {
+
+    @Test
+    public void brands() {
+        assertEquals(CardValidator.BRAND_VISA, CardValidator.brandOf("4242 4242 4242 4242"));
+        assertEquals(CardValidator.BRAND_AMERICAN_EXPRESS, CardValidator.brandOf("378282246310005"));
+        assertEquals(CardValidator.BRAND_MASTERCARD, CardValidator.brandOf("2223003122003222"));
+        assertEquals(CardValidator.BRAND_MASTERCARD, CardValidator.brandOf("5555-5555-5555-4444"));
+        assertEquals(CardValidator.BRAND_DINERS_CLUB, CardValidator.brandOf("3056930009020004"));
+        assertEquals(CardValidator.BRAND_UNIONPAY, CardValidator.brandOf("6200000000000005"));
+        assertEquals(CardValidator.BRAND_MAESTRO, CardValidator.brandOf("6759649826438453"));
+        assertEquals(CardValidator.BRAND_MAESTRO, CardValidator.brandOf("50"));
+        assertEquals(CardValidator.BRAND_UNKNOWN, CardValidator.brandOf("9"));
+        assertEquals(CardValidator.BRAND_UNKNOWN, CardValidator.brandOf("4x"));
+    }
+
+    @Test
+    public void maestroIsReportedAsMasterCard() {
+        assertEquals("MasterCard", CardValidator.brandName(CardValidator.brandOf("6759649826438453")));
+        assertEquals("MasterCard", CardValidator.report("6759649826438453", null, null, null).get("brand"));
+    }
+
+    @Test
+    public void maestroLengths() {
+        assertNull(CardValidator.validate("500000000009", 12, 2099, "123"));
+        assertNull(CardValidator.validate("670000000000009", 12, 2099, "123"));
+        assertNull(CardValidator.validate("6759649826438453", 12, 2099, "123"));
+        assertNull(CardValidator.validate("6799990100000000019", 12, 2099, "123"));
+        assertEquals(CardValidator.INVALID_NUMBER, CardValidator.validate("50000000000", 12, 2099, "123"));
+    }
+
+    @Test
+    public void masterCardIsSixteenDigits() {
+        assertNull(CardValidator.validate("5555555555554444", 12, 2099, "123"));
+        assertEquals(CardValidator.INVALID_NUMBER, CardValidator.validate("555555555559", 12, 2099, "123"));
+    }
+
+    @Test
+    public void luhn() {
+        assertTrue(CardValidator.isValidLuhn("4242 4242 4242 4242"));
+        assertFalse(CardValidator.isValidLuhn("4242 4242 4242 4241"));
+        assertFalse(CardValidator.isValidLuhn(""));
+    }
+
+    @Test
+    public void expiryAndCvc() {
+        assertEquals(CardValidator.INVALID_EXPIRY_MONTH, CardValidator.validate("4242424242424242", 13, 2099, "123"));
+        assertEquals(CardValidator.INVALID_EXPIRY_YEAR, CardValidator.validate("4242424242424242", 12, 2001, "123"));
+        assertEquals(CardValidator.INVALID_CVC, CardValidator.validate("378282246310005", 12, 2099, "123"));
+        assertNull(CardValidator.validate("378282246310005", 12, 2099, "1234"));
+    }
+}
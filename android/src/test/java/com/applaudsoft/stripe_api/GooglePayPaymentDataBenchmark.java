@@ -0,0 +1,84 @@
+package com.applaudsoft.stripe_api;
+
+import com.stripe.android.model.PaymentMethod;
+import com.stripe.android.model.StripeMapUtil;
+import com.stripe.android.model.Token;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * The single streaming pass of GooglePayPaymentData against parsing PaymentData into a JSONObject
+ * and reading it with GooglePayUtil, as onActivityResult used to, on the recorded PaymentData and
+ * on copies padded with fields the plugin doesn't read.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class GooglePayPaymentDataBenchmark {
+    private static final int[] PADDED_SIZES = {16 * 1024, 64 * 1024};
+
+    @Test
+    public void parse() throws Exception {
+        final String recorded = MicroBenchmark.fixture("google_pay_payment_data.json");
+        final MicroBenchmark benchmark = new MicroBenchmark("google_pay_payment_data");
+        compare(benchmark, "recorded", recorded);
+        for (int size : PADDED_SIZES) {
+            compare(benchmark, size / 1024 + "k", pad(recorded, size));
+        }
+        benchmark.report();
+    }
+
+    private static void compare(MicroBenchmark benchmark, String name, final String paymentData) throws Exception {
+        final GooglePayPaymentData streamed = GooglePayPaymentData.parse(paymentData);
+        final JSONObject tree = new JSONObject(paymentData);
+        assertNotNull(streamed.token);
+        assertEquals(StripeMapUtil.GooglePayUtil.tokenFromGooglePay(tree).getId(), streamed.token.getId());
+        assertEquals(StripeMapUtil.GooglePayUtil.billingDetailsFromGooglePay(tree), streamed.billingDetails);
+
+        benchmark.measure(name + " JSONObject + GooglePayUtil", new MicroBenchmark.Body() {
+            @Override
+            public Object run() throws Exception {
+                final JSONObject json = new JSONObject(paymentData);
+                final Token token = StripeMapUtil.GooglePayUtil.tokenFromGooglePay(json);
+                final PaymentMethod.BillingDetails billingDetails = StripeMapUtil.GooglePayUtil.billingDetailsFromGooglePay(json);
+                return billingDetails != null ? billingDetails : token;
+            }
+        }).counter("payload_bytes", paymentData.length());
+        benchmark.measure(name + " streaming", new MicroBenchmark.Body() {
+            @Override
+            public Object run() throws Exception {
+                return GooglePayPaymentData.parse(paymentData);
+            }
+        }).counter("payload_bytes", paymentData.length());
+    }
+
+    /**
+     * Grows PaymentData to about {@code size} characters with the kind of data the plugin skips:
+     * shipping options and nested, unread card metadata.
+     */
+    private static String pad(String paymentData, int size) throws Exception {
+        final JSONObject json = new JSONObject(paymentData);
+        final JSONArray shippingOptions = new JSONArray();
+        json.put("shippingOptionData", new JSONObject().put("options", shippingOptions));
+        final JSONObject info = json.getJSONObject("paymentMethodData").getJSONObject("info");
+        final JSONArray metadata = new JSONArray();
+        info.put("metadata", metadata);
+        int i = 0;
+        while (json.toString().length() < size) {
+            shippingOptions.put(new JSONObject()
+                    .put("id", "shipping_option_" + i)
+                    .put("label", "Delivery option " + i)
+                    .put("description", "Arrives in " + (i % 7 + 1) + " business days"));
+            metadata.put(new JSONObject()
+                    .put("key", "attribute_" + i)
+                    .put("values", new JSONArray().put(i).put(i * 31).put("value_" + i)));
+            i++;
+        }
+        return json.toString();
+    }
+}
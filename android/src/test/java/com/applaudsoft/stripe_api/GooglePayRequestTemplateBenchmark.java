@@ -0,0 +1,119 @@
+package com.applaudsoft.stripe_api;
+
+import com.google.android.gms.wallet.IsReadyToPayRequest;
+import com.google.android.gms.wallet.PaymentDataRequest;
+import com.stripe.android.GooglePayConfig;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Per-call Google Pay request building: the precompiled template against rebuilding the JSON, as
+ * GooglePayDelegate did before the template.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class GooglePayRequestTemplateBenchmark {
+    private static final String PUBLISHABLE_KEY = "pk_test_benchmark";
+
+    @Test
+    public void paymentDataRequest() throws Exception {
+        final GooglePayRequestTemplate template = new GooglePayRequestTemplate(PUBLISHABLE_KEY);
+        assertEquals(rebuildPaymentDataRequest(true, 12.5).toJson(), template.createPaymentDataRequest(true, 12.5).toJson());
+        assertEquals(rebuildPaymentDataRequest(false, 3.0).toJson(), template.createPaymentDataRequest(false, 3.0).toJson());
+
+        final MicroBenchmark benchmark = new MicroBenchmark("google_pay_request_template");
+        benchmark.measure("PaymentDataRequest rebuilt per call", new MicroBenchmark.Body() {
+            @Override
+            public Object run() throws Exception {
+                return rebuildPaymentDataRequest(true, 12.5);
+            }
+        });
+        benchmark.measure("PaymentDataRequest from template", new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                return template.createPaymentDataRequest(true, 12.5);
+            }
+        });
+        benchmark.measure("IsReadyToPayRequest rebuilt per call", new MicroBenchmark.Body() {
+            @Override
+            public Object run() throws Exception {
+                return rebuildIsReadyToPayRequest();
+            }
+        });
+        benchmark.measure("IsReadyToPayRequest from template", new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                return template.getIsReadyToPayRequest();
+            }
+        });
+        benchmark.measure("template construction", new MicroBenchmark.Body() {
+            @Override
+            public Object run() throws Exception {
+                return new GooglePayRequestTemplate(PUBLISHABLE_KEY);
+            }
+        });
+        benchmark.report();
+    }
+
+    private static IsReadyToPayRequest rebuildIsReadyToPayRequest() throws JSONException {
+        final JSONObject tokenizationSpec = new GooglePayConfig(PUBLISHABLE_KEY).getTokenizationSpecification();
+        final JSONObject cardPaymentMethod = new JSONObject()
+                .put("type", "CARD")
+                .put("parameters", new JSONObject()
+                        .put("allowedAuthMethods", allowedAuthMethodsJson())
+                        .put("allowedCardNetworks", allowedCardNetworksJson()))
+                .put("tokenizationSpecification", tokenizationSpec);
+        final JSONObject request = new JSONObject()
+                .put("apiVersion", 2)
+                .put("apiVersionMinor", 0)
+                .put("allowedPaymentMethods", new JSONArray().put(cardPaymentMethod));
+        return IsReadyToPayRequest.fromJson(request.toString());
+    }
+
+    private static PaymentDataRequest rebuildPaymentDataRequest(boolean billingAddressRequired, Double amount) throws JSONException {
+        final JSONObject tokenizationSpec = new GooglePayConfig(PUBLISHABLE_KEY).getTokenizationSpecification();
+        final JSONObject cardPaymentMethod = new JSONObject()
+                .put("type", "CARD")
+                .put("parameters", new JSONObject()
+                        .put("allowedAuthMethods", allowedAuthMethodsJson())
+                        .put("allowedCardNetworks", allowedCardNetworksJson())
+                        .put("billingAddressRequired", billingAddressRequired)
+                        .put("billingAddressParameters", new JSONObject()
+                                .put("format", "MIN")))
+                .put("tokenizationSpecification", tokenizationSpec);
+        final String paymentDataRequest = new JSONObject()
+                .put("apiVersion", 2)
+                .put("apiVersionMinor", 0)
+                .put("allowedPaymentMethods", new JSONArray().put(cardPaymentMethod))
+                .put("transactionInfo", new JSONObject()
+                        .put("totalPrice", String.valueOf(amount))
+                        .put("totalPriceStatus", "ESTIMATED")
+                        .put("currencyCode", "USD"))
+                .put("merchantInfo", new JSONObject()
+                        .put("merchantName", "Wabi"))
+                .toString();
+        return PaymentDataRequest.fromJson(paymentDataRequest);
+    }
+
+    private static JSONArray allowedAuthMethodsJson() {
+        return new JSONArray()
+                .put("PAN_ONLY")
+                .put("CRYPTOGRAM_3DS");
+    }
+
+    private static JSONArray allowedCardNetworksJson() {
+        return new JSONArray()
+                .put("AMEX")
+                .put("DISCOVER")
+                .put("INTERAC")
+                .put("JCB")
+                .put("MASTERCARD")
+                .put("VISA");
+    }
+}
@@ -0,0 +1,88 @@
+package com.applaudsoft.stripe_api;
+
+import com.stripe.android.model.Source;
+import com.stripe.android.model.StripeMapUtil;
+import com.stripe.android.model.Token;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * The per-call work the plugin does between the platform channel and the Stripe SDK, on recorded
+ * API payloads: model to map conversion, and Google Pay request building and result parsing.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class HotPathsBenchmark {
+
+    @Test
+    public void hotPaths() throws Exception {
+        final Source source = Source.fromJson(new JSONObject(MicroBenchmark.fixture("source_card.json")));
+        final Token token = Token.fromJson(new JSONObject(MicroBenchmark.fixture("token_card.json")));
+        final String paymentData = MicroBenchmark.fixture("google_pay_payment_data.json");
+        final GooglePayRequestTemplate template = new GooglePayRequestTemplate("pk_test_benchmark");
+        assertNotNull(source);
+        assertNotNull(token);
+
+        final MicroBenchmark benchmark = new MicroBenchmark("hot_paths");
+        benchmark.measure("SourceUtil.toMap", new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                return StripeMapUtil.SourceUtil.toMap(source);
+            }
+        });
+        benchmark.measure("SourceUtil.toMap projected", new MicroBenchmark.Body() {
+            final StripeMapUtil.Projection projection = StripeMapUtil.Projection.of(Arrays.asList("id", "status", "card.last4"));
+
+            @Override
+            public Object run() {
+                return StripeMapUtil.SourceUtil.toMap(source, projection);
+            }
+        });
+        benchmark.measure("CardUtil.toMap", new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                return StripeMapUtil.CardUtil.toMap(token.getCard());
+            }
+        });
+        benchmark.measure("GooglePayUtil.tokenFromGooglePay", new MicroBenchmark.Body() {
+            @Override
+            public Object run() throws Exception {
+                return StripeMapUtil.GooglePayUtil.tokenFromGooglePay(new JSONObject(paymentData));
+            }
+        });
+        benchmark.measure("GooglePayUtil.billingDetailsFromGooglePay", new MicroBenchmark.Body() {
+            @Override
+            public Object run() throws Exception {
+                return StripeMapUtil.GooglePayUtil.billingDetailsFromGooglePay(new JSONObject(paymentData));
+            }
+        });
+        benchmark.measure("GooglePayPaymentData.parse", new MicroBenchmark.Body() {
+            @Override
+            public Object run() throws Exception {
+                return GooglePayPaymentData.parse(paymentData);
+            }
+        });
+        benchmark.measure("GooglePayRequestTemplate.createPaymentDataRequest", new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                return template.createPaymentDataRequest(true, 12.5);
+            }
+        });
+        benchmark.report();
+
+        final Map<String, Object> sourceMap = StripeMapUtil.SourceUtil.toMap(source);
+        assertEquals("src_1LqN2eB6ZNrSa9Hq0ZYy3xWk", sourceMap.get("id"));
+        assertEquals("4242", StripeMapUtil.CardUtil.toMap(token.getCard()).get("last4"));
+        final GooglePayPaymentData parsed = GooglePayPaymentData.parse(paymentData);
+        assertNotNull(parsed.token);
+        assertEquals(StripeMapUtil.GooglePayUtil.tokenFromGooglePay(new JSONObject(paymentData)).getId(), parsed.token.getId());
+    }
+}
@@ -0,0 +1,115 @@
+package com.applaudsoft.stripe_api;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.stripe.android.model.Source;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class IdempotentSourceCacheTest {
+    private final IdempotentSourceCache cache = new IdempotentSourceCache();
+    private Source source;
+
+    @Before
+    public void setUp() throws Exception {
+        source = Source.fromJson(new JSONObject(MicroBenchmark.fixture("source_card.json")));
+    }
+
+    @Test
+    public void waitersShareTheLeadersSource() {
+        final byte[] card = cache.fingerprint(card("4242424242424242"));
+        assertTrue(cache.acquire("checkout_1", card, new Recorder()));
+        final Recorder waiter = new Recorder();
+        assertFalse(cache.acquire("checkout_1", card, waiter));
+        assertTrue(waiter.outcomes.isEmpty());
+
+        cache.complete("checkout_1", source);
+        assertSame(source, waiter.outcomes.get(0));
+        final Recorder later = new Recorder();
+        assertFalse(cache.acquire("checkout_1", cache.fingerprint(card("4242424242424242")), later));
+        assertSame(source, later.outcomes.get(0));
+        assertEquals(1L, cache.getStats().get("hits"));
+        assertEquals(1L, cache.getStats().get("coalesced"));
+    }
+
+    @Test
+    public void waitersGetTheLeadersErrorCode() {
+        final byte[] card = cache.fingerprint(card("4000000000000002"));
+        assertTrue(cache.acquire("checkout_1", card, new Recorder()));
+        final Recorder waiter = new Recorder();
+        assertFalse(cache.acquire("checkout_1", card, waiter));
+
+        cache.fail("checkout_1", "card_declined", "Your card was declined.");
+        assertEquals("card_declined: Your card was declined.", waiter.outcomes.get(0));
+        // failures are not cached
+        assertTrue(cache.acquire("checkout_1", card, new Recorder()));
+    }
+
+    @Test
+    public void rejectsAKeyReusedWithOtherParams() {
+        assertTrue(cache.acquire("checkout_1", cache.fingerprint(card("4242424242424242")), new Recorder()));
+        final Recorder inFlight = new Recorder();
+        assertFalse(cache.acquire("checkout_1", cache.fingerprint(card("5555555555554444")), inFlight));
+        assertTrue(((String) inFlight.outcomes.get(0)).startsWith(IdempotentSourceCache.IDEMPOTENCY_ERROR + ":"));
+
+        cache.complete("checkout_1", source);
+        final Recorder completed = new Recorder();
+        assertFalse(cache.acquire("checkout_1", cache.fingerprint(card("5555555555554444")), completed));
+        assertTrue(((String) completed.outcomes.get(0)).startsWith(IdempotentSourceCache.IDEMPOTENCY_ERROR + ":"));
+        assertEquals(2L, cache.getStats().get("mismatches"));
+        assertEquals(0L, cache.getStats().get("hits"));
+    }
+
+    @Test
+    public void fingerprintsIgnoreKeyOrderButNotValues() {
+        final Map<String, Object> reordered = new HashMap<>();
+        reordered.put("type", "card");
+        reordered.put("card", card("4242424242424242").get("card"));
+        assertArrayEquals(cache.fingerprint(card("4242424242424242")), cache.fingerprint(reordered));
+        assertFalse(Arrays.equals(cache.fingerprint(card("4242424242424242")),
+                new IdempotentSourceCache().fingerprint(card("4242424242424242"))));
+    }
+
+    private static Map<String, Object> card(String number) {
+        final Map<String, Object> card = new HashMap<>();
+        card.put("number", number);
+        card.put("exp_month", 12);
+        card.put("exp_year", 2099);
+        final Map<String, Object> params = new HashMap<>();
+        params.put("card", card);
+        params.put("type", "card");
+        return params;
+    }
+
+    private static final class Recorder implements IdempotentSourceCache.Waiter {
+        final List<Object> outcomes = new ArrayList<>();
+
+        @Override
+        public void onSource(@NonNull Source source) {
+            outcomes.add(source);
+        }
+
+        @Override
+        public void onError(@NonNull String code, @Nullable String message) {
+            outcomes.add(code + ": " + message);
+        }
+    }
+}
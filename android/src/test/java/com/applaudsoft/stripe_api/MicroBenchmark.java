@@ -0,0 +1,254 @@
+package com.applaudsoft.stripe_api;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * JMH-style harness for the JVM unit tests: each body is warmed up, then timed in rounds, and the
+ * bytes it allocates per call are counted. A suite's results are printed and written to
+ * {@code build/reports/benchmarks/<suite>.json}; with {@code -PbenchmarkBaseline=<dir>} holding the
+ * reports of an earlier run, each result also shows its change against that run.
+ *
+ * <p>Run with {@code ./gradlew testDebugUnitTest --tests '*Benchmark' -Pbenchmark}. Without
+ * {@code -Pbenchmark} the bodies only run a few times, so the suites double as smoke tests.
+ */
+public final class MicroBenchmark {
+    public static final boolean FULL = Boolean.getBoolean("benchmark");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long WARMUP_NANOS = FULL ? 2000000000L : 0;
+    private static final long ROUND_NANOS = FULL ? 200000000L : 0;
+    private static final int ROUNDS = FULL ? 10 : 1;
+
+    public interface Body {
+        /**
+         * @return anything derived from the work, kept so it isn't optimized away
+         */
+        Object run() throws Exception;
+    }
+
+    public static final class Result {
+        final String name;
+        final double nsPerOp;
+        final double minNsPerOp;
+        // -1 where the JVM can't count allocations
+        final double bytesPerOp;
+        final long ops;
+        final Map<String, Number> counters = new LinkedHashMap<>();
+
+        Result(String name, double nsPerOp, double minNsPerOp, double bytesPerOp, long ops) {
+            this.name = name;
+            this.nsPerOp = nsPerOp;
+            this.minNsPerOp = minNsPerOp;
+            this.bytesPerOp = bytesPerOp;
+            this.ops = ops;
+        }
+
+        /**
+         * Adds a measurement of the benchmark's own, e.g. bytes on the wire.
+         */
+        public Result counter(String name, Number value) {
+            counters.put(name, value);
+            return this;
+        }
+    }
+
+    static volatile Object sink;
+
+    private final String suite;
+    private final List<Result> results = new ArrayList<>();
+
+    public MicroBenchmark(String suite) {
+        this.suite = suite;
+    }
+
+    public Result measure(String name, Body body) throws Exception {
+        // warm up, growing the batch until one fills a round
+        long ops = 1;
+        final long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        while (true) {
+            final long start = System.nanoTime();
+            runBatch(body, ops);
+            final long elapsed = System.nanoTime() - start;
+            if (elapsed >= ROUND_NANOS && System.nanoTime() >= warmupEnd) {
+                break;
+            }
+            if (elapsed < ROUND_NANOS) {
+                ops *= 2;
+            }
+        }
+
+        final double[] nsPerOp = new double[ROUNDS];
+        long allocated = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            final long bytesBefore = allocatedBytes();
+            final long start = System.nanoTime();
+            runBatch(body, ops);
+            final long elapsed = System.nanoTime() - start;
+            allocated += allocatedBytes() - bytesBefore;
+            nsPerOp[round] = (double) elapsed / ops;
+        }
+        Arrays.sort(nsPerOp);
+        final long totalOps = ops * ROUNDS;
+        final Result result = new Result(name, nsPerOp[ROUNDS / 2], nsPerOp[0],
+                allocatedBytes() < 0 ? -1 : (double) allocated / totalOps, totalOps);
+        results.add(result);
+        return result;
+    }
+
+    public interface Timed {
+        /**
+         * @return the nanoseconds taken by the part of the run being measured
+         */
+        long run() throws Exception;
+    }
+
+    /**
+     * For runs too slow or stateful to batch, like draining a queue: after one warmup run, each
+     * round times a single run. Allocations aren't counted.
+     */
+    public Result measureOnce(String name, Timed body) throws Exception {
+        if (FULL) {
+            body.run();
+        }
+        final double[] nsPerOp = new double[ROUNDS];
+        for (int round = 0; round < ROUNDS; round++) {
+            nsPerOp[round] = body.run();
+        }
+        Arrays.sort(nsPerOp);
+        final Result result = new Result(name, nsPerOp[ROUNDS / 2], nsPerOp[0], -1, ROUNDS);
+        results.add(result);
+        return result;
+    }
+
+    private static void runBatch(Body body, long ops) throws Exception {
+        Object last = null;
+        for (long i = 0; i < ops; i++) {
+            last = body.run();
+        }
+        sink = last;
+    }
+
+    private static long allocatedBytes() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Prints the results and writes the suite's report.
+     */
+    public void report() throws IOException, JSONException {
+        final JSONObject baseline = readBaseline();
+        final JSONArray json = new JSONArray();
+        System.out.println("benchmark " + suite + (FULL ? "" : " (smoke run, pass -Pbenchmark for numbers)"));
+        for (Result result : results) {
+            final StringBuilder line = new StringBuilder(String.format(Locale.US, "  %-44s %12.1f ns/op %10.1f B/op",
+                    result.name, result.nsPerOp, result.bytesPerOp));
+            final JSONObject entry = new JSONObject()
+                    .put("name", result.name)
+                    .put("ns_per_op", result.nsPerOp)
+                    .put("min_ns_per_op", result.minNsPerOp)
+                    .put("bytes_per_op", result.bytesPerOp)
+                    .put("ops", result.ops);
+            for (Map.Entry<String, Number> counter : result.counters.entrySet()) {
+                entry.put(counter.getKey(), counter.getValue());
+                line.append("  ").append(counter.getKey()).append('=').append(counter.getValue());
+            }
+            final JSONObject previous = baseline != null ? baseline.optJSONObject(result.name) : null;
+            if (previous != null) {
+                line.append(String.format(Locale.US, "  (%+.1f%% time, %+.1f%% bytes vs baseline)",
+                        change(previous.optDouble("ns_per_op"), result.nsPerOp),
+                        change(previous.optDouble("bytes_per_op"), result.bytesPerOp)));
+            }
+            System.out.println(line);
+            json.put(entry);
+        }
+
+        final String reportDir = System.getProperty("benchmark.reportDir");
+        if (reportDir == null) {
+            return;
+        }
+        final File dir = new File(reportDir);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        final JSONObject report = new JSONObject()
+                .put("suite", suite)
+                .put("full", FULL)
+                .put("java", System.getProperty("java.version"))
+                .put("results", json);
+        final OutputStream out = new FileOutputStream(new File(dir, suite + ".json"));
+        try {
+            out.write(report.toString(2).getBytes(UTF_8));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static double change(double before, double after) {
+        return before > 0 ? (after - before) * 100 / before : 0;
+    }
+
+    /**
+     * @return the baseline's results of this suite by name, null without a baseline
+     */
+    private JSONObject readBaseline() throws IOException, JSONException {
+        final String baselineDir = System.getProperty("benchmark.baselineDir");
+        final File file = baselineDir != null && !baselineDir.isEmpty() ? new File(baselineDir, suite + ".json") : null;
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        final JSONArray results = new JSONObject(read(new FileInputStream(file))).getJSONArray("results");
+        final JSONObject byName = new JSONObject();
+        for (int i = 0; i < results.length(); i++) {
+            final JSONObject result = results.getJSONObject(i);
+            byName.put(result.getString("name"), result);
+        }
+        return byName;
+    }
+
+    static String read(InputStream in) throws IOException {
+        try {
+            final byte[] buffer = new byte[8192];
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return new String(bytes.toByteArray(), UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Contents of {@code src/test/resources/fixtures/<name>}.
+     */
+    public static String fixture(String name) throws IOException {
+        final InputStream in = MicroBenchmark.class.getClassLoader().getResourceAsStream("fixtures/" + name);
+        if (in == null) {
+            throw new IOException("No fixture " + name);
+        }
+        return read(in);
+    }
+}
@@ -0,0 +1,75 @@
+package com.applaudsoft.stripe_api;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import io.flutter.plugin.common.MethodChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Every request gets exactly one reply, whatever fails.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class NativeHttpClientTest {
+    private final NativeHttpClient client = new NativeHttpClient(new PluginMetrics());
+
+    @After
+    public void tearDown() {
+        client.close();
+    }
+
+    @Test
+    public void nonHttpUrlRepliesWithAnError() throws Exception {
+        assertEquals("error", execute("GET", "jar:file:/stripe.jar!/v1/sources", null)[0]);
+    }
+
+    @Test
+    public void invalidHeaderRepliesWithAnError() throws Exception {
+        final Object[] reply = execute("GET", "http://127.0.0.1:9/v1/sources",
+                Collections.singletonMap("Stripe-Account", "acct_1\r\nX-Injected: 1"));
+        assertEquals("error", reply[0]);
+        assertEquals(IllegalArgumentException.class.toString(), reply[1]);
+    }
+
+    @Test
+    public void closedClientRepliesWithAnError() throws Exception {
+        client.close();
+        assertEquals("error", execute("GET", "http://127.0.0.1:9/v1/sources", null)[0]);
+    }
+
+    private Object[] execute(String method, String url, Map<String, String> headers) throws Exception {
+        final BlockingQueue<Object[]> replies = new LinkedBlockingQueue<>();
+        client.execute(method, url, headers, null, new MethodChannel.Result() {
+            @Override
+            public void success(@Nullable Object result) {
+                replies.add(new Object[]{"success", result});
+            }
+
+            @Override
+            public void error(@NonNull String errorCode, @Nullable String errorMessage, @Nullable Object errorDetails) {
+                replies.add(new Object[]{"error", errorCode, errorMessage});
+            }
+
+            @Override
+            public void notImplemented() {
+                replies.add(new Object[]{"notImplemented"});
+            }
+        });
+        final Object[] reply = replies.poll(10, TimeUnit.SECONDS);
+        assertNotNull("no reply", reply);
+        return reply;
+    }
+}
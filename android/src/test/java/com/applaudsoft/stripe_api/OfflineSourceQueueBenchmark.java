@@ -0,0 +1,130 @@
+package com.applaudsoft.stripe_api;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * OfflineSourceQueue throughput and recovery against {@link StubStripeServer}: how fast requests
+ * are persisted while offline, and how long a full queue takes to drain once connectivity returns,
+ * with the stub answering immediately and after a typical mobile round trip.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class OfflineSourceQueueBenchmark {
+    private static final int[] LATENCIES_MS = {0, 50};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Context context = RuntimeEnvironment.getApplication();
+
+    @Test
+    public void throughputAndRecovery() throws Exception {
+        final SecretKey key = OfflineSourceQueueTest.newKey();
+        final MicroBenchmark benchmark = new MicroBenchmark("offline_source_queue");
+        measureEnqueue(benchmark, key);
+        for (int latencyMs : LATENCIES_MS) {
+            measureRecovery(benchmark, key, latencyMs);
+        }
+        benchmark.report();
+    }
+
+    private void measureEnqueue(MicroBenchmark benchmark, SecretKey key) throws Exception {
+        final File log = folder.newFile();
+        final AtomicLong enqueued = new AtomicLong();
+        // the device stays offline, every replay fails
+        final OfflineSourceQueue queue = new OfflineSourceQueue(context, log, keyProvider(key), new OfflineSourceQueue.Replayer() {
+            @Override
+            public void replay(@NonNull OfflineSourceQueue.Entry entry, @NonNull OfflineSourceQueue.ReplayCallback callback) {
+                callback.onNetworkError();
+            }
+        }, new OfflineSourceQueueTest.Recorder());
+        try {
+            queue.start(Integer.MAX_VALUE);
+            final Map<String, Object> card = OfflineSourceQueueTest.card("4242424242424242");
+            benchmark.measure("enqueue", new MicroBenchmark.Body() {
+                @Override
+                public Object run() throws Exception {
+                    final String queueId = OfflineSourceQueueTest.enqueue(queue, card, null);
+                    assertNotNull(queueId);
+                    enqueued.incrementAndGet();
+                    return queueId;
+                }
+            }).counter("log_bytes_per_entry", log.length() / enqueued.get());
+        } finally {
+            queue.close();
+        }
+    }
+
+    private void measureRecovery(MicroBenchmark benchmark, final SecretKey key, int latencyMs) throws Exception {
+        final int entries = OfflineSourceQueue.DEFAULT_MAX_ENTRIES;
+        final StubStripeServer server = new StubStripeServer(latencyMs, 0, 0, 1);
+        server.start();
+        final StubSourceReplayer replayer = new StubSourceReplayer(server);
+        try {
+            final MicroBenchmark.Result result = benchmark.measureOnce("recover " + entries + " entries, " + latencyMs + "ms latency",
+                    new MicroBenchmark.Timed() {
+                        @Override
+                        public long run() throws Exception {
+                            final int createdBefore = server.created();
+                            final OfflineSourceQueueTest.Recorder recorder = new OfflineSourceQueueTest.Recorder();
+                            final OfflineSourceQueue queue = new OfflineSourceQueue(context, folder.newFile(),
+                                    keyProvider(key), replayer, recorder);
+                            try {
+                                server.setOnline(false);
+                                queue.start(entries);
+                                for (int i = 0; i < entries; i++) {
+                                    assertNotNull(OfflineSourceQueueTest.enqueue(queue,
+                                            OfflineSourceQueueTest.card("4242424242424242"), null));
+                                }
+                                server.setOnline(true);
+                                final long start = System.nanoTime();
+                                OfflineSourceQueueTest.reconnect(context);
+                                final Set<Object> sources = new HashSet<>();
+                                for (int i = 0; i < entries; i++) {
+                                    sources.add(((Map<?, ?>) recorder.next()[1]).get("id"));
+                                }
+                                final long elapsed = System.nanoTime() - start;
+                                assertEquals(entries, sources.size());
+                                assertEquals(entries, server.created() - createdBefore);
+                                return elapsed;
+                            } finally {
+                                queue.close();
+                            }
+                        }
+                    });
+            result.counter("entries_per_s", Math.round(entries * 1e9 / result.nsPerOp));
+        } finally {
+            replayer.close();
+            server.close();
+        }
+    }
+
+    private static OfflineSourceQueue.KeyProvider keyProvider(final SecretKey key) {
+        return new OfflineSourceQueue.KeyProvider() {
+            @NonNull
+            @Override
+            public SecretKey getKey() {
+                return key;
+            }
+        };
+    }
+}
@@ -0,0 +1,322 @@
+package com.applaudsoft.stripe_api;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.util.Base64;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowNetwork;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import io.flutter.plugin.common.MethodChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * OfflineSourceQueue against {@link StubStripeServer}: requests queued while the stub is offline are
+ * created exactly once when connectivity returns, survive a restart, and never carry the CVC.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class OfflineSourceQueueTest {
+    private static final long TIMEOUT_S = 15;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Context context = RuntimeEnvironment.getApplication();
+    private final List<OfflineSourceQueue> queues = new ArrayList<>();
+    private StubStripeServer server;
+    private StubSourceReplayer replayer;
+    private SecretKey key;
+    private File log;
+
+    static final class Recorder implements OfflineSourceQueue.Listener {
+        final BlockingQueue<Object[]> replayed = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> failed = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onReplayed(@NonNull OfflineSourceQueue.Entry entry, @Nullable Object source) {
+            replayed.add(new Object[]{entry, source});
+        }
+
+        @Override
+        public void onFailed(@NonNull OfflineSourceQueue.Entry entry, @NonNull String code, @Nullable String message) {
+            failed.add(code);
+        }
+
+        Object[] next() throws InterruptedException {
+            final Object[] replay = replayed.poll(TIMEOUT_S, TimeUnit.SECONDS);
+            assertNotNull("no replay within " + TIMEOUT_S + "s", replay);
+            return replay;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubStripeServer();
+        server.start();
+        replayer = new StubSourceReplayer(server);
+        key = newKey();
+        log = new File(folder.getRoot(), "queue.log");
+    }
+
+    @After
+    public void tearDown() {
+        for (OfflineSourceQueue queue : queues) {
+            queue.close();
+        }
+        replayer.close();
+        server.close();
+    }
+
+    @Test
+    public void replaysEachRequestOnceWhenConnectivityReturns() throws Exception {
+        server.setOnline(false);
+        final Recorder recorder = new Recorder();
+        final OfflineSourceQueue queue = newQueue(recorder);
+        queue.start(OfflineSourceQueue.DEFAULT_MAX_ENTRIES);
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(enqueue(queue, card("4242424242424242"), "key_" + i));
+        }
+
+        server.setOnline(true);
+        reconnect(context);
+        final Set<Object> sources = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            sources.add(((Map<?, ?>) recorder.next()[1]).get("id"));
+        }
+        assertEquals(3, sources.size());
+        assertEquals(3, server.created());
+        assertEquals(0, server.replayed());
+        final Set<String> keys = new HashSet<>();
+        for (StubStripeServer.Request request : server.requests()) {
+            keys.add(request.idempotencyKey);
+        }
+        assertEquals(3, keys.size());
+        final Map<String, Object> stats = stats(queue);
+        assertEquals(0, stats.get("pending"));
+        assertEquals(3L, stats.get("replayed"));
+        assertEquals(0L, stats.get("failed"));
+    }
+
+    @Test
+    public void retriesWithTheSameIdempotencyKey() throws Exception {
+        // Stripe creates the source but the response is lost
+        server.dropNextResponses(1);
+        final Recorder recorder = new Recorder();
+        final OfflineSourceQueue queue = newQueue(recorder);
+        queue.start(OfflineSourceQueue.DEFAULT_MAX_ENTRIES);
+        assertNotNull(enqueue(queue, card("4242424242424242"), "checkout_1"));
+        reconnect(context);
+        awaitStats(queue, "attempt", 1);
+
+        reconnect(context);
+        final Object[] replay = recorder.next();
+        assertEquals("src_stub_1", ((Map<?, ?>) replay[1]).get("id"));
+        assertEquals(1, server.created());
+        assertEquals(1, server.replayed());
+        final List<StubStripeServer.Request> requests = server.requests();
+        assertEquals(2, requests.size());
+        assertEquals("checkout_1", requests.get(0).idempotencyKey);
+        assertEquals("checkout_1", requests.get(1).idempotencyKey);
+    }
+
+    @Test
+    public void backoffReplaysWithoutAConnectivityCallback() throws Exception {
+        final Recorder recorder = new Recorder();
+        final OfflineSourceQueue queue = newQueue(recorder);
+        queue.start(OfflineSourceQueue.DEFAULT_MAX_ENTRIES);
+        assertNotNull(enqueue(queue, card("4242424242424242"), null));
+        recorder.next();
+        assertEquals(1, server.created());
+    }
+
+    @Test
+    public void survivesRestartWithoutTheCvc() throws Exception {
+        server.setOnline(false);
+        final OfflineSourceQueue first = newQueue(new Recorder());
+        first.start(OfflineSourceQueue.DEFAULT_MAX_ENTRIES);
+        assertNotNull(enqueue(first, card("4242424242424242"), "key_a"));
+        assertNotNull(enqueue(first, card("5555555555554444"), "key_b"));
+        first.close();
+
+        final List<String> records = readLog(log, key);
+        assertEquals(2, records.size());
+        for (String record : records) {
+            assertTrue(record, record.contains("\"number\""));
+            assertFalse(record, record.contains("cvc"));
+        }
+
+        server.setOnline(true);
+        final Recorder recorder = new Recorder();
+        final OfflineSourceQueue second = newQueue(recorder);
+        second.start(OfflineSourceQueue.DEFAULT_MAX_ENTRIES);
+        for (int i = 0; i < 2; i++) {
+            final OfflineSourceQueue.Entry entry = (OfflineSourceQueue.Entry) recorder.next()[0];
+            assertFalse(entry.args.containsKey("cvc"));
+        }
+        assertEquals(2, server.created());
+        for (StubStripeServer.Request request : server.requests()) {
+            assertNotNull(request.params.get("card[number]"));
+            assertNull(request.params.get("card[cvc]"));
+        }
+    }
+
+    @Test
+    public void rejectsWithoutAKey() throws Exception {
+        final OfflineSourceQueue queue = new OfflineSourceQueue(context, log, new OfflineSourceQueue.KeyProvider() {
+            @NonNull
+            @Override
+            public SecretKey getKey() throws Exception {
+                throw new IllegalStateException("no keystore");
+            }
+        }, replayer, new Recorder());
+        queues.add(queue);
+        assertNull(enqueue(queue, card("4242424242424242"), null));
+        assertEquals(1L, stats(queue).get("rejected"));
+        assertFalse(log.exists());
+    }
+
+    private OfflineSourceQueue newQueue(OfflineSourceQueue.Listener listener) {
+        final OfflineSourceQueue queue = new OfflineSourceQueue(context, log, new OfflineSourceQueue.KeyProvider() {
+            @NonNull
+            @Override
+            public SecretKey getKey() {
+                return key;
+            }
+        }, replayer, listener);
+        queues.add(queue);
+        return queue;
+    }
+
+    static Map<String, Object> card(String number) {
+        final Map<String, Object> args = new HashMap<>();
+        args.put("number", number);
+        args.put("exp_month", 12);
+        args.put("exp_year", 2099);
+        args.put("cvc", "123");
+        return args;
+    }
+
+    static SecretKey newKey() throws Exception {
+        final KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        return generator.generateKey();
+    }
+
+    /**
+     * @return the queue id, null if the entry was rejected
+     */
+    static String enqueue(OfflineSourceQueue queue, Map<String, Object> args, String idempotencyKey) throws Exception {
+        final BlockingQueue<Object[]> queued = new LinkedBlockingQueue<>();
+        queue.enqueue("createSourceFromCard", args, idempotencyKey, new OfflineSourceQueue.QueuedCallback() {
+            @Override
+            public void onQueued(@Nullable String queueId) {
+                queued.add(new Object[]{queueId});
+            }
+        });
+        final Object[] queueId = queued.poll(TIMEOUT_S, TimeUnit.SECONDS);
+        assertNotNull(queueId);
+        return (String) queueId[0];
+    }
+
+    /**
+     * Stats from the queue's worker; once they arrive, everything posted before has run.
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> stats(OfflineSourceQueue queue) throws Exception {
+        final BlockingQueue<Object> stats = new LinkedBlockingQueue<>();
+        queue.getStats(new MethodChannel.Result() {
+            @Override
+            public void success(@Nullable Object result) {
+                stats.add(result);
+            }
+
+            @Override
+            public void error(@NonNull String errorCode, @Nullable String errorMessage, @Nullable Object errorDetails) {
+                stats.add(errorCode);
+            }
+
+            @Override
+            public void notImplemented() {
+                stats.add("not_implemented");
+            }
+        });
+        final Object result = stats.poll(TIMEOUT_S, TimeUnit.SECONDS);
+        assertTrue(String.valueOf(result), result instanceof Map);
+        return (Map<String, Object>) result;
+    }
+
+    static void awaitStats(OfflineSourceQueue queue, String name, Object value) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_S);
+        while (!value.equals(stats(queue).get(name))) {
+            assertTrue(name + " never became " + value, System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Tells every registered network callback that a network is available.
+     */
+    static void reconnect(Context context) {
+        final ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        for (ConnectivityManager.NetworkCallback callback : shadowOf(connectivityManager).getNetworkCallbacks()) {
+            callback.onAvailable(ShadowNetwork.newInstance(1));
+        }
+    }
+
+    private static List<String> readLog(File file, SecretKey key) throws Exception {
+        final List<String> records = new ArrayList<>();
+        if (!file.exists()) {
+            return records;
+        }
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charset.forName("UTF-8")));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final byte[] sealed = Base64.decode(line, Base64.NO_WRAP);
+                final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, sealed, 1, sealed[0]));
+                records.add(new String(cipher.doFinal(sealed, 1 + sealed[0], sealed.length - 1 - sealed[0]), "UTF-8"));
+            }
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+}
@@ -0,0 +1,79 @@
+package com.applaudsoft.stripe_api;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import io.flutter.plugin.common.MethodChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SourceBatchTest {
+
+    @Test
+    public void aLargeBatchOfSynchronousFailuresDoesNotRecurse() {
+        final int size = 100000;
+        final Recorder batch = new Recorder();
+        new SourceBatch(size, 1, batch, new SourceBatch.ItemLauncher() {
+            @Override
+            public void launch(int index, @NonNull MethodChannel.Result itemResult) {
+                throw new IllegalArgumentException("Invalid card " + index);
+            }
+        }).start();
+
+        assertNotNull(batch.items);
+        assertEquals(size, batch.items.size());
+        final Map<?, ?> last = (Map<?, ?>) batch.items.get(size - 1);
+        assertEquals("Invalid card " + (size - 1), ((Map<?, ?>) last.get("error")).get("message"));
+    }
+
+    @Test
+    public void keepsAtMostParallelismItemsInFlight() {
+        final List<MethodChannel.Result> inFlight = new ArrayList<>();
+        final Recorder batch = new Recorder();
+        new SourceBatch(5, 2, batch, new SourceBatch.ItemLauncher() {
+            @Override
+            public void launch(int index, @NonNull MethodChannel.Result itemResult) {
+                inFlight.add(itemResult);
+            }
+        }).start();
+
+        assertEquals(2, inFlight.size());
+        inFlight.get(0).success("src_0");
+        assertEquals(3, inFlight.size());
+        inFlight.get(2).success("src_2");
+        inFlight.get(1).error("card_declined", "Your card was declined.", null);
+        inFlight.get(3).success("src_3");
+        assertNull(batch.items);
+        inFlight.get(4).success("src_4");
+
+        assertEquals(5, inFlight.size());
+        assertEquals("src_2", ((Map<?, ?>) batch.items.get(2)).get("source"));
+        assertTrue(((Map<?, ?>) batch.items.get(1)).containsKey("error"));
+    }
+
+    private static final class Recorder implements MethodChannel.Result {
+        List<?> items;
+
+        @Override
+        public void success(@Nullable Object result) {
+            items = (List<?>) result;
+        }
+
+        @Override
+        public void error(@NonNull String errorCode, @Nullable String errorMessage, @Nullable Object errorDetails) {
+        }
+
+        @Override
+        public void notImplemented() {
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.applaudsoft.stripe_api;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.flutter.plugin.common.MethodChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SourceRequestRegistryTest {
+    private static final long TIMEOUT_S = 15;
+
+    @Test
+    public void cancelsAWaitingRequestBeforeItStarts() {
+        final SourceRequestRegistry registry = new SourceRequestRegistry();
+        registry.setMaxConcurrent(1);
+        final Recorder first = new Recorder();
+        final Recorder second = new Recorder();
+        final List<String> started = new ArrayList<>();
+        registry.submit("first", first, false, starter(started, "first"));
+        registry.submit("second", second, false, starter(started, "second"));
+
+        assertTrue(registry.cancel("second"));
+        assertEquals("cancelled", second.errorCode);
+        assertSame(first, registry.complete("first"));
+        assertEquals(1, started.size());
+    }
+
+    @Test
+    public void cancellingAWaitingRequestFreesItsId() {
+        final SourceRequestRegistry registry = new SourceRequestRegistry();
+        registry.setMaxConcurrent(1);
+        final List<String> started = new ArrayList<>();
+        registry.submit("first", new Recorder(), starter(started, "first"));
+        registry.submit("second", new Recorder(), starter(started, "second"));
+
+        assertTrue(registry.cancel("second"));
+        assertEquals(0, registry.getStats().get("queue_depth"));
+        final Recorder resubmitted = new Recorder();
+        registry.submit("second", resubmitted, starter(started, "second again"));
+        assertNull(resubmitted.errorCode);
+        assertEquals(1, registry.getStats().get("queue_depth"));
+
+        registry.complete("first");
+        assertEquals(2, started.size());
+        assertEquals("second again", started.get(1));
+        assertSame(resubmitted, registry.complete("second"));
+    }
+
+    @Test
+    public void cancelsARunningRequestAndDropsItsAnswer() {
+        final SourceRequestRegistry registry = new SourceRequestRegistry();
+        final Recorder result = new Recorder();
+        registry.submit("source", result, starter(new ArrayList<String>(), "source"));
+
+        assertTrue(registry.cancel("source"));
+        assertEquals("cancelled", result.errorCode);
+        assertNull(registry.complete("source"));
+    }
+
+    @Test
+    public void refusesToCancelARunningConfirmation() {
+        final SourceRequestRegistry registry = new SourceRequestRegistry();
+        final Recorder result = new Recorder();
+        registry.submit("confirm", result, false, starter(new ArrayList<String>(), "confirm"));
+
+        assertFalse(registry.cancel("confirm"));
+        assertNull(result.errorCode);
+        assertSame(result, registry.complete("confirm"));
+        assertEquals(0L, registry.getStats().get("cancelled"));
+    }
+
+    @Test
+    public void aRequestIsAnsweredOnceWhenCompleteOvertakesCancel() throws Exception {
+        final GatedRequests requests = new GatedRequests();
+        final SourceRequestRegistry registry = new SourceRequestRegistry(requests);
+        final Recorder result = new Recorder();
+        registry.submit("source", result, starter(new ArrayList<String>(), "source"));
+
+        // Dart cancels on the background thread, and gets the request just before Stripe answers
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final Thread cancel = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                cancelled.set(registry.cancel("source"));
+            }
+        });
+        cancel.start();
+        assertTrue(requests.looked.await(TIMEOUT_S, TimeUnit.SECONDS));
+        final MethodChannel.Result completed = registry.complete("source");
+        assertSame(result, completed);
+        completed.success(null);
+        requests.resume.countDown();
+        cancel.join();
+
+        assertFalse(cancelled.get());
+        assertEquals(1, result.replies.get());
+        assertNull(result.errorCode);
+    }
+
+    /**
+     * Holds the first lookup after handing out the request until {@link #resume} opens.
+     */
+    private static final class GatedRequests extends ConcurrentHashMap<String, SourceRequestRegistry.PendingRequest> {
+        final CountDownLatch looked = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+
+        @Override
+        public SourceRequestRegistry.PendingRequest get(Object key) {
+            final SourceRequestRegistry.PendingRequest request = super.get(key);
+            if (looked.getCount() > 0) {
+                looked.countDown();
+                try {
+                    resume.await(TIMEOUT_S, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return request;
+        }
+    }
+
+    private static Runnable starter(final List<String> started, final String requestId) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.add(requestId);
+            }
+        };
+    }
+
+    private static final class Recorder implements MethodChannel.Result {
+        final AtomicInteger replies = new AtomicInteger();
+        volatile String errorCode;
+
+        @Override
+        public void success(@Nullable Object result) {
+            replies.incrementAndGet();
+        }
+
+        @Override
+        public void error(@NonNull String errorCode, @Nullable String errorMessage, @Nullable Object errorDetails) {
+            this.errorCode = errorCode;
+            replies.incrementAndGet();
+        }
+
+        @Override
+        public void notImplemented() {
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.applaudsoft.stripe_api;
+
+import android.content.Context;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+
+import com.stripe.android.ApiResultCallback;
+import com.stripe.android.Stripe;
+import com.stripe.android.model.CardParams;
+import com.stripe.android.model.Source;
+import com.stripe.android.model.SourceParams;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.net.URLStreamHandlerFactory;
+import java.nio.charset.Charset;
+import java.security.cert.Certificate;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * The Stripe-Account header of the source requests the plugin sends through pooled clients. The
+ * Stripe SDK's API host is fixed, so its HTTPS connections to stripe.com are answered in process;
+ * everything else still goes to the network.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class StripeAccountHeaderTest {
+    private static final String PUBLISHABLE_KEY = "pk_test_stripe_account_header";
+    private static final long TIMEOUT_S = 15;
+    private static final BlockingQueue<Map<String, String>> sourceRequests = new LinkedBlockingQueue<>();
+    private static String sourceJson;
+
+    private final Context context = RuntimeEnvironment.getApplication();
+
+    @BeforeClass
+    public static void interceptStripe() throws Exception {
+        sourceJson = MicroBenchmark.fixture("source_card.json");
+        // created first, so its handler is the platform's
+        final URL platformContext = new URL("https://localhost/");
+        try {
+            URL.setURLStreamHandlerFactory(new URLStreamHandlerFactory() {
+                @Override
+                public URLStreamHandler createURLStreamHandler(String protocol) {
+                    if (!"https".equals(protocol)) {
+                        return null;
+                    }
+                    return new URLStreamHandler() {
+                        @Override
+                        protected URLConnection openConnection(URL url) throws IOException {
+                            if (url.getHost().endsWith("stripe.com")) {
+                                return new StripeConnection(url);
+                            }
+                            // same protocol as the context, so the URL takes the context's handler
+                            return new URL(platformContext, url.toExternalForm()).openConnection();
+                        }
+                    };
+                }
+            });
+        } catch (Error e) {
+            // already installed by an earlier run in this JVM
+        }
+    }
+
+    @Before
+    public void setUp() {
+        sourceRequests.clear();
+    }
+
+    @Test
+    public void connectedAccountRequestsCarryTheStripeAccountHeader() throws Exception {
+        final Object result = createSource(StripeClientPool.get(context, PUBLISHABLE_KEY, "acct_connected"),
+                "checkout_1", "acct_connected");
+        assertTrue(String.valueOf(result), result instanceof Source);
+        final Map<String, String> headers = sourceRequests.poll(TIMEOUT_S, TimeUnit.SECONDS);
+        assertEquals("acct_connected", headers.get("Stripe-Account"));
+        assertEquals("checkout_1", headers.get("Idempotency-Key"));
+    }
+
+    @Test
+    public void platformRequestsCarryNoStripeAccountHeader() throws Exception {
+        final Object result = createSource(StripeClientPool.get(context, PUBLISHABLE_KEY, null), null, "");
+        assertTrue(String.valueOf(result), result instanceof Source);
+        final Map<String, String> headers = sourceRequests.poll(TIMEOUT_S, TimeUnit.SECONDS);
+        assertNull(headers.get("Stripe-Account"));
+    }
+
+    /**
+     * @return the Source, or the exception Stripe reported
+     */
+    private static Object createSource(Stripe stripe, String idempotencyKey, String stripeAccountId)
+            throws InterruptedException {
+        final BlockingQueue<Object> results = new LinkedBlockingQueue<>();
+        StripeApiPlugin.sendCreateSource(stripe, SourceParams.createCardParams(new CardParams("4242424242424242", 12, 2034, "123")),
+                idempotencyKey, stripeAccountId, new ApiResultCallback<Source>() {
+                    @Override
+                    public void onSuccess(@NonNull Source source) {
+                        results.add(source);
+                    }
+
+                    @Override
+                    public void onError(@NonNull Exception e) {
+                        results.add(e);
+                    }
+                });
+        // Stripe answers on the main looper
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_S);
+        while (System.nanoTime() < deadline) {
+            shadowOf(Looper.getMainLooper()).idle();
+            final Object result = results.poll(10, TimeUnit.MILLISECONDS);
+            if (result != null) {
+                return result;
+            }
+        }
+        fail("Stripe didn't answer within " + TIMEOUT_S + "s");
+        return null;
+    }
+
+    /**
+     * Answers /v1/sources with the recorded card source, and analytics and fraud detection with an
+     * empty object.
+     */
+    private static final class StripeConnection extends HttpsURLConnection {
+        private final Map<String, String> headers = new HashMap<>();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        StripeConnection(URL url) {
+            super(url);
+        }
+
+        @Override
+        public void setRequestProperty(String key, String value) {
+            headers.put(key, value);
+        }
+
+        @Override
+        public void addRequestProperty(String key, String value) {
+            headers.put(key, value);
+        }
+
+        @Override
+        public String getRequestProperty(String key) {
+            return headers.get(key);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return body;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return HTTP_OK;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            final boolean source = "/v1/sources".equals(url.getPath());
+            if (source) {
+                sourceRequests.add(new HashMap<>(headers));
+            }
+            return new ByteArrayInputStream((source ? sourceJson : "{}").getBytes(Charset.forName("UTF-8")));
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return null;
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaderFields() {
+            return Collections.singletonMap("Content-Type", Collections.singletonList("application/json"));
+        }
+
+        @Override
+        public void connect() {
+            connected = true;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+
+        @Override
+        public String getCipherSuite() {
+            return "TLS_AES_128_GCM_SHA256";
+        }
+
+        @Override
+        public Certificate[] getLocalCertificates() {
+            return null;
+        }
+
+        @Override
+        public Certificate[] getServerCertificates() {
+            return new Certificate[0];
+        }
+    }
+}
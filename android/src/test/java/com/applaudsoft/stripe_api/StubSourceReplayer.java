@@ -0,0 +1,106 @@
+package com.applaudsoft.stripe_api;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Replays queued card sources against a {@link StubStripeServer}, the way the plugin's replayer does
+ * through the Stripe SDK, whose API host is fixed: POST /v1/sources with the entry's Idempotency-Key
+ * and Stripe-Account, a failed connection reported as a network error and any Stripe error as a
+ * failure. Requests run on a pool of their own, as Stripe's do.
+ */
+final class StubSourceReplayer implements OfflineSourceQueue.Replayer {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String[] CARD_ARGS = {"number", "exp_month", "exp_year", "cvc"};
+
+    private final String apiPath;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    StubSourceReplayer(StubStripeServer server) {
+        this.apiPath = server.apiPath();
+    }
+
+    void close() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void replay(@NonNull final OfflineSourceQueue.Entry entry, @NonNull final OfflineSourceQueue.ReplayCallback callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final int status;
+                final JSONObject body;
+                try {
+                    final HttpURLConnection connection = (HttpURLConnection) new URL(apiPath + "/sources").openConnection();
+                    try {
+                        final byte[] form = form(entry.args).getBytes(UTF_8);
+                        connection.setRequestMethod("POST");
+                        connection.setDoOutput(true);
+                        // streaming mode also stops HttpURLConnection from silently retrying the POST
+                        connection.setFixedLengthStreamingMode(form.length);
+                        // a kept-alive loopback connection stalls on delayed ACKs, ~40ms per request
+                        connection.setRequestProperty("Connection", "close");
+                        connection.setRequestProperty("Authorization", "Bearer pk_test_stub");
+                        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                        connection.setRequestProperty("Idempotency-Key", entry.idempotencyKey);
+                        final Object stripeAccount = entry.args.get("stripe_account");
+                        if (stripeAccount != null) {
+                            connection.setRequestProperty("Stripe-Account", stripeAccount.toString());
+                        }
+                        final OutputStream out = connection.getOutputStream();
+                        try {
+                            out.write(form);
+                        } finally {
+                            out.close();
+                        }
+                        status = connection.getResponseCode();
+                        final InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+                        body = new JSONObject(MicroBenchmark.read(in));
+                    } finally {
+                        connection.disconnect();
+                    }
+                } catch (IOException e) {
+                    callback.onNetworkError();
+                    return;
+                } catch (Exception e) {
+                    callback.onError(e.getClass().toString(), e.getMessage());
+                    return;
+                }
+                if (status == 200) {
+                    final Map<String, Object> source = new HashMap<>();
+                    source.put("id", body.optString("id"));
+                    callback.onResult(source);
+                } else {
+                    final JSONObject error = body.optJSONObject("error");
+                    callback.onError(error != null ? error.optString("type") : "http_" + status,
+                            error != null ? error.optString("message") : null);
+                }
+            }
+        });
+    }
+
+    private static String form(Map<String, Object> args) throws IOException {
+        final StringBuilder form = new StringBuilder("type=card");
+        for (String name : CARD_ARGS) {
+            final Object value = args.get(name);
+            if (value != null) {
+                form.append("&card%5B").append(name).append("%5D=").append(URLEncoder.encode(value.toString(), "UTF-8"));
+            }
+        }
+        return form.toString();
+    }
+}
@@ -0,0 +1,236 @@
+package com.applaudsoft.stripe_api;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The POST /v1/sources part of tool/mock_stripe_server.dart for the JVM tests: the same latency,
+ * error and drop knobs, and a repeated Idempotency-Key replays the first response. While offline
+ * every connection is closed without a response, as when the device has no network. Requests are
+ * kept with their form parameters and Stripe-Account header so tests can check what was sent.
+ */
+public final class StubStripeServer {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final class Request {
+        public final Map<String, String> params;
+        public final String idempotencyKey;
+        public final String stripeAccount;
+
+        Request(Map<String, String> params, String idempotencyKey, String stripeAccount) {
+            this.params = params;
+            this.idempotencyKey = idempotencyKey;
+            this.stripeAccount = stripeAccount;
+        }
+    }
+
+    private static final class Response {
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private final long latencyMs;
+    private final double errorRate;
+    private final double dropRate;
+    private final Random random;
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+    private HttpServer server;
+
+    private volatile boolean online = true;
+    // guarded by this
+    private int dropNextResponses;
+    private final Map<String, Response> idempotentResponses = new HashMap<>();
+    private final List<Request> requests = new ArrayList<>();
+    private int nextId;
+    private int created;
+    private int replayed;
+    private int dropped;
+
+    public StubStripeServer() {
+        this(0, 0, 0, 1);
+    }
+
+    public StubStripeServer(long latencyMs, double errorRate, double dropRate, long seed) {
+        this.latencyMs = latencyMs;
+        this.errorRate = errorRate;
+        this.dropRate = dropRate;
+        this.random = new Random(seed);
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/v1/sources", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    StubStripeServer.this.handle(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public String apiPath() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/v1";
+    }
+
+    public void setOnline(boolean online) {
+        this.online = online;
+    }
+
+    /**
+     * Handles the next {@code count} requests but closes their connections instead of responding,
+     * as when the network drops after Stripe has created the source.
+     */
+    public synchronized void dropNextResponses(int count) {
+        dropNextResponses = count;
+    }
+
+    public synchronized List<Request> requests() {
+        return new ArrayList<>(requests);
+    }
+
+    /**
+     * Sources created, not counting idempotent replays.
+     */
+    public synchronized int created() {
+        return created;
+    }
+
+    public synchronized int replayed() {
+        return replayed;
+    }
+
+    public synchronized int dropped() {
+        return dropped;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        final Map<String, String> params = parseForm(MicroBenchmark.read(exchange.getRequestBody()));
+        if (latencyMs > 0) {
+            try {
+                Thread.sleep(latencyMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        final String idempotencyKey = exchange.getRequestHeaders().getFirst("Idempotency-Key");
+        final Response response;
+        synchronized (this) {
+            if (!online || random.nextDouble() < dropRate) {
+                // closing the exchange before sending headers drops the connection
+                dropped++;
+                return;
+            }
+            requests.add(new Request(Collections.unmodifiableMap(params), idempotencyKey,
+                    exchange.getRequestHeaders().getFirst("Stripe-Account")));
+            final Response previous = idempotencyKey != null ? idempotentResponses.get(idempotencyKey) : null;
+            if (previous != null) {
+                replayed++;
+                response = previous;
+            } else if (random.nextDouble() < errorRate) {
+                response = random.nextBoolean()
+                        ? error(429, "rate_limit_error", "Too many requests hit the API too quickly.")
+                        : error(500, "api_error", "An unknown error occurred.");
+            } else {
+                response = createSource(params);
+                // like Stripe, server errors are not saved for replay
+                if (idempotencyKey != null && response.status < 500) {
+                    idempotentResponses.put(idempotencyKey, response);
+                }
+            }
+            if (dropNextResponses > 0) {
+                dropNextResponses--;
+                dropped++;
+                return;
+            }
+        }
+        final byte[] body = response.body.getBytes(UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(response.status, body.length);
+        final OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    // holds the lock
+    private Response createSource(Map<String, String> params) {
+        if (!"card".equals(params.get("type"))) {
+            return error(400, "invalid_request_error", "Only card sources are stubbed.");
+        }
+        if (params.get("card[number]") == null) {
+            return error(400, "invalid_request_error", "Missing required param: card.");
+        }
+        created++;
+        try {
+            return new Response(200, new JSONObject()
+                    .put("id", "src_stub_" + ++nextId)
+                    .put("object", "source")
+                    .put("type", "card")
+                    .put("status", "chargeable")
+                    .toString());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Response error(int status, String type, String message) {
+        try {
+            return new Response(status, new JSONObject()
+                    .put("error", new JSONObject().put("type", type).put("message", message))
+                    .toString());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Map<String, String> parseForm(String body) throws UnsupportedEncodingException {
+        final Map<String, String> params = new LinkedHashMap<>();
+        for (String pair : body.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            final int equals = pair.indexOf('=');
+            params.put(URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), "UTF-8"),
+                    equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+        }
+        return params;
+    }
+}
@@ -0,0 +1,55 @@
+package com.stripe.android.model;
+
+import com.applaudsoft.stripe_api.MicroBenchmark;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Single-pass model to map conversion against the old put-everything-then-clean-up conversion,
+ * followed by the null and empty value cleanup the result paths used to do.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class StripeMapUtilBenchmark {
+
+    @Test
+    public void toMap() throws Exception {
+        final Source source = Source.fromJson(new JSONObject(MicroBenchmark.fixture("source_card.json")));
+        // the old conversion cleans the model's own type data map, so it gets a source of its own
+        final Source baselineSource = Source.fromJson(new JSONObject(MicroBenchmark.fixture("source_card.json")));
+        final Card card = Token.fromJson(new JSONObject(MicroBenchmark.fixture("token_card.json"))).getCard();
+        assertEquals(BaselineStripeMapUtil.sourceResult(baselineSource), StripeMapUtil.SourceUtil.toMap(source));
+        assertEquals(BaselineStripeMapUtil.cardResult(card), StripeMapUtil.CardUtil.toMap(card));
+
+        final MicroBenchmark benchmark = new MicroBenchmark("stripe_map_util");
+        benchmark.measure("SourceUtil.toMap baseline", new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                return BaselineStripeMapUtil.sourceResult(baselineSource);
+            }
+        });
+        benchmark.measure("SourceUtil.toMap single pass", new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                return StripeMapUtil.SourceUtil.toMap(source);
+            }
+        });
+        benchmark.measure("CardUtil.toMap baseline", new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                return BaselineStripeMapUtil.cardResult(card);
+            }
+        });
+        benchmark.measure("CardUtil.toMap single pass", new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                return StripeMapUtil.CardUtil.toMap(card);
+            }
+        });
+        benchmark.report();
+    }
+}
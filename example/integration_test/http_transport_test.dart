@@ -0,0 +1,12 @@
+import 'package:integration_test/integration_test.dart';
+
+import '../../tool/load_test.dart' as load_test;
+
+///
+/// The load harness of tool/load_test.dart on a device, through Dart's HTTP stack and then the
+/// plugin's native one, against the same in-process mock. See that file for the LOAD_* defines.
+///
+void main() {
+  IntegrationTestWidgetsFlutterBinding.ensureInitialized();
+  load_test.defineLoadTest(["dart", "native"]);
+}
@@ -0,0 +1,155 @@
+import 'dart:async';
+
+import 'model/customer.dart';
+import 'model/customer_source.dart';
+import 'model/source.dart';
+
+///
+/// Read-through cache of the session's customer. Concurrent reads share one request, and
+/// mutations patch the cached customer instead of forcing a refetch.
+///
+/// Every write bumps [version]; a fetch that started before a write doesn't overwrite what the
+/// write left in the cache, since it may predate it, and later reads don't join it. The cached
+/// customer is never modified in place: writes patch a copy, so customers already handed out
+/// don't change under their callers.
+///
+class CustomerCache {
+  final Duration ttl;
+
+  Customer? _customer;
+  String? _customerId;
+  DateTime? _fetchedAt;
+  int _version = 0;
+
+  Future<Customer>? _inFlight;
+  String? _inFlightCustomerId;
+
+  int _hits = 0;
+  int _coalesced = 0;
+  int _misses = 0;
+
+  CustomerCache(this.ttl);
+
+  int get version => _version;
+
+  ///
+  /// The cached customer if it is still fresh, otherwise the result of [fetch]; callers that
+  /// arrive while a fetch for the same customer is in flight wait for it. With [forceRefresh] the
+  /// cache and any fetch already in flight are skipped, since that fetch may predate the caller's
+  /// writes.
+  ///
+  Future<Customer> read(String? customerId, Future<Customer> Function() fetch, {bool forceRefresh = false}) {
+    final cached = _freshCustomer(customerId);
+    if (forceRefresh) {
+      // the older fetch must not store its result over this one's either
+      _bumpVersion();
+    } else if (cached != null) {
+      _hits++;
+      return new Future.value(cached);
+    } else if (_inFlight != null && _inFlightCustomerId == customerId) {
+      _coalesced++;
+      return _inFlight!;
+    }
+    _misses++;
+    final startVersion = _version;
+    final future = fetch().then((customer) {
+      if (_version == startVersion) {
+        _store(customerId, customer);
+      }
+      return customer;
+    });
+    _inFlight = future;
+    _inFlightCustomerId = customerId;
+    void done() {
+      if (identical(_inFlight, future)) {
+        _inFlight = null;
+        _inFlightCustomerId = null;
+      }
+    }
+    future.then((_) => done(), onError: (_) => done());
+    return future;
+  }
+
+  /// Stores a customer returned by a mutation, e.g. a default source or shipping update.
+  void put(String? customerId, Customer customer) {
+    _store(customerId, customer);
+  }
+
+  void sourceAdded(String? customerId, Source source) {
+    final cached = _freshCustomer(customerId);
+    if (cached == null) {
+      return;
+    }
+    final customer = new Customer.copy(cached);
+    customer.sources.removeWhere((existing) => existing.id == source.id);
+    customer.sources.add(new CustomerSource.of(source));
+    if (customer.totalCount != null) {
+      customer.totalCount = customer.totalCount! + 1;
+    }
+    // Stripe makes the first source the default one
+    customer.defaultSource ??= source.id;
+    _customer = customer;
+    _bumpVersion();
+  }
+
+  void sourceDeleted(String? customerId, String sourceId) {
+    final cached = _freshCustomer(customerId);
+    if (cached == null) {
+      return;
+    }
+    if (cached.defaultSource == sourceId) {
+      // Stripe picks the new default, only a refetch can tell which
+      invalidate();
+      return;
+    }
+    final customer = new Customer.copy(cached);
+    final before = customer.sources.length;
+    customer.sources.removeWhere((existing) => existing.id == sourceId);
+    if (customer.totalCount != null && customer.sources.length < before) {
+      customer.totalCount = customer.totalCount! - 1;
+    }
+    _customer = customer;
+    _bumpVersion();
+  }
+
+  void invalidate() {
+    _customer = null;
+    _customerId = null;
+    _fetchedAt = null;
+    _bumpVersion();
+  }
+
+  Map<String, dynamic> getStats() {
+    return {
+      "hits": _hits,
+      "coalesced": _coalesced,
+      "misses": _misses,
+      "version": _version,
+      "cached": _customer != null,
+    };
+  }
+
+  void _store(String? customerId, Customer customer) {
+    _customer = customer;
+    _customerId = customerId;
+    _fetchedAt = DateTime.now();
+    _bumpVersion();
+  }
+
+  /// A fetch in flight now may predate the write; its callers still get it, later reads don't.
+  void _bumpVersion() {
+    _version++;
+    _inFlight = null;
+    _inFlightCustomerId = null;
+  }
+
+  Customer? _freshCustomer(String? customerId) {
+    if (_customer == null || _customerId != customerId) {
+      return null;
+    }
+    if (DateTime.now().difference(_fetchedAt!) >= ttl) {
+      return null;
+    }
+    return _customer;
+  }
+}
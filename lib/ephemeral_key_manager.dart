@@ -1,5 +1,6 @@
 import 'dart:async';
 import 'dart:convert' show json;
+import 'dart:math' show Random, min;
 
 import 'model/stripe_json_model.dart';
 import 'model/stripe_json_utils.dart';
@@ -46,8 +47,9 @@ class EphemeralKey extends StripeJsonModel {
     _type = json[FIELD_ASSOCIATED_OBJECTS][0][FIELD_TYPE];
     _object = optString(json, FIELD_OBJECT);
     _secret = optString(json, FIELD_SECRET);
-    _createdAt = new DateTime.fromMillisecondsSinceEpoch(_created!);
-    _expiresAt = new DateTime.fromMillisecondsSinceEpoch(_expires!);
+    // Stripe timestamps are in seconds
+    _createdAt = new DateTime.fromMillisecondsSinceEpoch(_created! * 1000);
+    _expiresAt = new DateTime.fromMillisecondsSinceEpoch(_expires! * 1000);
   }
 
   String? get id => _id;
@@ -87,20 +89,80 @@ class EphemeralKey extends StripeJsonModel {
 }
 
 ///
-///
+/// Hands out the session's ephemeral key. Keys are refreshed once they are within
+/// [timeBufferInSeconds] of expiry and, with [proactiveRefresh], also shortly before that from a
+/// timer, so customer calls don't wait on the backend. The timer is jittered so that many app
+/// instances holding keys of the same lifetime don't all hit the backend at once.
+/// Concurrent refreshes share one provider call.
 ///
 class EphemeralKeyManager {
+  static const Duration _MAX_JITTER = const Duration(seconds: 60);
+  static const Duration _MIN_RETRY_DELAY = const Duration(seconds: 5);
+
   EphemeralKey? _ephemeralKey;
   final EphemeralKeyProvider ephemeralKeyProvider;
   final int timeBufferInSeconds;
+  final bool proactiveRefresh;
+
+  final Random _random = new Random();
+  Future<EphemeralKey?>? _refreshing;
+  Timer? _refreshTimer;
+  Duration _retryDelay = _MIN_RETRY_DELAY;
+  bool _disposed = false;
 
-  EphemeralKeyManager(this.ephemeralKeyProvider, this.timeBufferInSeconds);
+  int _refreshes = 0;
+  int _proactiveRefreshes = 0;
+  int _failedRefreshes = 0;
+  int _blockedCalls = 0;
+  int _refreshMicrosTotal = 0;
+  int _refreshMicrosMax = 0;
+
+  EphemeralKeyManager(this.ephemeralKeyProvider, this.timeBufferInSeconds, {this.proactiveRefresh = true});
 
   ///
   ///
   ///
   Future<EphemeralKey?> retrieveEphemeralKey() async {
     if (_shouldRefreshKey()) {
+      _blockedCalls++;
+      return _refresh();
+    } else {
+      return _ephemeralKey;
+    }
+  }
+
+  ///
+  /// {refreshes, proactive_refreshes, failed_refreshes, blocked_calls, refresh_mean_ms,
+  /// refresh_max_ms, expires_in_s}; blocked calls are those that had to wait for a refresh.
+  ///
+  Map<String, dynamic> getStats() {
+    return {
+      "refreshes": _refreshes,
+      "proactive_refreshes": _proactiveRefreshes,
+      "failed_refreshes": _failedRefreshes,
+      "blocked_calls": _blockedCalls,
+      "refresh_mean_ms": _refreshes == 0 ? 0 : _refreshMicrosTotal / _refreshes / 1000,
+      "refresh_max_ms": _refreshMicrosMax / 1000,
+      "expires_in_s": _ephemeralKey?.expiresAt?.difference(DateTime.now()).inSeconds,
+    };
+  }
+
+  ///
+  /// Stops the refresh timer; the manager can't be used afterwards.
+  ///
+  void dispose() {
+    _disposed = true;
+    _refreshTimer?.cancel();
+    _refreshTimer = null;
+  }
+
+  Future<EphemeralKey?> _refresh() {
+    return _refreshing ??= _fetchKey().whenComplete(() => _refreshing = null);
+  }
+
+  Future<EphemeralKey?> _fetchKey() async {
+    final stopwatch = new Stopwatch()..start();
+    try {
       String key;
       try {
         key = await ephemeralKeyProvider(API_VERSION);
@@ -122,11 +184,61 @@ class EphemeralKeyManager {
         });
         throw new StripeAPIException(e);
       }
+    } catch (error) {
+      _failedRefreshes++;
+      rethrow;
+    }
 
-      return _ephemeralKey;
-    } else {
-      return _ephemeralKey;
+    final micros = stopwatch.elapsedMicroseconds;
+    _refreshes++;
+    _refreshMicrosTotal += micros;
+    _refreshMicrosMax = micros > _refreshMicrosMax ? micros : _refreshMicrosMax;
+    _retryDelay = _MIN_RETRY_DELAY;
+    _scheduleRefresh();
+    return _ephemeralKey;
+  }
+
+  void _scheduleRefresh() {
+    _refreshTimer?.cancel();
+    final key = _ephemeralKey;
+    if (!proactiveRefresh || _disposed || key == null) {
+      return;
+    }
+    final now = DateTime.now();
+    final lifetime = key.expiresAt!.difference(key.createdAt!);
+    // up to a tenth of the key's lifetime early, so the lazy refresh buffer is never reached
+    final jitterMicros = min(lifetime.inMicroseconds ~/ 10, _MAX_JITTER.inMicroseconds);
+    final jitter = new Duration(microseconds: jitterMicros <= 0 ? 0 : _random.nextInt(jitterMicros));
+    final refreshAt = key.expiresAt!.subtract(new Duration(seconds: timeBufferInSeconds) + jitter);
+    // never back to back, even for keys that live shorter than the buffer
+    final delay = refreshAt.difference(now);
+    _startTimer(delay > _MIN_RETRY_DELAY ? delay : _MIN_RETRY_DELAY);
+  }
+
+  void _startTimer(Duration delay) {
+    _refreshTimer = new Timer(delay, () {
+      _refreshTimer = null;
+      if (_disposed) {
+        return;
+      }
+      _proactiveRefreshes++;
+      _refresh().catchError((error) {
+        _retryAfterFailure();
+        return null;
+      });
+    });
+  }
+
+  void _retryAfterFailure() {
+    final key = _ephemeralKey;
+    if (_disposed || !proactiveRefresh || key == null || key.expiresAt!.isBefore(DateTime.now())) {
+      // an expired key is refreshed by the next call
+      return;
     }
+    final delay = _retryDelay;
+    _retryDelay = _retryDelay * 2;
+    _refreshTimer?.cancel();
+    _startTimer(delay);
   }
 
   ///
@@ -138,7 +250,8 @@ class EphemeralKeyManager {
     }
 
     DateTime now = DateTime.now();
-    final diff = _ephemeralKey!.expiresAt!.difference(now).abs();
+    // negative once the key has expired
+    final diff = _ephemeralKey!.expiresAt!.difference(now);
     return diff.inSeconds < timeBufferInSeconds;
   }
 }
@@ -31,6 +31,16 @@ class Customer extends StripeJsonModel {
   int? totalCount;
   String? url;
 
+  /// A copy with its own [sources] list; the sources themselves are shared.
+  Customer.copy(Customer other)
+      : id = other.id,
+        defaultSource = other.defaultSource,
+        shippingInformation = other.shippingInformation,
+        sources = new List<CustomerSource>.of(other.sources),
+        hasMore = other.hasMore,
+        totalCount = other.totalCount,
+        url = other.url;
+
   Customer.fromJson(Map<dynamic, dynamic> json) {
     id = optString(json, FIELD_ID);
     defaultSource = optString(json, FIELD_DEFAULT_SOURCE);
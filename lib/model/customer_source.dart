@@ -27,6 +27,9 @@ class CustomerSource extends StripeJsonModel implements StripePaymentSource {
 
   CustomerSource._internal(this.stripePaymentSource);
 
+  /// Wraps a source or card returned by the API, e.g. by addCustomerSource.
+  factory CustomerSource.of(StripePaymentSource source) => new CustomerSource._internal(source);
+
   @override
   String? get id => stripePaymentSource == null ? null : stripePaymentSource!.id;
 
@@ -1,9 +1,14 @@
 library flutter_stripe;
 
 import 'dart:async';
+import 'dart:convert' show json, utf8;
+import 'dart:io' show Platform;
+import 'dart:math' show Random, max;
+import 'dart:typed_data';
 
 import 'package:flutter/services.dart';
 
+import 'customer_cache.dart';
 import 'ephemeral_key_manager.dart';
 import 'model/card.dart';
 import 'model/customer.dart';
@@ -11,6 +16,7 @@ import 'model/shipping_information.dart';
 import 'model/source.dart';
 import 'model/token.dart';
 import 'stripe_api_handler.dart';
+import 'stripe_binary_codec.dart';
 
 export 'card_utils.dart';
 export 'credit_card_mask_controller.dart';
@@ -20,43 +26,317 @@ export 'model/customer.dart';
 export 'model/shipping_information.dart';
 export 'model/source.dart';
 export 'model/token.dart';
+export 'stripe_http_transport.dart';
 
 class StripeFlutterPlugin {
   static const MethodChannel _channel = const MethodChannel('stripe_api');
+  static const MethodChannel _backgroundChannel = const MethodChannel('stripe_api/background');
 
-  static Future<void> init(String publishableKey, {String? appleMerchantIdentifier}) async {
-    await _channel.invokeMethod('init', {"publishableKey": publishableKey, "appleMerchantIdentifier": appleMerchantIdentifier});
+  /// Run the native handlers on a background task queue instead of the platform thread (Android only,
+  /// ignored elsewhere since only Android registers the background channel).
+  static bool useBackgroundExecution = false;
+
+  static MethodChannel get _methodChannel =>
+      useBackgroundExecution && Platform.isAndroid ? _backgroundChannel : _channel;
+
+  static const EventChannel _eventChannel = const EventChannel('stripe_api/events');
+  static Stream<PaymentFlowEvent>? _flowEvents;
+
+  /// Intermediate stages of cardFromGooglePay and of the source creation calls, as they happen (Android only).
+  /// The flow id is the `flowId`/`requestId` passed to the call, so e.g. the Google Pay token can be sent
+  /// to the server on `token_received`, before the final result arrives.
+  static Stream<PaymentFlowEvent> get flowEvents {
+    return _flowEvents ??=
+        _eventChannel.receiveBroadcastStream().map((event) => PaymentFlowEvent._fromMap(event));
+  }
+
+  static final Random _random = new Random.secure();
+
+  /// A random idempotency key for one checkout attempt: pass it to every retry of that attempt, and
+  /// make a new one for the next attempt, even with the same card.
+  static String newIdempotencyKey() {
+    final buffer = new StringBuffer("stripe_api-");
+    for (int i = 0; i < 16; i++) {
+      buffer.write(_random.nextInt(256).toRadixString(16).padLeft(2, "0"));
+    }
+    return buffer.toString();
+  }
+
+  /// Ask the native side for compact binary results instead of map trees (Android only).
+  /// Map results are still decoded, so platforms without binary support keep working.
+  static bool useBinaryCodec = false;
+
+  /// With [offlineQueue], source calls made with `queueIfOffline` that can't reach Stripe are kept
+  /// encrypted on the device, at most [offlineQueueMaxEntries] of them, and replayed when the network
+  /// returns (Android 6.0+).
+  static Future<void> init(String publishableKey,
+      {String? appleMerchantIdentifier,
+      Duration? googlePayReadinessTtl,
+      int? maxConcurrentRequests,
+      int? idempotencyCacheSize,
+      Duration? idempotencyCacheTtl,
+      bool offlineQueue = false,
+      int? offlineQueueMaxEntries,
+      int? stripeClientPoolSize}) async {
+    await _methodChannel.invokeMethod('init', {
+      "publishableKey": publishableKey,
+      "appleMerchantIdentifier": appleMerchantIdentifier,
+      "googlePayReadinessTtlMs": googlePayReadinessTtl?.inMilliseconds,
+      "maxConcurrentRequests": maxConcurrentRequests,
+      "idempotencyCacheSize": idempotencyCacheSize,
+      "idempotencyCacheTtlMs": idempotencyCacheTtl?.inMilliseconds,
+      "offlineQueue": offlineQueue,
+      "offlineQueueMaxEntries": offlineQueueMaxEntries,
+      "stripeClientPoolSize": stripeClientPoolSize,
+    });
   }
 
-  static Future<Source> createSourceFromCard(StripeCard card) async {
+  /// [requestId] identifies the call for [cancelRequest]; one is generated natively when omitted.
+  ///
+  /// With an [idempotencyKey], repeated calls (double taps, retries after a timeout) share one Stripe
+  /// call and its Source instead of creating duplicates; the key is also sent to Stripe, which keeps
+  /// it for 24 hours. Make one with [newIdempotencyKey] per checkout attempt and reuse it only for
+  /// retries of that attempt (Android only). Reusing a key with another card fails with
+  /// `idempotency_error`, as Stripe does.
+  ///
+  /// With [queueIfOffline] and the offline queue enabled in [init], a call that can't reach Stripe
+  /// fails with a PlatformException coded `queued_offline` whose details are the queue id; the source
+  /// is created later and reported on [flowEvents] under the flow `offlineQueue` with that id. The CVC
+  /// is never queued, so a replayed card source has no cvc_check.
+  ///
+  /// [stripeAccount] creates the source for that Connect account; clients per account are kept in a
+  /// native pool of at most `stripeClientPoolSize` (see [init]).
+  ///
+  /// [fields] limits the returned source to those fields, e.g. `["id", "status", "card.brand",
+  /// "card.last4"]`; the rest is never converted nor sent over the channel. Ignored when
+  /// [useBinaryCodec] is set (Android only).
+  static Future<Source> createSourceFromCard(StripeCard card,
+      {String? requestId,
+      String? idempotencyKey,
+      bool queueIfOffline = false,
+      String? stripeAccount,
+      List<String>? fields}) async {
     final Map<String, dynamic> cardMap = card.toMap();
-    Map<dynamic, dynamic> sourceMap = await _channel.invokeMethod('createSourceFromCard', cardMap);
-    return Source.fromJson(sourceMap);
+    if (useBinaryCodec) {
+      cardMap["binary"] = true;
+    }
+    if (requestId != null) {
+      cardMap["request_id"] = requestId;
+    }
+    if (idempotencyKey != null) {
+      cardMap["idempotency_key"] = idempotencyKey;
+    }
+    if (queueIfOffline) {
+      cardMap["queue_if_offline"] = true;
+    }
+    if (stripeAccount != null) {
+      cardMap["stripe_account"] = stripeAccount;
+    }
+    if (fields != null) {
+      cardMap["fields"] = fields;
+    }
+    final sourceResult = await _methodChannel.invokeMethod('createSourceFromCard', cardMap);
+    return _sourceFromResult(sourceResult);
+  }
+
+  /// Creates a PaymentMethod for [card] and confirms the PaymentIntent of [clientSecret] with it, in
+  /// one native call. Returns {id, object, amount, currency, status, payment_method_id,
+  /// requires_action, next_action_type, last_payment_error}; when requires_action is true the
+  /// customer still has to authenticate (Android only). [cancelRequest] only stops the
+  /// confirmation while it waits for a slot; once sent it always completes with Stripe's outcome.
+  /// Invalid requests and declined cards fail with Stripe's error code, e.g. card_declined.
+  static Future<Map<String, dynamic>> confirmPaymentIntentWithCard(StripeCard card, String clientSecret,
+      {String? returnUrl, String? requestId, String? idempotencyKey, String? stripeAccount}) async {
+    final Map<dynamic, dynamic> paymentIntent = await _methodChannel.invokeMethod('confirmPaymentIntentWithCard', {
+      "card": card.toMap(),
+      "client_secret": clientSecret,
+      "return_url": returnUrl,
+      "request_id": requestId,
+      "idempotency_key": idempotencyKey,
+      "stripe_account": stripeAccount,
+    });
+    return paymentIntent.cast<String, dynamic>();
+  }
+
+  static Source _sourceFromResult(dynamic result) {
+    if (result is Uint8List) {
+      return StripeBinaryCodec.decodeSource(result);
+    }
+    return Source.fromJson(result);
+  }
+
+  /// Creates one source per card in a single channel call, with at most [parallelism] Stripe calls
+  /// in flight. Items fail individually: each entry carries either its source or its error.
+  /// Item `i` can be cancelled with [cancelRequest] using the id `"$batchId/$i"`.
+  /// With an [idempotencyKey], item `i` is sent with the key `"$idempotencyKey/$i"`, so retrying the
+  /// batch with the same key and cards doesn't create sources twice.
+  static Future<List<SourceBatchItem>> createSourcesFromCards(List<StripeCard> cards,
+      {int parallelism = 4,
+      String? batchId,
+      String? idempotencyKey,
+      String? stripeAccount,
+      List<String>? fields}) async {
+    final List<dynamic> items = await _methodChannel.invokeMethod('createSourcesFromCards', {
+      "cards": cards.map((card) => card.toMap()).toList(),
+      "parallelism": parallelism,
+      "binary": useBinaryCodec,
+      "request_id": batchId,
+      "idempotency_key": idempotencyKey,
+      "stripe_account": stripeAccount,
+      "fields": fields,
+    });
+    return items.map((item) {
+      final sourceResult = item["source"];
+      if (sourceResult != null) {
+        return new SourceBatchItem._(source: _sourceFromResult(sourceResult));
+      }
+      final error = item["error"] ?? {};
+      return new SourceBatchItem._(errorCode: error["code"], errorMessage: error["message"]);
+    }).toList();
+  }
+
+  /// Native card check with the same rules createSourceFromCard applies before calling Stripe:
+  /// {brand, luhn_valid, length_valid, valid, error}, where error is a Stripe card error code such as
+  /// `invalid_number`. Without [expMonth] and [expYear] only the number is checked (Android only).
+  static Future<Map<String, dynamic>> validateCard(String number, {int? expMonth, int? expYear, String? cvc}) async {
+    final Map<dynamic, dynamic> report = await _methodChannel.invokeMethod('validateCard', {
+      "number": number,
+      "exp_month": expMonth,
+      "exp_year": expYear,
+      "cvc": cvc,
+    });
+    return report.cast<String, dynamic>();
+  }
+
+  /// Fails the pending source request [requestId] with a "cancelled" error.
+  /// Returns false if no such request is in flight, or if it is a PaymentIntent confirmation that
+  /// has already been sent.
+  static Future<bool> cancelRequest(String requestId) async {
+    return await _methodChannel.invokeMethod('cancelRequest', {"request_id": requestId});
+  }
+
+  /// In-flight count, queue depth and queue wait times of native source requests (Android only).
+  static Future<Map<String, dynamic>> getRequestStats() async {
+    final Map<dynamic, dynamic> stats = await _methodChannel.invokeMethod('getRequestStats');
+    return stats.cast<String, dynamic>();
   }
 
   static Future<bool> isGooglePayAvailable() async {
-    return await _channel.invokeMethod('isGooglePayAvailable');
+    return await _methodChannel.invokeMethod('isGooglePayAvailable');
+  }
+
+  /// Hit/miss/coalesced/mismatches counters of the idempotent source cache (Android only).
+  static Future<Map<String, dynamic>> getIdempotencyStats() async {
+    final Map<dynamic, dynamic> stats = await _methodChannel.invokeMethod('getIdempotencyStats');
+    return stats.cast<String, dynamic>();
+  }
+
+  /// {pending, replaying, enqueued, replayed, failed, rejected, attempt, max_entries} of the offline
+  /// queue, or null when it is not enabled (Android only).
+  static Future<Map<String, dynamic>?> getOfflineQueueStats() async {
+    final Map<dynamic, dynamic>? stats = await _methodChannel.invokeMethod('getOfflineQueueStats');
+    return stats?.cast<String, dynamic>();
+  }
+
+  /// {hits, misses, evictions, hit_rate, size, max_size} of the native Stripe client pool (Android only).
+  static Future<Map<String, dynamic>> getStripeClientPoolStats() async {
+    final Map<dynamic, dynamic> stats = await _methodChannel.invokeMethod('getStripeClientPoolStats');
+    return stats.cast<String, dynamic>();
+  }
+
+  /// Hit/miss/coalesced counters of the native isReadyToPay cache (Android only).
+  static Future<Map<String, dynamic>> getGooglePayReadinessStats() async {
+    final Map<dynamic, dynamic> stats = await _methodChannel.invokeMethod('getGooglePayReadinessStats');
+    return stats.cast<String, dynamic>();
+  }
+
+  /// Native startup costs in milliseconds: `init_ms` always, plus the prewarm steps when the app enables
+  /// prewarming with the `com.applaudsoft.stripe_api.PREWARM` manifest meta-data (Android only).
+  static Future<Map<String, dynamic>> getStartupTimings() async {
+    final Map<dynamic, dynamic> timings = await _methodChannel.invokeMethod('getStartupTimings');
+    return timings.cast<String, dynamic>();
+  }
+
+  /// Turns the native latency histograms on or off; with [trace] the synchronous stages are also
+  /// emitted as Android trace sections for systrace/Perfetto. Off by default (Android only).
+  static Future<void> setMetricsEnabled(bool enabled, {bool trace = false}) async {
+    await _methodChannel.invokeMethod('setMetricsEnabled', {"enabled": enabled, "trace": trace});
+  }
+
+  static Future<void> resetMetrics() async {
+    await _methodChannel.invokeMethod('resetMetrics');
+  }
+
+  /// {enabled, histograms: {name: {count, mean_ms, p50_ms, p95_ms, p99_ms, max_ms}}, requests,
+  /// main_thread_savings, google_pay_readiness} (Android only).
+  static Future<Map<String, dynamic>> getMetrics() async {
+    final Map<dynamic, dynamic> metrics = await _methodChannel.invokeMethod('getMetrics');
+    return metrics.cast<String, dynamic>();
+  }
+
+  /// Level of the native plugin log: "off", "error" (the default), "warn", "info", "debug" or
+  /// "verbose"; any other name fails with `invalid_level`. Entries go to logcat and are kept for
+  /// [dumpDiagnostics] (Android only).
+  static Future<void> setLogLevel(String level) async {
+    await _methodChannel.invokeMethod('setLogLevel', {"level": level});
+  }
+
+  /// {log_level, log: [{time_ms, level, event, message}], log_dropped, metrics_enabled, requests,
+  /// idempotency, http, stripe_clients}; the log holds the last 256 entries (Android only).
+  static Future<Map<String, dynamic>> dumpDiagnostics() async {
+    final Map<dynamic, dynamic> diagnostics = await _methodChannel.invokeMethod('dumpDiagnostics');
+    return diagnostics.cast<String, dynamic>();
+  }
+
+  /// Per method: calls handled off the platform thread and the milliseconds they kept off it (Android only).
+  static Future<Map<String, dynamic>> getMainThreadSavings() async {
+    final Map<dynamic, dynamic> savings = await _methodChannel.invokeMethod('getMainThreadSavings');
+    return savings.cast<String, dynamic>();
   }
 
   static Future<bool> isApplePayAvailable() async {
-    return await _channel.invokeMethod('isApplePayAvailable');
+    return await _methodChannel.invokeMethod('isApplePayAvailable');
   }
 
-  static Future<Map?> cardFromGooglePay({bool? requireBillingAddress, double? amount}) async {
-    Map<dynamic, dynamic>? map = await _channel.invokeMethod('cardFromGooglePay', {
+  /// [flowId] identifies this call on [flowEvents]; one is generated natively when omitted.
+  /// [fields] limits the result as for [createSourceFromCard], e.g. `["token", "card.brand", "card.last4"]`.
+  static Future<Map?> cardFromGooglePay(
+      {bool? requireBillingAddress, double? amount, String? flowId, List<String>? fields}) async {
+    final result = await _methodChannel.invokeMethod('cardFromGooglePay', {
       "amount": amount,
       "billing_address_required": requireBillingAddress,
+      "binary": useBinaryCodec,
+      "request_id": flowId,
+      "fields": fields,
     });
-    if (map == null) {
+    if (result == null) {
       return null;
     }
+    if (result is Uint8List) {
+      return StripeBinaryCodec.decodeGooglePayResult(result);
+    }
+    Map<dynamic, dynamic> map = result;
     var cardMap = map["card"];
-    map["card"] = StripeCard.fromJson(cardMap);
+    if (cardMap != null) {
+      map["card"] = StripeCard.fromJson(cardMap);
+    }
     return map;
   }
 
+  /// Like [cardFromGooglePay], but returns the Stripe token JSON exactly as Google Pay produced it,
+  /// for apps that only forward it to their server; no billing address is returned (Android only).
+  static Future<GooglePayRawToken?> cardFromGooglePayRaw({bool? requireBillingAddress, double? amount, String? flowId}) async {
+    final Uint8List? bytes = await _methodChannel.invokeMethod('cardFromGooglePay', {
+      "amount": amount,
+      "billing_address_required": requireBillingAddress,
+      "raw": true,
+      "request_id": flowId,
+    });
+    return bytes == null ? null : new GooglePayRawToken(bytes);
+  }
+
   static Future<Map?> cardFromApplePay([num? amount]) async {
-    Map<dynamic, dynamic>? map = await _channel.invokeMethod('cardFromApplePay', {"amount": amount});
+    Map<dynamic, dynamic>? map = await _methodChannel.invokeMethod('cardFromApplePay', {"amount": amount});
     if (map == null) {
       return null;
     }
@@ -65,21 +345,145 @@ class StripeFlutterPlugin {
     return map;
   }
 
-  static Future<Source?> createSourceFromAliPay({String? currency, String? name, String? email, String? returnUrl}) async {
-    Map<dynamic, dynamic>? sourceMap =
-        await _channel.invokeMethod('createSourceFromAliPay', {"currency": currency, "name": name, "email": email, "return_url": returnUrl});
-    if (sourceMap == null) {
+  /// [queueIfOffline] works as for [createSourceFromCard].
+  static Future<Source?> createSourceFromAliPay(
+      {String? currency,
+      String? name,
+      String? email,
+      String? returnUrl,
+      String? requestId,
+      String? idempotencyKey,
+      bool queueIfOffline = false,
+      String? stripeAccount,
+      List<String>? fields}) async {
+    final sourceResult = await _methodChannel.invokeMethod('createSourceFromAliPay', {
+      "currency": currency,
+      "name": name,
+      "email": email,
+      "return_url": returnUrl,
+      "binary": useBinaryCodec,
+      "request_id": requestId,
+      "idempotency_key": idempotencyKey,
+      "queue_if_offline": queueIfOffline,
+      "stripe_account": stripeAccount,
+      "fields": fields,
+    });
+    if (sourceResult == null) {
       return null;
     }
-    Source source = Source.fromJson(sourceMap);
-    return source;
+    return _sourceFromResult(sourceResult);
   }
 
   static Future<void> dismissPaymentAuth(bool success) async {
-    await _channel.invokeMethod('dismissPaymentAuth', {"success": success});
+    await _methodChannel.invokeMethod('dismissPaymentAuth', {"success": success});
   }
 }
 
+class SourceBatchItem {
+  final Source? source;
+  final String? errorCode;
+  final String? errorMessage;
+
+  SourceBatchItem._({this.source, this.errorCode, this.errorMessage});
+
+  bool get isSuccess => source != null;
+}
+
+/// Stripe token JSON from Google Pay, as UTF-8 [bytes]. The few fields a UI shows are decoded on
+/// first access only.
+class GooglePayRawToken {
+  final Uint8List bytes;
+  Map<String, dynamic>? _decoded;
+
+  GooglePayRawToken(this.bytes);
+
+  Map<String, dynamic> get _json => _decoded ??= json.decode(utf8.decode(bytes));
+
+  Map<String, dynamic> get _card => _json["card"] ?? const <String, dynamic>{};
+
+  String? get id => _json["id"];
+
+  String? get brand => _card["brand"];
+
+  String? get last4 => _card["last4"];
+
+  /// The token JSON as a string, e.g. to post it to a server.
+  String get tokenJson => utf8.decode(bytes);
+}
+
+enum CustomerSourceOperationType { add, delete, setDefault }
+
+class CustomerSourceOperation {
+  final CustomerSourceOperationType type;
+  final String sourceId;
+
+  const CustomerSourceOperation.add(this.sourceId) : type = CustomerSourceOperationType.add;
+
+  const CustomerSourceOperation.delete(this.sourceId) : type = CustomerSourceOperationType.delete;
+
+  const CustomerSourceOperation.setDefault(this.sourceId) : type = CustomerSourceOperationType.setDefault;
+}
+
+class CustomerSourceOperationResult {
+  final CustomerSourceOperation operation;
+
+  /// The attached source, for add operations.
+  final Source? source;
+  final Object? error;
+
+  CustomerSourceOperationResult._(this.operation, {this.source, this.error});
+
+  bool get isSuccess => error == null;
+}
+
+class CustomerSourceBatchResult {
+  /// The customer after all operations, or null if it could not be retrieved.
+  final Customer? customer;
+
+  /// Why [customer] is null: the error of retrieving it.
+  final Object? customerError;
+
+  /// One result per operation, in the order they were given.
+  final List<CustomerSourceOperationResult> results;
+
+  CustomerSourceBatchResult._(this.customer, this.results, {this.customerError});
+}
+
+class PaymentFlowEvent {
+  static const String STARTED = "started";
+  static const String SHEET_REQUESTED = "sheet_requested";
+  static const String TOKEN_RECEIVED = "token_received";
+  static const String BILLING_PARSED = "billing_parsed";
+  static const String REQUEST_SENT = "request_sent";
+  static const String SOURCE_CREATED = "source_created";
+  static const String COMPLETED = "completed";
+  static const String CANCELLED = "cancelled";
+  static const String FAILED = "failed";
+
+  /// The method that started the flow, e.g. `cardFromGooglePay`.
+  final String flow;
+  final String flowId;
+  final String stage;
+  final DateTime timestamp;
+
+  /// Monotonic device uptime, for measuring the time between two stages.
+  final int uptimeMicros;
+  final Map<dynamic, dynamic> data;
+
+  PaymentFlowEvent._fromMap(Map<dynamic, dynamic> map)
+      : flow = map["flow"],
+        flowId = map["flow_id"],
+        stage = map["stage"],
+        timestamp = new DateTime.fromMillisecondsSinceEpoch(map["timestamp_ms"]),
+        uptimeMicros = map["uptime_us"],
+        data = map["data"] ?? {};
+
+  bool get isFinal => stage == COMPLETED || stage == CANCELLED || stage == FAILED;
+
+  @override
+  String toString() => "PaymentFlowEvent($flow, $flowId, $stage, $data)";
+}
+
 class Stripe {
   static Stripe? _instance;
 
@@ -90,11 +494,11 @@ class Stripe {
 
   Stripe._internal(this.publishableKey);
 
-  static void init(String publishableKey, {String? appleMerchantIdentifier}) async {
+  static void init(String publishableKey, {String? appleMerchantIdentifier, Duration? googlePayReadinessTtl}) async {
     if (_instance == null) {
       _validateKey(publishableKey);
       _instance = new Stripe._internal(publishableKey);
-      await _instance!.initStripe(appleMerchantIdentifier: appleMerchantIdentifier);
+      await _instance!.initStripe(appleMerchantIdentifier: appleMerchantIdentifier, googlePayReadinessTtl: googlePayReadinessTtl);
     }
   }
 
@@ -105,8 +509,16 @@ class Stripe {
     return _instance!;
   }
 
-  Future<Source> createCardSource(StripeCard card) async {
-    return await StripeFlutterPlugin.createSourceFromCard(card);
+  /// Created for [stripeAccount] when it is set.
+  Future<Source> createCardSource(StripeCard card, {String? requestId, String? idempotencyKey}) async {
+    return await StripeFlutterPlugin.createSourceFromCard(card,
+        requestId: requestId, idempotencyKey: idempotencyKey, stripeAccount: stripeAccount);
+  }
+
+  Future<Map<String, dynamic>> confirmPaymentIntentWithCard(StripeCard card, String clientSecret,
+      {String? returnUrl, String? requestId, String? idempotencyKey}) async {
+    return await StripeFlutterPlugin.confirmPaymentIntentWithCard(card, clientSecret,
+        returnUrl: returnUrl, requestId: requestId, idempotencyKey: idempotencyKey, stripeAccount: stripeAccount);
   }
 
   Future<Token?> createCardToken(StripeCard card) async {
@@ -123,16 +535,30 @@ class Stripe {
     return await StripeFlutterPlugin.isApplePayAvailable();
   }
 
-  Future<Map?> cardFromGooglePay({bool? requireBillingAddress, double? amount}) async {
-    return await StripeFlutterPlugin.cardFromGooglePay(requireBillingAddress: requireBillingAddress, amount: amount);
+  Future<Map?> cardFromGooglePay(
+      {bool? requireBillingAddress, double? amount, String? flowId, List<String>? fields}) async {
+    return await StripeFlutterPlugin.cardFromGooglePay(
+        requireBillingAddress: requireBillingAddress, amount: amount, flowId: flowId, fields: fields);
+  }
+
+  Future<GooglePayRawToken?> cardFromGooglePayRaw({bool? requireBillingAddress, double? amount, String? flowId}) async {
+    return await StripeFlutterPlugin.cardFromGooglePayRaw(
+        requireBillingAddress: requireBillingAddress, amount: amount, flowId: flowId);
   }
 
   Future<Map?> cardFromApplePay([num? amount]) async {
     return await StripeFlutterPlugin.cardFromApplePay(amount);
   }
 
-  Future<Source?> createSourceFromAliPay({String? currency, String? name, String? email, String? returnUrl}) async {
-    return await StripeFlutterPlugin.createSourceFromAliPay(currency: currency, name: name, email: email, returnUrl: returnUrl);
+  /// Created for [stripeAccount] when it is set.
+  Future<Source?> createSourceFromAliPay({String? currency, String? name, String? email, String? returnUrl, String? requestId}) async {
+    return await StripeFlutterPlugin.createSourceFromAliPay(
+        currency: currency,
+        name: name,
+        email: email,
+        returnUrl: returnUrl,
+        requestId: requestId,
+        stripeAccount: stripeAccount);
   }
 
   Future<void> dismissPaymentAuth(bool success) async {
@@ -158,8 +584,9 @@ class Stripe {
     }
   }
 
-  Future initStripe({String? appleMerchantIdentifier}) async {
-    StripeFlutterPlugin.init(this.publishableKey, appleMerchantIdentifier: appleMerchantIdentifier);
+  Future initStripe({String? appleMerchantIdentifier, Duration? googlePayReadinessTtl}) async {
+    StripeFlutterPlugin.init(this.publishableKey,
+        appleMerchantIdentifier: appleMerchantIdentifier, googlePayReadinessTtl: googlePayReadinessTtl);
   }
 }
 
@@ -172,16 +599,22 @@ class CustomerSession {
 
   final EphemeralKeyManager _keyManager;
 
-  ///
-  CustomerSession._internal(this._keyManager);
+  final CustomerCache _customerCache;
 
   ///
+  CustomerSession._internal(this._keyManager, this._customerCache);
+
   ///
+  /// [customerCacheTtl] is how long retrieveCurrentCustomer serves the customer from memory;
+  /// source and default source changes made through this session keep the cached copy current.
+  /// With [proactiveKeyRefresh] the ephemeral key is renewed in the background before it expires.
   ///
-  static void initCustomerSession(EphemeralKeyProvider provider) {
+  static void initCustomerSession(EphemeralKeyProvider provider,
+      {Duration customerCacheTtl = const Duration(minutes: 1), bool proactiveKeyRefresh = true}) {
     if (_instance == null) {
-      final manager = new EphemeralKeyManager(provider, KEY_REFRESH_BUFFER_IN_SECONDS);
-      _instance = new CustomerSession._internal(manager);
+      final manager = new EphemeralKeyManager(provider, KEY_REFRESH_BUFFER_IN_SECONDS,
+          proactiveRefresh: proactiveKeyRefresh);
+      _instance = new CustomerSession._internal(manager, new CustomerCache(customerCacheTtl));
     }
   }
 
@@ -189,6 +622,7 @@ class CustomerSession {
   ///
   ///
   static void endCustomerSession() {
+    _instance?._keyManager.dispose();
     _instance = null;
   }
 
@@ -205,10 +639,157 @@ class CustomerSession {
   ///
   ///
   ///
-  Future<Customer> retrieveCurrentCustomer() async {
+  /// Served from the session's customer cache while fresh, unless [forceRefresh] is set;
+  /// concurrent calls share one request.
+  ///
+  Future<Customer> retrieveCurrentCustomer({bool forceRefresh = false}) async {
     final key = await (_keyManager.retrieveEphemeralKey() as FutureOr<EphemeralKey>);
-    final customer = await _apiHandler.retrieveCustomer(key.customerId, key.secret);
-    return customer;
+    return _customerCache.read(key.customerId, () => _apiHandler.retrieveCustomer(key.customerId, key.secret),
+        forceRefresh: forceRefresh);
+  }
+
+  ///
+  /// Drops the cached customer, e.g. after it was changed on the server.
+  ///
+  void invalidateCustomer() {
+    _customerCache.invalidate();
+  }
+
+  ///
+  /// {hits, coalesced, misses, version, cached} of the customer cache.
+  ///
+  Map<String, dynamic> getCustomerCacheStats() {
+    return _customerCache.getStats();
+  }
+
+  ///
+  /// Refresh counts and latency of the ephemeral key, see [EphemeralKeyManager.getStats].
+  ///
+  Map<String, dynamic> getEphemeralKeyStats() {
+    return _keyManager.getStats();
+  }
+
+  ///
+  /// Applies [operations] with at most [parallelism] requests in flight and returns the customer
+  /// once, at the end, instead of after every change. A [parallelism] below 1 runs them one at a time.
+  ///
+  /// Operations on the same source run one after the other in the given order; a failure skips the
+  /// later ones for that source. Operations on different sources run concurrently. Only the last
+  /// setDefault is sent, in its place among the operations on its source and after every operation
+  /// on the other sources. Unless a later operation on its source changed the customer again, its
+  /// response is the returned customer; otherwise the customer is fetched once.
+  ///
+  Future<CustomerSourceBatchResult> applySourceOperations(List<CustomerSourceOperation> operations,
+      {int parallelism = 4}) async {
+    final key = await (_keyManager.retrieveEphemeralKey() as FutureOr<EphemeralKey>);
+    final results = new List<CustomerSourceOperationResult?>.filled(operations.length, null);
+
+    int? lastDefault;
+    for (int i = 0; i < operations.length; i++) {
+      if (operations[i].type == CustomerSourceOperationType.setDefault) {
+        lastDefault = i;
+      }
+    }
+    final groups = <String, List<int>>{};
+    for (int i = 0; i < operations.length; i++) {
+      // the earlier setDefaults are superseded by the last one
+      if (operations[i].type != CustomerSourceOperationType.setDefault || i == lastDefault) {
+        groups.putIfAbsent(operations[i].sourceId, () => <int>[]).add(i);
+      }
+    }
+
+    // The group with the setDefault is started last, so by the time it waits for the others
+    // they have all been picked up by a worker.
+    final defaultGroup = lastDefault != null ? groups.remove(operations[lastDefault].sourceId) : null;
+    final otherGroupsDone = new Completer<void>();
+    int otherGroupsLeft = groups.length;
+    if (otherGroupsLeft == 0) {
+      otherGroupsDone.complete();
+    }
+    final queue = groups.values.toList();
+    if (defaultGroup != null) {
+      queue.add(defaultGroup);
+    }
+
+    Customer? customer;
+    // false once an operation after the setDefault changed the customer again
+    bool customerIsFinal = false;
+    final pending = queue.iterator;
+    Future<void> worker() async {
+      while (pending.moveNext()) {
+        final group = pending.current;
+        Object? groupError;
+        for (final index in group) {
+          final operation = operations[index];
+          if (groupError != null) {
+            results[index] = new CustomerSourceOperationResult._(operation, error: groupError);
+            continue;
+          }
+          try {
+            if (index == lastDefault) {
+              await otherGroupsDone.future;
+              customer = await _apiHandler.updateCustomerDefaultSource(key.customerId, operation.sourceId, key.secret);
+              _customerCache.put(key.customerId, customer!);
+              customerIsFinal = true;
+              results[index] = new CustomerSourceOperationResult._(operation);
+            } else {
+              results[index] = await _applySourceOperation(key, operation);
+              customerIsFinal = false;
+            }
+          } catch (error) {
+            groupError = error;
+            results[index] = new CustomerSourceOperationResult._(operation, error: error);
+          }
+        }
+        if (!identical(group, defaultGroup) && --otherGroupsLeft == 0) {
+          otherGroupsDone.complete();
+        }
+      }
+    }
+
+    final workers = <Future<void>>[];
+    for (int i = 0; i < max(1, parallelism) && i < queue.length; i++) {
+      workers.add(worker());
+    }
+    await Future.wait(workers);
+
+    Object? customerError;
+    if (!customerIsFinal) {
+      try {
+        customer = await _customerCache.read(
+            key.customerId, () => _apiHandler.retrieveCustomer(key.customerId, key.secret),
+            forceRefresh: true);
+      } catch (error) {
+        customer = null;
+        customerError = error;
+      }
+    }
+
+    // only superseded setDefaults are left without a result; they share the last one's outcome
+    final supersededError = lastDefault != null ? results[lastDefault]?.error : null;
+    for (int i = 0; i < operations.length; i++) {
+      results[i] ??= new CustomerSourceOperationResult._(operations[i], error: supersededError);
+    }
+    return new CustomerSourceBatchResult._(customer, results.cast<CustomerSourceOperationResult>(),
+        customerError: customerError);
+  }
+
+  Future<CustomerSourceOperationResult> _applySourceOperation(EphemeralKey key, CustomerSourceOperation operation) async {
+    switch (operation.type) {
+      case CustomerSourceOperationType.add:
+        final source = await _apiHandler.addCustomerSource(key.customerId, operation.sourceId, key.secret);
+        _customerCache.sourceAdded(key.customerId, source);
+        return new CustomerSourceOperationResult._(operation, source: source);
+      case CustomerSourceOperationType.delete:
+        final deleted = await _apiHandler.deleteCustomerSource(key.customerId, operation.sourceId, key.secret);
+        if (deleted != true) {
+          throw new Exception("Source ${operation.sourceId} was not deleted");
+        }
+        _customerCache.sourceDeleted(key.customerId, operation.sourceId);
+        return new CustomerSourceOperationResult._(operation);
+      default:
+        throw new UnsupportedError("setDefault is applied by applySourceOperations");
+    }
   }
 
   ///
@@ -217,6 +798,7 @@ class CustomerSession {
   Future<Source> addCustomerSource(String sourceId) async {
     final key = await (_keyManager.retrieveEphemeralKey() as FutureOr<EphemeralKey>);
     final source = await _apiHandler.addCustomerSource(key.customerId, sourceId, key.secret);
+    _customerCache.sourceAdded(key.customerId, source);
     return source;
   }
 
@@ -226,6 +808,11 @@ class CustomerSession {
   Future<bool?> deleteCustomerSource(String sourceId) async {
     final key = await (_keyManager.retrieveEphemeralKey() as FutureOr<EphemeralKey>);
     final deleted = await _apiHandler.deleteCustomerSource(key.customerId, sourceId, key.secret);
+    if (deleted == true) {
+      _customerCache.sourceDeleted(key.customerId, sourceId);
+    } else {
+      _customerCache.invalidate();
+    }
     return deleted;
   }
 
@@ -235,6 +822,7 @@ class CustomerSession {
   Future<Customer> updateCustomerDefaultSource(String sourceId) async {
     final key = await (_keyManager.retrieveEphemeralKey() as FutureOr<EphemeralKey>);
     final customer = await _apiHandler.updateCustomerDefaultSource(key.customerId, sourceId, key.secret);
+    _customerCache.put(key.customerId, customer);
     return customer;
   }
 
@@ -244,6 +832,7 @@ class CustomerSession {
   Future<Customer> updateCustomerShippingInformation(ShippingInformation shippingInfo) async {
     final key = await (_keyManager.retrieveEphemeralKey() as FutureOr<EphemeralKey>);
     final customer = await _apiHandler.updateCustomerShippingInformation(key.customerId, shippingInfo, key.secret);
+    _customerCache.put(key.customerId, customer);
     return customer;
   }
 }
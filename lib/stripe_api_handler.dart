@@ -2,13 +2,15 @@ import 'dart:async';
 import 'dart:convert' show json;
 
 import 'package:flutter/foundation.dart';
-import 'package:http/http.dart' as http;
 
 import 'model/customer.dart';
 import 'model/shipping_information.dart';
 import 'model/source.dart';
 import 'model/token.dart';
 import 'stripe_error.dart';
+import 'stripe_http_transport.dart';
+
+export 'stripe_http_transport.dart';
 
 const String API_VERSION = "2018-05-21";
 
@@ -36,7 +38,21 @@ class StripeApiHandler {
 
   static final StripeApiHandler _singleton = StripeApiHandler._internal();
 
-  final http.Client _client = new http.Client();
+  StripeHttpTransport _transport = new HttpClientTransport();
+
+  /// Base of every request URL; point it at a local stand-in, e.g. tool/mock_stripe_server.dart.
+  String apiPath = LIVE_API_PATH;
+
+  StripeHttpTransport get transport => _transport;
+
+  /// Replaces the transport for all following requests and closes the previous one.
+  set transport(StripeHttpTransport transport) {
+    final previous = _transport;
+    _transport = transport;
+    if (!identical(previous, transport)) {
+      previous.close();
+    }
+  }
 
   factory StripeApiHandler() {
     return _singleton;
@@ -49,10 +65,10 @@ class StripeApiHandler {
   ///
   Future<Token?> createToken(
       Map<String, dynamic> params, String publishableKey) async {
-    final url = "$LIVE_API_PATH/tokens";
+    final url = "$apiPath/tokens";
     final options = new RequestOptions(publishableApiKey: publishableKey);
-    final response = await (_getStripeResponse(RequestMethod.post, url, options,
-        params: params) as FutureOr<Map<String, dynamic>>);
+    final response = await _getStripeResponse(RequestMethod.post, url, options,
+        params: params);
     final token = Token.fromJson(response);
     return token;
   }
@@ -61,9 +77,9 @@ class StripeApiHandler {
   ///
   ///
   Future<Customer> retrieveCustomer(String? customerId, String? secret) async {
-    final String url = "$LIVE_API_PATH/customers/$customerId";
+    final String url = "$apiPath/customers/$customerId";
     final options = new RequestOptions(publishableApiKey: secret);
-    final response = await (_getStripeResponse(RequestMethod.get, url, options) as FutureOr<Map<String, dynamic>>);
+    final response = await _getStripeResponse(RequestMethod.get, url, options);
     final customer = Customer.fromJson(response);
     return customer;
   }
@@ -73,14 +89,14 @@ class StripeApiHandler {
   ///
   Future<Source> addCustomerSource(
       String? customerId, String sourceId, String? secret) async {
-    final String url = "$LIVE_API_PATH/customers/$customerId/sources";
+    final String url = "$apiPath/customers/$customerId/sources";
     final options = new RequestOptions(publishableApiKey: secret);
-    final response = await (_getStripeResponse(
+    final response = await _getStripeResponse(
       RequestMethod.post,
       url,
       options,
       params: {FIELD_SOURCE: sourceId},
-    ) as FutureOr<Map<String, dynamic>>);
+    );
     final source = Source.fromJson(response);
     return source;
   }
@@ -90,13 +106,13 @@ class StripeApiHandler {
   ///
   Future<bool?> deleteCustomerSource(
       String? customerId, String sourceId, String? secret) async {
-    final String url = "$LIVE_API_PATH/customers/$customerId/sources/$sourceId";
+    final String url = "$apiPath/customers/$customerId/sources/$sourceId";
     final options = new RequestOptions(publishableApiKey: secret);
-    final response = await (_getStripeResponse(
+    final response = await _getStripeResponse(
       RequestMethod.delete,
       url,
       options,
-    ) as FutureOr<Map<String, dynamic>>);
+    );
     final bool? deleted = response["deleted"];
     return deleted;
   }
@@ -106,14 +122,14 @@ class StripeApiHandler {
   ///
   Future<Customer> updateCustomerDefaultSource(
       String? customerId, String sourceId, String? secret) async {
-    final String url = "$LIVE_API_PATH/customers/$customerId";
+    final String url = "$apiPath/customers/$customerId";
     final options = new RequestOptions(publishableApiKey: secret);
-    final response = await (_getStripeResponse(
+    final response = await _getStripeResponse(
       RequestMethod.post,
       url,
       options,
       params: {"default_source": sourceId},
-    ) as FutureOr<Map<String, dynamic>>);
+    );
     final customer = Customer.fromJson(response);
     return customer;
   }
@@ -123,14 +139,14 @@ class StripeApiHandler {
   ///
   Future<Customer> updateCustomerShippingInformation(String? customerId,
       ShippingInformation shippingInfo, String? secret) async {
-    final String url = "$LIVE_API_PATH/customers/$customerId";
+    final String url = "$apiPath/customers/$customerId";
     final options = new RequestOptions(publishableApiKey: secret);
-    final response = await (_getStripeResponse(
+    final response = await _getStripeResponse(
       RequestMethod.post,
       url,
       options,
       params: {"shipping": shippingInfo.toMap()},
-    ) as FutureOr<Map<String, dynamic>>);
+    );
     final customer = Customer.fromJson(response);
     return customer;
   }
@@ -138,12 +154,12 @@ class StripeApiHandler {
   ///
   ///
   ///
-  Future<Map<String, dynamic>?> _getStripeResponse(
+  Future<Map<String, dynamic>> _getStripeResponse(
       RequestMethod method, final String url, final RequestOptions options,
       {final Map<String, dynamic>? params}) async {
     final headers = _headers(options: options);
 
-    http.Response response;
+    StripeHttpResponse response;
 
     switch (method) {
       case RequestMethod.get:
@@ -151,30 +167,32 @@ class StripeApiHandler {
         if (params != null && params.length > 0) {
           fUrl = "$url?${_encodeMap(params)}";
         }
-        response = await _client.get(Uri.parse(fUrl), headers: headers as Map<String, String>?);
+        response = await _transport.send("GET", Uri.parse(fUrl), headers, null);
         break;
 
       case RequestMethod.post:
-        response = await _client.post(
+        response = await _transport.send(
+          "POST",
           Uri.parse(url),
-          headers: headers as Map<String, String>?,
-          body: params != null ? _urlEncodeMap(params) : null,
+          headers,
+          params != null ? _urlEncodeMap(params) : null,
         );
         break;
 
       case RequestMethod.delete:
-        response = await _client.delete(Uri.parse(url), headers: headers as Map<String, String>?);
+        response = await _transport.send("DELETE", Uri.parse(url), headers, null);
         break;
       default:
         throw new Exception("Request Method: $method not implemented");
     }
 
-    final requestId = response.headers[HEADER_KEY_REQUEST_ID];
+    // both transports report header names in lower case
+    final requestId = response.headers[HEADER_KEY_REQUEST_ID.toLowerCase()];
 
     final statusCode = response.statusCode;
-    Map<String, dynamic>? resp;
+    Map<String, dynamic> resp;
     try {
-      resp = json.decode(response.body);
+      resp = json.decode(response.body) as Map<String, dynamic>;
     } catch (error) {
       final stripeError = StripeAPIError(requestId,
           {StripeAPIError.FIELD_MESSAGE: MALFORMED_RESPONSE_MESSAGE});
@@ -182,7 +200,7 @@ class StripeApiHandler {
     }
 
     if (statusCode < 200 || statusCode >= 300) {
-      final Map<String, dynamic> errBody = resp![FIELD_ERROR];
+      final Map<String, dynamic> errBody = resp[FIELD_ERROR];
       final stripeError = StripeAPIError(requestId, errBody);
       throw new StripeAPIException(stripeError);
     } else {
@@ -193,8 +211,8 @@ class StripeApiHandler {
   ///
   ///
   ///
-  static Map<String, String?> _headers({RequestOptions? options}) {
-    final Map<String, String?> headers = new Map();
+  static Map<String, String> _headers({RequestOptions? options}) {
+    final Map<String, String> headers = new Map();
     headers["Accept-Charset"] = CHARSET;
     headers["Accept"] = "application/json";
     headers["Content-Type"] = "application/x-www-form-urlencoded";
@@ -216,15 +234,15 @@ class StripeApiHandler {
 
     if (options != null) {
       if (options.apiVersion != null) {
-        headers["Stripe-Version"] = options.apiVersion;
+        headers["Stripe-Version"] = options.apiVersion!;
       }
 
       if (options.stripeAccount != null) {
-        headers["Stripe-Account"] = options.stripeAccount;
+        headers["Stripe-Account"] = options.stripeAccount!;
       }
 
       if (options.idempotencyKey != null) {
-        headers["Idempotency-Key"] = options.idempotencyKey;
+        headers["Idempotency-Key"] = options.idempotencyKey!;
       }
     }
 
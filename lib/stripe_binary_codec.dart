@@ -0,0 +1,239 @@
+import 'dart:convert' show utf8;
+import 'dart:typed_data';
+
+import 'card_utils.dart';
+import 'model/address.dart';
+import 'model/card.dart';
+import 'model/source.dart';
+import 'model/source_card_data.dart';
+import 'model/source_code_verification.dart';
+import 'model/source_owner.dart';
+import 'model/source_receiver.dart';
+import 'model/source_redirect.dart';
+
+///
+/// Decoder for the compact binary results written by StripeMapUtil.BinaryUtil on Android.
+/// A message is a format version, a kind and one object; objects are (field id, tagged value)
+/// pairs terminated by field id 0. Field ids mirror the JSON keys of the map encoding.
+///
+class StripeBinaryCodec {
+  static const int FORMAT_VERSION = 1;
+
+  static const int KIND_SOURCE = 1;
+  static const int KIND_CARD = 2;
+  static const int KIND_GOOGLE_PAY_RESULT = 3;
+
+  static const int _TYPE_TRUE = 1;
+  static const int _TYPE_FALSE = 2;
+  static const int _TYPE_INT = 3;
+  static const int _TYPE_DOUBLE = 4;
+  static const int _TYPE_STRING = 5;
+  static const int _TYPE_OBJECT = 6;
+  static const int _TYPE_MAP = 7;
+  static const int _TYPE_LIST = 8;
+
+  static Source decodeSource(Uint8List bytes) {
+    return _sourceFromFields(new _Reader(bytes).readMessage(KIND_SOURCE));
+  }
+
+  static StripeCard decodeCard(Uint8List bytes) {
+    return _cardFromFields(new _Reader(bytes).readMessage(KIND_CARD));
+  }
+
+  /// Decodes a Google Pay result into the same shape cardFromGooglePay returns for maps:
+  /// {token: tokenId, card: StripeCard, billing_address: Map}.
+  static Map<dynamic, dynamic> decodeGooglePayResult(Uint8List bytes) {
+    final fields = new _Reader(bytes).readMessage(KIND_GOOGLE_PAY_RESULT);
+    final Map<dynamic, dynamic> result = new Map();
+    result["token"] = fields[1];
+    if (fields[2] != null) {
+      result["card"] = _cardFromFields(fields[2]);
+    }
+    if (fields[3] != null) {
+      result["billing_address"] = _addressFromFields(fields[3]).toMap()..removeWhere((key, value) => value == null);
+    }
+    return result;
+  }
+
+  static Source _sourceFromFields(Map<int, dynamic> f) {
+    String? typeRaw = _string(f[13]) ?? Source.UNKNOWN;
+    final Map<dynamic, dynamic>? sourceTypeData = f[15];
+    return new Source(
+      id: _string(f[1]),
+      amount: f[2] ?? 0,
+      clientSecret: _string(f[3]),
+      codeVerification: f[4] != null
+          ? new SourceCodeVerification(f[4][1] ?? SourceCodeVerification.INVALID_ATTEMPTS_REMAINING, _string(f[4][2]))
+          : null,
+      created: f[5] ?? 0,
+      currency: _string(f[6]),
+      flow: Source.asSourceFlow(_string(f[7])),
+      liveMode: f[8] ?? false,
+      metaData: new Map(),
+      owner: f[9] != null ? _ownerFromFields(f[9]) : null,
+      receiver: f[10] != null
+          ? new SourceReceiver(
+              address: f[10][1],
+              amountCharged: f[10][2],
+              amountReceived: f[10][3],
+              amountReturned: f[10][4],
+            )
+          : null,
+      redirect: f[11] != null ? new SourceRedirect(returnUrl: f[11][1], status: f[11][2], url: f[11][3]) : null,
+      status: Source.asSourceStatus(_string(f[12])),
+      typeRaw: typeRaw,
+      type: Source.asSourceType(typeRaw) ?? Source.UNKNOWN,
+      sourceTypeData: sourceTypeData,
+      sourceTypeModel: typeRaw == Source.CARD && sourceTypeData != null ? SourceCardData.fromJson(sourceTypeData) : null,
+      usage: Source.asUsage(_string(f[14])),
+    );
+  }
+
+  static SourceOwner _ownerFromFields(Map<int, dynamic> f) {
+    return new SourceOwner(
+      address: f[1] != null ? _addressFromFields(f[1]) : null,
+      email: _string(f[2]),
+      name: _string(f[3]),
+      phone: _string(f[4]),
+      verifiedAddress: f[5] != null ? _addressFromFields(f[5]) : null,
+      verifiedEmail: _string(f[6]),
+      verifiedName: _string(f[7]),
+      verifiedPhone: _string(f[8]),
+    );
+  }
+
+  static Address _addressFromFields(Map<int, dynamic> f) {
+    return new Address(
+      city: f[1],
+      country: f[2],
+      line1: f[3],
+      line2: f[4],
+      postalCode: f[5],
+      state: f[6],
+    );
+  }
+
+  static StripeCard _cardFromFields(Map<int, dynamic> f) {
+    final String? country = _string(f[12]);
+    final String? currency = _string(f[11]);
+    return new StripeCard(
+      number: null,
+      cvc: null,
+      expMonth: f[15] ?? 0,
+      expYear: f[16] ?? 0,
+      name: _string(f[1]),
+      addressCity: _string(f[2]),
+      addressCountry: _string(f[3]),
+      addressLine1: _string(f[4]),
+      addressLine1Check: _string(f[5]),
+      addressLine2: _string(f[6]),
+      addressState: _string(f[7]),
+      addressZip: _string(f[8]),
+      addressZipCheck: _string(f[9]),
+      brand: CardUtils.asCardBrand(_string(f[10])),
+      currency: currency != null && currency.length == 3 ? currency : null,
+      country: country != null && country.length == 2 ? country : null,
+      customerId: _string(f[13]),
+      cvcCheck: _string(f[14]),
+      fingerprint: _string(f[17]),
+      funding: CardUtils.asFundingType(_string(f[18])),
+      id: _string(f[19]),
+      last4: _string(f[20]),
+      tokenizationMethod: _string(f[21]),
+    );
+  }
+
+  static String? _string(dynamic value) {
+    if (value == null || value == "" || value == "null") {
+      return null;
+    }
+    return value;
+  }
+}
+
+class _Reader {
+  final Uint8List _bytes;
+  final ByteData _data;
+  int _offset = 0;
+
+  _Reader(this._bytes) : _data = new ByteData.sublistView(_bytes);
+
+  Map<int, dynamic> readMessage(int expectedKind) {
+    final version = _readByte();
+    if (version != StripeBinaryCodec.FORMAT_VERSION) {
+      throw new FormatException("Unsupported Stripe binary format version $version");
+    }
+    final kind = _readByte();
+    if (kind != expectedKind) {
+      throw new FormatException("Expected Stripe binary kind $expectedKind, got $kind");
+    }
+    return _readObject();
+  }
+
+  Map<int, dynamic> _readObject() {
+    final Map<int, dynamic> fields = new Map();
+    int fieldId = _readByte();
+    while (fieldId != 0) {
+      fields[fieldId] = _readValue();
+      fieldId = _readByte();
+    }
+    return fields;
+  }
+
+  dynamic _readValue() {
+    final type = _readByte();
+    switch (type) {
+      case StripeBinaryCodec._TYPE_TRUE:
+        return true;
+      case StripeBinaryCodec._TYPE_FALSE:
+        return false;
+      case StripeBinaryCodec._TYPE_INT:
+        final zigzag = _readVarint();
+        return (zigzag >> 1) ^ -(zigzag & 1);
+      case StripeBinaryCodec._TYPE_DOUBLE:
+        final value = _data.getFloat64(_offset, Endian.little);
+        _offset += 8;
+        return value;
+      case StripeBinaryCodec._TYPE_STRING:
+        return _readString();
+      case StripeBinaryCodec._TYPE_OBJECT:
+        return _readObject();
+      case StripeBinaryCodec._TYPE_MAP:
+        final count = _readVarint();
+        final Map<dynamic, dynamic> map = new Map();
+        for (int i = 0; i < count; i++) {
+          final key = _readString();
+          map[key] = _readValue();
+        }
+        return map;
+      case StripeBinaryCodec._TYPE_LIST:
+        final count = _readVarint();
+        return new List<dynamic>.generate(count, (_) => _readValue());
+      default:
+        throw new FormatException("Unknown Stripe binary value type $type at offset ${_offset - 1}");
+    }
+  }
+
+  String _readString() {
+    final length = _readVarint();
+    final value = utf8.decode(new Uint8List.sublistView(_bytes, _offset, _offset + length));
+    _offset += length;
+    return value;
+  }
+
+  int _readVarint() {
+    int result = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = _readByte();
+      result |= (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return result;
+  }
+
+  int _readByte() {
+    return _bytes[_offset++];
+  }
+}
@@ -0,0 +1,74 @@
+import 'dart:async';
+
+import 'package:flutter/services.dart';
+import 'package:http/http.dart' as http;
+
+class StripeHttpResponse {
+  final int statusCode;
+  final Map<String, String> headers;
+  final String body;
+
+  StripeHttpResponse(this.statusCode, this.headers, this.body);
+}
+
+/// Sends the requests of StripeApiHandler; swap it with `StripeApiHandler().transport = ...`.
+abstract class StripeHttpTransport {
+  /// [method] is upper case, e.g. "GET"; [body] is already form encoded.
+  Future<StripeHttpResponse> send(String method, Uri url, Map<String, String> headers, String? body);
+
+  void close();
+}
+
+/// Dart's own HTTP stack; the default. One client is kept for all requests so its idle
+/// connections are reused.
+class HttpClientTransport implements StripeHttpTransport {
+  final http.Client _client;
+
+  HttpClientTransport([http.Client? client]) : _client = client ?? new http.Client();
+
+  @override
+  Future<StripeHttpResponse> send(String method, Uri url, Map<String, String> headers, String? body) async {
+    final request = new http.Request(method, url);
+    request.headers.addAll(headers);
+    if (body != null) {
+      request.body = body;
+    }
+    final response = await http.Response.fromStream(await _client.send(request));
+    return new StripeHttpResponse(response.statusCode, response.headers, response.body);
+  }
+
+  @override
+  void close() {
+    _client.close();
+  }
+}
+
+/// Sends requests through the platform's HTTP stack, sharing its keep-alive connection pool and
+/// transparent gzip (Android only). Network failures surface as [http.ClientException].
+class NativeHttpTransport implements StripeHttpTransport {
+  static const MethodChannel _channel = const MethodChannel('stripe_api');
+
+  @override
+  Future<StripeHttpResponse> send(String method, Uri url, Map<String, String> headers, String? body) async {
+    final Map<dynamic, dynamic> response;
+    try {
+      response = await _channel.invokeMethod('httpRequest', {
+        "method": method,
+        "url": url.toString(),
+        "headers": headers,
+        "body": body,
+      });
+    } on PlatformException catch (e) {
+      throw new http.ClientException(e.message ?? e.code, url);
+    }
+    final Map<dynamic, dynamic> responseHeaders = response["headers"];
+    return new StripeHttpResponse(
+      response["status"],
+      responseHeaders.map((name, value) => new MapEntry(name.toString().toLowerCase(), value as String)),
+      response["body"],
+    );
+  }
+
+  @override
+  void close() {}
+}
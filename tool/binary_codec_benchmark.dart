@@ -0,0 +1,83 @@
+import 'dart:io';
+import 'dart:typed_data';
+
+import 'package:flutter/services.dart';
+import 'package:flutter_test/flutter_test.dart';
+import 'package:stripe_api/model/card.dart';
+import 'package:stripe_api/model/source.dart';
+import 'package:stripe_api/stripe_binary_codec.dart';
+
+///
+/// Decodes the platform channel messages saved by the Android BinaryEncodingBenchmark, the way
+/// StripeApi does: the map form through StandardMessageCodec and the model's fromJson, the binary
+/// form through StandardMessageCodec and StripeBinaryCodec. Prints bytes and time per decode:
+///
+///   (cd example/android && ./gradlew :stripe_api:testDebugUnitTest --tests '*BinaryEncodingBenchmark')
+///   flutter test tool/binary_codec_benchmark.dart --dart-define=CHANNEL_MESSAGES=<build dir>/reports/benchmarks/channel
+///
+const String messagesDir = String.fromEnvironment("CHANNEL_MESSAGES");
+const int iterations = int.fromEnvironment("DECODE_ITERATIONS", defaultValue: 20000);
+
+const StandardMessageCodec _codec = const StandardMessageCodec();
+
+ByteData _read(String name) {
+  final bytes = new File("$messagesDir/$name").readAsBytesSync();
+  return ByteData.sublistView(bytes);
+}
+
+/// Median microseconds per call over five runs of [iterations] calls, after one warmup run.
+double _measure(Object? Function() decode) {
+  final runs = <double>[];
+  for (int run = 0; run < 6; run++) {
+    final watch = new Stopwatch()..start();
+    for (int i = 0; i < iterations; i++) {
+      decode();
+    }
+    watch.stop();
+    if (run > 0) {
+      runs.add(watch.elapsedMicroseconds / iterations);
+    }
+  }
+  runs.sort();
+  return runs[runs.length ~/ 2];
+}
+
+Map<dynamic, dynamic> _googlePayResultFromMap(Map<dynamic, dynamic> map) {
+  final cardMap = map["card"];
+  if (cardMap != null) {
+    map["card"] = StripeCard.fromJson(cardMap);
+  }
+  return map;
+}
+
+void main() {
+  test("channel message decoding, map vs binary", () {
+    final decoders = <String, List<Object? Function(ByteData)>>{
+      "source": [
+        (message) => Source.fromJson(_codec.decodeMessage(message)),
+        (message) => StripeBinaryCodec.decodeSource(_codec.decodeMessage(message) as Uint8List),
+      ],
+      "card": [
+        (message) => StripeCard.fromJson(_codec.decodeMessage(message)),
+        (message) => StripeBinaryCodec.decodeCard(_codec.decodeMessage(message) as Uint8List),
+      ],
+      "google_pay_result": [
+        (message) => _googlePayResultFromMap(_codec.decodeMessage(message)),
+        (message) => StripeBinaryCodec.decodeGooglePayResult(_codec.decodeMessage(message) as Uint8List),
+      ],
+    };
+
+    print("message                      bytes    us/decode");
+    decoders.forEach((name, decode) {
+      final map = _read("$name.map.bin");
+      final binary = _read("$name.binary.bin");
+      final mapUs = _measure(() => decode[0](map));
+      final binaryUs = _measure(() => decode[1](binary));
+      print("${"$name map".padRight(26)}${map.lengthInBytes.toString().padLeft(8)}${mapUs.toStringAsFixed(2).padLeft(13)}");
+      print("${"$name binary".padRight(26)}${binary.lengthInBytes.toString().padLeft(8)}${binaryUs.toStringAsFixed(2).padLeft(13)}");
+      expect(binary.lengthInBytes, lessThan(map.lengthInBytes));
+    });
+  },
+      timeout: Timeout.none,
+      skip: messagesDir.isEmpty ? "pass --dart-define=CHANNEL_MESSAGES=<dir> with the Android benchmark's messages" : false);
+}
@@ -0,0 +1,249 @@
+import 'dart:math';
+
+import 'package:flutter_test/flutter_test.dart';
+import 'package:http/http.dart' as http;
+import 'package:stripe_api/model/customer.dart';
+import 'package:stripe_api/stripe_api_handler.dart';
+import 'package:stripe_api/stripe_error.dart';
+
+import 'mock_stripe_server.dart';
+
+///
+/// Drives StripeApiHandler against MockStripeServer with LOAD_CONCURRENCY workers until
+/// LOAD_REQUESTS requests are done, then prints throughput, latency percentiles and error rates
+/// per operation. Runs offline:
+///
+///   flutter test tool/load_test.dart --dart-define=LOAD_CONCURRENCY=32 --dart-define=LOAD_REQUESTS=5000
+///
+/// The mock is configured with LOAD_LATENCY_MS, LOAD_JITTER_MS, LOAD_ERROR_RATE, LOAD_DROP_RATE and
+/// LOAD_SEED; set LOAD_API_PATH to use a mock started separately instead of an in-process one.
+///
+/// LOAD_TRANSPORTS lists the transports to run the same load through, "dart" (the default) and
+/// "native", and compares their throughput. The native one needs the plugin on a device, so it runs
+/// from the example app:
+///
+///   cd example && flutter test integration_test/http_transport_test.dart -d <android device>
+///
+const int concurrency = int.fromEnvironment("LOAD_CONCURRENCY", defaultValue: 16);
+const int totalRequests = int.fromEnvironment("LOAD_REQUESTS", defaultValue: 2000);
+const int latencyMs = int.fromEnvironment("LOAD_LATENCY_MS", defaultValue: 50);
+const int jitterMs = int.fromEnvironment("LOAD_JITTER_MS", defaultValue: 50);
+const String errorRate = String.fromEnvironment("LOAD_ERROR_RATE", defaultValue: "0.01");
+const String dropRate = String.fromEnvironment("LOAD_DROP_RATE", defaultValue: "0");
+const int seed = int.fromEnvironment("LOAD_SEED", defaultValue: 1);
+const String apiPath = String.fromEnvironment("LOAD_API_PATH");
+const String transports = String.fromEnvironment("LOAD_TRANSPORTS", defaultValue: "dart");
+
+const String publishableKey = "pk_test_load";
+const String ephemeralSecret = "ek_test_load";
+
+class _OperationStats {
+  final List<int> latenciesUs = [];
+  final Map<String, int> errors = {};
+
+  void record(Duration latency, [String? error]) {
+    latenciesUs.add(latency.inMicroseconds);
+    if (error != null) {
+      errors[error] = (errors[error] ?? 0) + 1;
+    }
+  }
+
+  int get errorCount => errors.values.fold(0, (sum, count) => sum + count);
+
+  double percentileMs(List<int> sorted, double percentile) {
+    final index = ((sorted.length - 1) * percentile).round();
+    return sorted[index] / 1000;
+  }
+}
+
+/// One simulated customer: keeps its sources so deletes and default updates hit existing ones.
+class _Worker {
+  final String customerId;
+  final Random random;
+  final List<String> sourceIds = [];
+
+  _Worker(int index)
+      : customerId = "cus_load_$index",
+        random = new Random(seed + index);
+}
+
+Future<void> _runOperation(StripeApiHandler handler, _Worker worker, String operation) async {
+  switch (operation) {
+    case "createToken":
+      final card = {
+        "number": worker.random.nextInt(20) == 0 ? MockStripeServer.DECLINED_CARD_NUMBER : "4242424242424242",
+        "exp_month": 12,
+        "exp_year": 2034,
+        "cvc": "123",
+      };
+      await handler.createToken({"card": card}, publishableKey);
+      break;
+    case "retrieveCustomer":
+      final Customer customer = await handler.retrieveCustomer(worker.customerId, ephemeralSecret);
+      worker.sourceIds
+        ..clear()
+        ..addAll(customer.sources.map((source) => source.id!));
+      break;
+    case "addCustomerSource":
+      final source = await handler.addCustomerSource(worker.customerId, "tok_visa", ephemeralSecret);
+      worker.sourceIds.add(source.id!);
+      break;
+    case "updateCustomerDefaultSource":
+      await handler.updateCustomerDefaultSource(
+          worker.customerId, worker.sourceIds[worker.random.nextInt(worker.sourceIds.length)], ephemeralSecret);
+      break;
+    case "deleteCustomerSource":
+      final sourceId = worker.sourceIds.removeAt(worker.random.nextInt(worker.sourceIds.length));
+      await handler.deleteCustomerSource(worker.customerId, sourceId, ephemeralSecret);
+      break;
+  }
+}
+
+/// Roughly a checkout session's mix; operations that need a source add one first.
+String _pickOperation(_Worker worker) {
+  final roll = worker.random.nextInt(100);
+  if (roll < 35) {
+    return "createToken";
+  } else if (roll < 65) {
+    return "retrieveCustomer";
+  } else if (roll < 80 || worker.sourceIds.isEmpty) {
+    return "addCustomerSource";
+  } else if (roll < 90) {
+    return "updateCustomerDefaultSource";
+  }
+  return "deleteCustomerSource";
+}
+
+String _errorName(Object error) {
+  if (error is StripeAPIException) {
+    return "${error.error.type}/${error.error.code ?? "-"}";
+  } else if (error is http.ClientException) {
+    return "connection";
+  }
+  return error.runtimeType.toString();
+}
+
+StripeHttpTransport _newTransport(String name) {
+  switch (name) {
+    case "dart":
+      return new HttpClientTransport();
+    case "native":
+      return new NativeHttpTransport();
+  }
+  throw new ArgumentError.value(name, "LOAD_TRANSPORTS", "expected dart or native");
+}
+
+class _RunSummary {
+  final String transport;
+  final double seconds;
+  final _OperationStats all;
+
+  _RunSummary(this.transport, this.seconds, this.all);
+}
+
+Future<_RunSummary> _run(StripeApiHandler handler, String transport) async {
+  MockStripeServer? server;
+  final previousApiPath = handler.apiPath;
+  if (apiPath.isEmpty) {
+    // a fresh mock with the same seed, so every transport gets the same responses
+    server = new MockStripeServer(
+      latency: new Duration(milliseconds: latencyMs),
+      jitter: new Duration(milliseconds: jitterMs),
+      errorRate: double.parse(errorRate),
+      dropRate: double.parse(dropRate),
+      seed: seed,
+    );
+    await server.start();
+    handler.apiPath = server.apiPath;
+  } else {
+    handler.apiPath = apiPath;
+  }
+  handler.transport = _newTransport(transport);
+
+  final stats = <String, _OperationStats>{};
+  int started = 0;
+  final elapsed = new Stopwatch()..start();
+  Future<void> work(_Worker worker) async {
+    while (started < totalRequests) {
+      started++;
+      final operation = _pickOperation(worker);
+      final operationStats = stats.putIfAbsent(operation, () => new _OperationStats());
+      final watch = new Stopwatch()..start();
+      try {
+        await _runOperation(handler, worker, operation);
+        operationStats.record(watch.elapsed);
+      } catch (e) {
+        operationStats.record(watch.elapsed, _errorName(e));
+      }
+    }
+  }
+
+  try {
+    await Future.wait(new List.generate(concurrency, (index) => work(new _Worker(index))));
+  } finally {
+    elapsed.stop();
+    handler.apiPath = previousApiPath;
+    handler.transport = new HttpClientTransport();
+    await server?.close();
+  }
+
+  final seconds = elapsed.elapsedMicroseconds / Duration.microsecondsPerSecond;
+  final all = new _OperationStats();
+  print("$transport transport: $totalRequests requests, $concurrency concurrent, ${seconds.toStringAsFixed(2)} s, "
+      "${(totalRequests / seconds).toStringAsFixed(1)} req/s");
+  print("operation                     count   p50 ms   p95 ms   p99 ms   max ms  errors");
+  final names = stats.keys.toList()..sort();
+  for (final name in names.followedBy(["all"])) {
+    final operationStats = name == "all" ? all : stats[name]!;
+    if (name != "all") {
+      all.latenciesUs.addAll(operationStats.latenciesUs);
+      operationStats.errors.forEach((error, count) => all.errors[error] = (all.errors[error] ?? 0) + count);
+    }
+    final sorted = new List<int>.from(operationStats.latenciesUs)..sort();
+    print("${name.padRight(28)}${sorted.length.toString().padLeft(7)}"
+        "${operationStats.percentileMs(sorted, 0.50).toStringAsFixed(1).padLeft(9)}"
+        "${operationStats.percentileMs(sorted, 0.95).toStringAsFixed(1).padLeft(9)}"
+        "${operationStats.percentileMs(sorted, 0.99).toStringAsFixed(1).padLeft(9)}"
+        "${(sorted.last / 1000).toStringAsFixed(1).padLeft(9)}"
+        "${(100 * operationStats.errorCount / sorted.length).toStringAsFixed(2).padLeft(7)}%");
+  }
+  final errorNames = all.errors.keys.toList()..sort();
+  for (final error in errorNames) {
+    print("  $error: ${all.errors[error]}");
+  }
+  if (server != null) {
+    print("mock: ${server.getStats()}");
+  }
+  return new _RunSummary(transport, seconds, all);
+}
+
+/// Registers the load test for [transportNames], one run each, in order.
+void defineLoadTest(List<String> transportNames) {
+  test("StripeApiHandler under concurrent load", () async {
+    final handler = new StripeApiHandler();
+    final summaries = <_RunSummary>[];
+    for (final transport in transportNames) {
+      summaries.add(await _run(handler, transport));
+    }
+
+    if (summaries.length > 1) {
+      print("transport      req/s   p50 ms   p95 ms  errors");
+      for (final summary in summaries) {
+        final sorted = new List<int>.from(summary.all.latenciesUs)..sort();
+        print("${summary.transport.padRight(8)}"
+            "${(totalRequests / summary.seconds).toStringAsFixed(1).padLeft(11)}"
+            "${summary.all.percentileMs(sorted, 0.50).toStringAsFixed(1).padLeft(9)}"
+            "${summary.all.percentileMs(sorted, 0.95).toStringAsFixed(1).padLeft(9)}"
+            "${(100 * summary.all.errorCount / sorted.length).toStringAsFixed(2).padLeft(7)}%");
+      }
+    }
+
+    for (final summary in summaries) {
+      expect(summary.all.latenciesUs.length, totalRequests);
+    }
+  }, timeout: Timeout.none);
+}
+
+void main() {
+  defineLoadTest(transports.split(","));
+}
@@ -0,0 +1,409 @@
+import 'dart:convert';
+import 'dart:io';
+import 'dart:math';
+
+///
+/// Local stand-in for the Stripe endpoints the plugin calls: /v1/tokens, /v1/sources and
+/// /v1/customers/... State lives in memory, customers are created on first use.
+///
+/// Every response waits [latency] plus up to [jitter]. A share [errorRate] of requests fails with
+/// a 429 rate_limit or 500 api_error, and a share [dropRate] has its connection closed without a
+/// response. Like test mode, card 4000000000000002 and tok_chargeDeclined are declined, and
+/// tok_visa / tok_mastercard can be attached without creating a token first. A repeated
+/// Idempotency-Key replays the first response.
+///
+/// Run standalone with `dart run tool/mock_stripe_server.dart [--port 12111] [--latency-ms 0]
+/// [--jitter-ms 0] [--error-rate 0] [--drop-rate 0] [--seed n]`, then set
+/// `StripeApiHandler().apiPath` to the printed URL. The Android unit tests drive the offline
+/// source queue against StubStripeServer, a JVM port of the /v1/sources endpoint and these knobs.
+///
+class MockStripeServer {
+  static const String DECLINED_CARD_NUMBER = "4000000000000002";
+
+  final Duration latency;
+  final Duration jitter;
+  final double errorRate;
+  final double dropRate;
+  final Random _random;
+
+  HttpServer? _server;
+  int _nextId = 0;
+  final Map<String, Map<String, dynamic>> _tokens = {};
+  final Map<String, Map<String, dynamic>> _sources = {};
+  final Map<String, Map<String, dynamic>> _customers = {};
+  final Map<String, _MockResponse> _idempotentResponses = {};
+
+  int _requests = 0;
+  int _injectedErrors = 0;
+  int _dropped = 0;
+  int _replayed = 0;
+  final Map<int, int> _statusCounts = {};
+
+  MockStripeServer({
+    this.latency = Duration.zero,
+    this.jitter = Duration.zero,
+    this.errorRate = 0,
+    this.dropRate = 0,
+    int? seed,
+  }) : _random = new Random(seed);
+
+  /// The value for `StripeApiHandler().apiPath`.
+  String get apiPath => "http://${_server!.address.host}:${_server!.port}/v1";
+
+  Future<void> start({int port = 0}) async {
+    _server = await HttpServer.bind(InternetAddress.loopbackIPv4, port);
+    _server!.listen(_handle);
+  }
+
+  Future<void> close() async {
+    await _server?.close(force: true);
+    _server = null;
+  }
+
+  Map<String, dynamic> getStats() {
+    return {
+      "requests": _requests,
+      "injected_errors": _injectedErrors,
+      "dropped": _dropped,
+      "replayed": _replayed,
+      "status_counts": _statusCounts.map((status, count) => new MapEntry(status.toString(), count)),
+    };
+  }
+
+  Future<void> _handle(HttpRequest request) async {
+    _requests++;
+    final body = await utf8.decoder.bind(request).join();
+    final params = new Map<String, String>.from(request.uri.queryParameters);
+    if (body.isNotEmpty) {
+      params.addAll(Uri.splitQueryString(body));
+    }
+    await new Future.delayed(latency + jitter * _random.nextDouble());
+
+    if (_random.nextDouble() < dropRate) {
+      _dropped++;
+      final socket = await request.response.detachSocket(writeHeaders: false);
+      socket.destroy();
+      return;
+    }
+
+    final idempotencyKey = request.headers.value("Idempotency-Key");
+    _MockResponse? response = idempotencyKey != null ? _idempotentResponses[idempotencyKey] : null;
+    if (response != null) {
+      _replayed++;
+    } else if (_random.nextDouble() < errorRate) {
+      _injectedErrors++;
+      response = _random.nextBool()
+          ? _error(429, "rate_limit_error", "Too many requests hit the API too quickly.", code: "rate_limit")
+          : _error(500, "api_error", "An unknown error occurred.");
+    } else {
+      try {
+        response = _route(request, _nest(params));
+      } catch (e) {
+        response = _error(400, "invalid_request_error", "Malformed request: $e");
+      }
+      // like Stripe, server errors are not saved for replay
+      if (idempotencyKey != null && response.status < 500) {
+        _idempotentResponses[idempotencyKey] = response;
+      }
+    }
+
+    _statusCounts[response.status] = (_statusCounts[response.status] ?? 0) + 1;
+    request.response
+      ..statusCode = response.status
+      ..headers.contentType = ContentType.json
+      ..headers.set("Request-Id", "req_mock_$_requests")
+      ..write(json.encode(response.body));
+    await request.response.close();
+  }
+
+  _MockResponse _route(HttpRequest request, Map<String, dynamic> params) {
+    final authorization = request.headers.value(HttpHeaders.authorizationHeader);
+    if (authorization == null || !authorization.startsWith("Bearer ")) {
+      return _error(401, "invalid_request_error", "You did not provide an API key.");
+    }
+    final method = request.method;
+    final path = request.uri.pathSegments;
+    if (path.length < 2 || path[0] != "v1") {
+      return _notFound(request);
+    }
+
+    if (path.length == 2 && path[1] == "tokens" && method == "POST") {
+      return _createToken(params);
+    }
+    if (path.length == 2 && path[1] == "sources" && method == "POST") {
+      return _createSource(params);
+    }
+    if (path[1] == "customers" && path.length >= 3) {
+      final customer = _customers.putIfAbsent(path[2], () => _newCustomer(path[2]));
+      if (path.length == 3 && method == "GET") {
+        return new _MockResponse(200, _customerJson(customer));
+      }
+      if (path.length == 3 && method == "POST") {
+        return _updateCustomer(customer, params);
+      }
+      if (path.length == 4 && path[3] == "sources" && method == "POST") {
+        return _attachSource(customer, params["source"]);
+      }
+      if (path.length == 5 && path[3] == "sources" && method == "DELETE") {
+        return _detachSource(customer, path[4]);
+      }
+    }
+    return _notFound(request);
+  }
+
+  _MockResponse _createToken(Map<String, dynamic> params) {
+    final cardParams = params["card"];
+    if (cardParams is! Map) {
+      return _error(400, "invalid_request_error", "Missing required param: card.", param: "card");
+    }
+    final declined = _declined(cardParams);
+    if (declined != null) {
+      return declined;
+    }
+    final token = _newToken(_cardJson(cardParams));
+    return new _MockResponse(200, token);
+  }
+
+  _MockResponse _createSource(Map<String, dynamic> params) {
+    final type = params["type"] ?? "card";
+    final source = <String, dynamic>{
+      "id": _id("src"),
+      "object": "source",
+      "client_secret": _id("src_client_secret"),
+      "created": _now(),
+      "livemode": false,
+      "metadata": {},
+      "owner": params["owner"] ?? {},
+      "type": type,
+      "usage": params["usage"] ?? "reusable",
+    };
+    if (type == "card") {
+      final cardParams = params["card"];
+      if (cardParams is! Map) {
+        return _error(400, "invalid_request_error", "Missing required param: card.", param: "card");
+      }
+      final declined = _declined(cardParams);
+      if (declined != null) {
+        return declined;
+      }
+      final card = _cardJson(cardParams)
+        ..remove("id")
+        ..remove("object");
+      card["three_d_secure"] = "optional";
+      source
+        ..["status"] = "chargeable"
+        ..["flow"] = "none"
+        ..["card"] = card;
+    } else {
+      final redirect = params["redirect"];
+      source
+        ..["status"] = "pending"
+        ..["flow"] = "redirect"
+        ..["amount"] = int.tryParse(params["amount"]?.toString() ?? "")
+        ..["currency"] = params["currency"]
+        ..["redirect"] = {
+          "return_url": redirect is Map ? redirect["return_url"] : null,
+          "status": "pending",
+          "url": "https://hooks.stripe.com/redirect/authenticate/${source["id"]}",
+        }
+        ..[type] = {};
+    }
+    _sources[source["id"]] = source;
+    return new _MockResponse(200, source);
+  }
+
+  _MockResponse _updateCustomer(Map<String, dynamic> customer, Map<String, dynamic> params) {
+    final defaultSource = params["default_source"];
+    if (defaultSource != null) {
+      if (!_attached(customer).any((source) => source["id"] == defaultSource)) {
+        return _error(400, "invalid_request_error", "No such source: '$defaultSource'",
+            code: "resource_missing", param: "default_source");
+      }
+      customer["default_source"] = defaultSource;
+    }
+    if (params["shipping"] != null) {
+      customer["shipping"] = params["shipping"];
+    }
+    return new _MockResponse(200, _customerJson(customer));
+  }
+
+  _MockResponse _attachSource(Map<String, dynamic> customer, String? sourceId) {
+    Map<String, dynamic>? attached;
+    if (sourceId == "tok_chargeDeclined") {
+      return _cardDeclined();
+    } else if (sourceId == "tok_visa" || sourceId == "tok_mastercard") {
+      final number = sourceId == "tok_visa" ? "4242424242424242" : "5555555555554444";
+      attached = _cardJson({"number": number, "exp_month": "12", "exp_year": "2034"});
+    } else if (_tokens.containsKey(sourceId)) {
+      // a token is used up and its card becomes the customer's
+      final token = _tokens.remove(sourceId)!;
+      attached = token["card"];
+    } else {
+      attached = _sources[sourceId];
+    }
+    if (attached == null) {
+      return _error(400, "invalid_request_error", "No such source: '$sourceId'",
+          code: "resource_missing", param: "source");
+    }
+    attached["customer"] = customer["id"];
+    final sources = _attached(customer);
+    sources.removeWhere((source) => source["id"] == attached!["id"]);
+    sources.add(attached);
+    customer["default_source"] ??= attached["id"];
+    return new _MockResponse(200, attached);
+  }
+
+  _MockResponse _detachSource(Map<String, dynamic> customer, String sourceId) {
+    final sources = _attached(customer);
+    final index = sources.indexWhere((source) => source["id"] == sourceId);
+    if (index < 0) {
+      return _error(404, "invalid_request_error", "No such source: '$sourceId'", code: "resource_missing");
+    }
+    final source = sources.removeAt(index);
+    if (customer["default_source"] == sourceId) {
+      customer["default_source"] = sources.isEmpty ? null : sources.first["id"];
+    }
+    return new _MockResponse(200, {"id": sourceId, "object": source["object"], "deleted": true});
+  }
+
+  _MockResponse? _declined(Map<dynamic, dynamic> cardParams) {
+    return cardParams["number"]?.toString() == DECLINED_CARD_NUMBER ? _cardDeclined() : null;
+  }
+
+  _MockResponse _cardDeclined() {
+    return _error(402, "card_error", "Your card was declined.", code: "card_declined");
+  }
+
+  _MockResponse _notFound(HttpRequest request) {
+    return _error(404, "invalid_request_error", "Unrecognized request URL (${request.method}: ${request.uri.path}).");
+  }
+
+  Map<String, dynamic> _newToken(Map<String, dynamic> card) {
+    final token = <String, dynamic>{
+      "id": _id("tok"),
+      "object": "token",
+      "card": card,
+      "created": _now(),
+      "livemode": false,
+      "type": "card",
+      "used": false,
+    };
+    _tokens[token["id"]] = token;
+    return token;
+  }
+
+  Map<String, dynamic> _cardJson(Map<dynamic, dynamic> cardParams) {
+    final number = cardParams["number"]?.toString() ?? "";
+    return {
+      "id": _id("card"),
+      "object": "card",
+      "brand": _brand(number),
+      "country": "US",
+      "exp_month": int.tryParse(cardParams["exp_month"]?.toString() ?? ""),
+      "exp_year": int.tryParse(cardParams["exp_year"]?.toString() ?? ""),
+      "funding": "credit",
+      "last4": number.length >= 4 ? number.substring(number.length - 4) : number,
+      "cvc_check": cardParams["cvc"] != null ? "pass" : null,
+      "name": cardParams["name"],
+    };
+  }
+
+  Map<String, dynamic> _newCustomer(String id) {
+    return {"id": id, "object": "customer", "default_source": null, "shipping": null, "sources": <Map<String, dynamic>>[]};
+  }
+
+  Map<String, dynamic> _customerJson(Map<String, dynamic> customer) {
+    final sources = _attached(customer);
+    return {
+      "id": customer["id"],
+      "object": "customer",
+      "created": _now(),
+      "default_source": customer["default_source"],
+      "livemode": false,
+      "shipping": customer["shipping"],
+      "sources": {
+        "object": "list",
+        "data": sources,
+        "has_more": false,
+        "total_count": sources.length,
+        "url": "/v1/customers/${customer["id"]}/sources",
+      },
+    };
+  }
+
+  List<Map<String, dynamic>> _attached(Map<String, dynamic> customer) {
+    return customer["sources"];
+  }
+
+  _MockResponse _error(int status, String type, String message, {String? code, String? param}) {
+    return new _MockResponse(status, {
+      "error": {
+        "type": type,
+        "message": message,
+        if (code != null) "code": code,
+        if (param != null) "param": param,
+      },
+    });
+  }
+
+  String _id(String prefix) => "${prefix}_mock${(++_nextId).toRadixString(36).padLeft(8, "0")}";
+
+  static int _now() => new DateTime.now().millisecondsSinceEpoch ~/ 1000;
+
+  static String _brand(String number) {
+    if (number.startsWith("4")) {
+      return "Visa";
+    } else if (number.startsWith("5") || number.startsWith("2")) {
+      return "MasterCard";
+    } else if (number.startsWith("34") || number.startsWith("37")) {
+      return "American Express";
+    } else if (number.startsWith("6")) {
+      return "Discover";
+    }
+    return "Unknown";
+  }
+
+  /// Turns form keys like `card[exp_month]` into nested maps.
+  static Map<String, dynamic> _nest(Map<String, String> params) {
+    final nested = <String, dynamic>{};
+    params.forEach((key, value) {
+      final path = key.replaceAll("]", "").split("[");
+      Map<String, dynamic> parent = nested;
+      for (int i = 0; i < path.length - 1; i++) {
+        parent = parent.putIfAbsent(path[i], () => <String, dynamic>{});
+      }
+      parent[path.last] = value;
+    });
+    return nested;
+  }
+}
+
+class _MockResponse {
+  final int status;
+  final Map<String, dynamic> body;
+
+  _MockResponse(this.status, this.body);
+}
+
+Future<void> main(List<String> args) async {
+  String option(String name, String defaultValue) {
+    final index = args.indexOf("--$name");
+    return index >= 0 && index + 1 < args.length ? args[index + 1] : defaultValue;
+  }
+
+  final seed = option("seed", "");
+  final server = new MockStripeServer(
+    latency: new Duration(milliseconds: int.parse(option("latency-ms", "0"))),
+    jitter: new Duration(milliseconds: int.parse(option("jitter-ms", "0"))),
+    errorRate: double.parse(option("error-rate", "0")),
+    dropRate: double.parse(option("drop-rate", "0")),
+    seed: seed.isEmpty ? null : int.parse(seed),
+  );
+  await server.start(port: int.parse(option("port", "12111")));
+  print("Mock Stripe API listening on ${server.apiPath}");
+  ProcessSignal.sigint.watch().first.then((_) async {
+    print(json.encode(server.getStats()));
+    await server.close();
+    exit(0);
+  });
+}